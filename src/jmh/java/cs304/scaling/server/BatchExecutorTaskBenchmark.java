@@ -0,0 +1,65 @@
+package cs304.scaling.server;
+
+import cs304.scaling.functions.BatchExecutorTask;
+import cs304.scaling.functions.ReadWriter;
+import cs304.scaling.functions.TaskInterface;
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.BufferPools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+// * Time a worker spends on one batch of read-write tasks: hashing every 8KB message, encoding the replies and
+// * returning the pooled buffers. The replies go to a closed connection, which releases them right away, so no
+// * socket is involved. Results are per batch.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchExecutorTaskBenchmark {
+    @Param({"1", "8", "64", "512"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean multiBuffer;
+
+    private SelectorConnection connection;
+
+    @Setup
+    public void setUp() throws IOException {
+        System.setProperty("scaling.hash.multibuffer", Boolean.toString(multiBuffer)); //Every parameter runs in a fresh fork
+        if (multiBuffer != AppConstants.MULTI_BUFFER_HASHING) {
+            throw new IllegalStateException("Multi-buffer hashing was already fixed to " + AppConstants.MULTI_BUFFER_HASHING);
+        }
+        SocketChannel channel = SocketChannel.open();
+        channel.close();
+        connection = new SelectorConnection(channel, 0, new AdmissionControl(0, 0, () -> 1)); //Admission control disabled
+    }
+
+    @Benchmark
+    public void execute() {
+        ArrayList<TaskInterface> tasks = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            ByteBuffer payload = BufferPools.PAYLOADS.acquire(); //Cleared full-size buffer, its stale content is hashed as is
+            tasks.add(new ReadWriter(connection, payload));
+        }
+        new BatchExecutorTask(tasks).onTask();
+    }
+}
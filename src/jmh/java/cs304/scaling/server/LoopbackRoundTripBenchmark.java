@@ -0,0 +1,114 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.HashEngines;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// * End-to-end round trip over loopback: a Server with two sub-reactors runs in the benchmark JVM and a blocking
+// * client sends a window of 8KB messages and waits for all their hashes. Results are per message.
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackRoundTripBenchmark {
+    private static final int WINDOW = 16; //Messages sent before the client waits for the replies
+
+    @Param({"1", "16"})
+    public int batchSize;
+
+    @Param({"4"})
+    public int workers;
+
+    private SocketChannel channel;
+    private ByteBuffer message;
+    private ByteBuffer replies;
+
+    @Setup
+    public void startServer() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        String[] args = {Integer.toString(port), Integer.toString(workers), Integer.toString(batchSize), "0.001", "2"};
+        Thread serverThread = new Thread(() -> Server.main(args), "LoopbackServer"); //The constructor runs the selector loop
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        channel = connect(new InetSocketAddress("127.0.0.1", port));
+        channel.socket().setTcpNoDelay(true);
+        byte[] bytes = new byte[AppConstants.BYTES_PER_MESSAGE];
+        new Random(42).nextBytes(bytes);
+        message = ByteBuffer.allocateDirect(bytes.length);
+        message.put(bytes);
+        replies = ByteBuffer.allocateDirect(WINDOW * AppConstants.BYTES_PER_HASH);
+
+        roundTrip();
+        byte[] first = new byte[AppConstants.BYTES_PER_HASH];
+        replies.flip();
+        replies.get(first);
+        if (!HashEngines.hashToString(bytes).equals(new String(first, StandardCharsets.US_ASCII))) {
+            throw new IllegalStateException("Server replied with a wrong hash");
+        }
+    }
+
+    @TearDown
+    public void closeClient() throws IOException {
+        channel.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public ByteBuffer roundTrip() throws IOException {
+        for (int i = 0; i < WINDOW; i++) {
+            message.clear();
+            while (message.hasRemaining()) {
+                channel.write(message);
+            }
+        }
+        replies.clear();
+        while (replies.hasRemaining()) {
+            if (channel.read(replies) == -1) {
+                throw new IOException("Server closed the connection");
+            }
+        }
+        return replies;
+    }
+
+    private static SocketChannel connect(InetSocketAddress address) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return SocketChannel.open(address);
+            } catch (ConnectException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100); //Server is still starting up
+            }
+        }
+    }
+}
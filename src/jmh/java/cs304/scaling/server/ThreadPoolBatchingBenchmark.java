@@ -0,0 +1,58 @@
+package cs304.scaling.server;
+
+import cs304.scaling.functions.TaskInterface;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// * Throughput of ThreadPool.addTaskToBatch() for one producer and for several producers contending on the same
+// * batch, which is what the sub-reactors do. The tasks do nothing, so the workers only drain the dispatched batches.
+// * The pool threads never stop, every trial runs in its own fork.
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadPoolBatchingBenchmark {
+    private static final TaskInterface NO_OP = () -> {
+    };
+
+    @Param({"1", "16", "128"})
+    public int batchSize;
+
+    @Param({"4"})
+    public int workers;
+
+    private ThreadPool threadPool;
+
+    @Setup
+    public void startPool() {
+        threadPool = new ThreadPool(batchSize, 1, workers); //1 ms batch time
+        threadPool.initiateThreads();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long singleProducer() {
+        return threadPool.addTaskToBatch(NO_OP, 0);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long contendedProducers() {
+        return threadPool.addTaskToBatch(NO_OP, 0);
+    }
+}
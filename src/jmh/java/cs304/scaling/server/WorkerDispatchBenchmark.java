@@ -0,0 +1,59 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// * Cost of handing tasks to the worker threads through notifyAndExecuteImmediate() until they have run, for every
+// * executor mode. Each invocation dispatches a burst of tasks and waits for all of them.
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkerDispatchBenchmark {
+    private static final int BURST = 64; //Tasks dispatched per invocation
+
+    @Param({"blocking", "stealing", "sharded"})
+    public String executor;
+
+    @Param({"4"})
+    public int workers;
+
+    private ThreadPool threadPool;
+
+    @Setup
+    public void startPool() {
+        System.setProperty("scaling.executor", executor); //Every parameter runs in a fresh fork, AppConstants is not loaded yet
+        if (!executor.equals(AppConstants.EXECUTOR_MODE)) {
+            throw new IllegalStateException("Executor mode was already fixed to " + AppConstants.EXECUTOR_MODE);
+        }
+        threadPool = new ThreadPool(1, 1, workers);
+        threadPool.initiateThreads();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void dispatch() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(BURST);
+        for (int i = 0; i < BURST; i++) {
+            threadPool.notifyAndExecuteImmediate(done::countDown);
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,88 @@
+package cs304.scaling.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// * Cost of hashing one 8KB message with each hash engine, and with the multi-buffer SHA-1 that hashes eight
+// * messages at once. All results are per message.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HashEngineBenchmark {
+
+    @State(Scope.Thread)
+    public static class EngineState {
+        @Param({"SHA-1", "SHA-256", HashEngines.XXH64})
+        public String algorithm;
+
+        private HashEngine engine;
+        private ByteBuffer payload;
+        private byte[] digest;
+
+        @Setup
+        public void setUp() {
+            engine = HashEngines.create(algorithm);
+            payload = randomMessage(new Random(42));
+            digest = new byte[engine.digestLength()];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class LanesState {
+        private MultiBufferSHA1 hasher;
+        private ByteBuffer[] payloads;
+        private byte[][] digests;
+
+        @Setup
+        public void setUp() {
+            hasher = new MultiBufferSHA1();
+            payloads = new ByteBuffer[MultiBufferSHA1.LANES];
+            digests = new byte[MultiBufferSHA1.LANES][MultiBufferSHA1.DIGEST_LENGTH];
+            Random random = new Random(42);
+            for (int l = 0; l < payloads.length; l++) {
+                payloads[l] = randomMessage(random);
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] engine(EngineState state) {
+        state.payload.clear(); //update() consumes the buffer
+        state.engine.update(state.payload);
+        state.engine.digest(state.digest, 0);
+        return state.digest;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MultiBufferSHA1.LANES)
+    public byte[][] multiBufferSHA1(LanesState state) {
+        state.hasher.digest(state.payloads, state.digests); //Leaves the positions untouched
+        return state.digests;
+    }
+
+    private static ByteBuffer randomMessage(Random random) {
+        byte[] bytes = new byte[AppConstants.BYTES_PER_MESSAGE];
+        random.nextBytes(bytes);
+        ByteBuffer message = ByteBuffer.allocateDirect(bytes.length); //Payloads are direct buffers in the server
+        message.put(bytes);
+        message.flip();
+        return message;
+    }
+}
@@ -0,0 +1,72 @@
+package cs304.scaling.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// * Cost of answering one 8KB message from the result cache, against looking it up, missing, hashing it with SHA-1 and
+// * storing the digest. The miss benchmark cycles through more payloads than the cache holds, so every lookup misses
+// * and every store evicts.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ResultCacheBenchmark {
+    private static final int PAYLOADS = 64;
+
+    private ResultCache cache;
+    private HashEngine engine;
+    private ByteBuffer[] payloads;
+    private byte[] digest;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        cache = new ResultCache(16L * (AppConstants.BYTES_PER_MESSAGE + 32)); //One slot per segment
+        engine = HashEngines.create("SHA-1");
+        payloads = new ByteBuffer[PAYLOADS];
+        digest = new byte[engine.digestLength()];
+        Random random = new Random(42);
+        for (int i = 0; i < PAYLOADS; i++) {
+            byte[] bytes = new byte[AppConstants.BYTES_PER_MESSAGE];
+            random.nextBytes(bytes);
+            payloads[i] = ByteBuffer.allocateDirect(bytes.length);
+            payloads[i].put(bytes);
+            payloads[i].flip();
+        }
+        cache.store(payloads[0], cache.fingerprint(payloads[0]), digest, digest.length);
+    }
+
+    @Benchmark
+    public int hit() {
+        return cache.lookup(payloads[0], cache.fingerprint(payloads[0]), digest);
+    }
+
+    @Benchmark
+    public int miss() {
+        ByteBuffer payload = payloads[next++ % PAYLOADS];
+        long fingerprint = cache.fingerprint(payload);
+        int length = cache.lookup(payload, fingerprint, digest);
+        if (length < 0) {
+            engine.update(payload);
+            length = engine.digest(digest, 0);
+            payload.flip(); //update() consumed it
+            cache.store(payload, fingerprint, digest, length);
+        }
+        return length;
+    }
+}
@@ -1,37 +1,46 @@
 package cs304.scaling.client;
 
 import cs304.scaling.utils.AppConstants;
-import cs304.scaling.utils.SHA1Hasher;
+import cs304.scaling.utils.HashEngines;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 
 public class AsyncMessage implements Runnable {
     private Client client;
     private SocketChannel channel;
     private Random rd;
-    private int sleepTime;
+    private long sendIntervalNanos;
+    private byte[] digestOfPayload; //Reused for every message, the client copies it into its outstanding hashes
 
     AsyncMessage(Client client, int messagingRate, SocketChannel channel) {
         this.client = client;
         this.channel = channel;
         this.rd = new Random();
-        this.sleepTime = AppConstants.PER_SECOND / messagingRate; //Calculate how much time the client needs to wait before sending the next message.
+        this.sendIntervalNanos = TimeUnit.SECONDS.toNanos(1) / messagingRate; //Calculate how much time the client needs to wait before sending the next message.
+        this.digestOfPayload = new byte[HashEngines.WIRE_DIGEST_LENGTH];
     }
 
 
     @Override
     public void run() {
+        long intendedSendNanos = System.nanoTime(); //Messages are due at fixed intervals from the start, however long a send takes
         while (true) {
+            try {
+                client.awaitSendWindow(); //Backpressure when too many messages are unanswered
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
             byte[] randomBytes = new byte[AppConstants.BYTES_PER_MESSAGE];
             rd.nextBytes(randomBytes); //Generate random payload
 
-            String hashOfPayload = SHA1Hasher.SHA1FromBytes(randomBytes); //Calculate SHA-1 hash of random payload
-            hashOfPayload = String.format("%40s", hashOfPayload).replace(" ", "-"); //Pad hash to make it length 40. Essential for synchronizing sizes of messages
-            client.updateHashes(hashOfPayload); //Invoke update hashes method in Client
+            HashEngines.hashToDigest(randomBytes, digestOfPayload); //Calculate hash of random payload as the raw digest a reply decodes to
+            client.updateHashes(digestOfPayload, intendedSendNanos, System.nanoTime()); //Invoke update hashes method in Client
 
             ByteBuffer byteBuffer = ByteBuffer.wrap(randomBytes); //Wrap random payload into a byte buffer
 
@@ -44,10 +53,14 @@ public class AsyncMessage implements Runnable {
             }
             client.incrementSentCount();
 
-            try {
-                Thread.sleep(sleepTime); //Wait for sleepTime(in millis) before sending next message
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            intendedSendNanos += sendIntervalNanos;
+            long remaining = intendedSendNanos - System.nanoTime();
+            if (remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(remaining); //Wait until the next message is due, a late message is sent right away
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
             }
         }
     }
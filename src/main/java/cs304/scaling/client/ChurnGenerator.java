@@ -0,0 +1,167 @@
+package cs304.scaling.client;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.LatencyHistogram;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// * Connection churn benchmark: every connection sends a single v1 message, waits for its reply and closes, so the
+// * server mostly accepts, registers and tears down connections. Reports the lifecycle latency of connect, request,
+// * reply and close, and with the server's metrics port also its accept rate and heap, which has to stay flat in a
+// * steady state if nothing leaks per connection.
+
+public class ChurnGenerator {
+    private final InetSocketAddress address;
+    private final long connectIntervalNanos; //Between two connections of the same thread
+    private final PayloadPool payloadPool;
+    private final String metricsUrl; //Null without a metrics port
+    private final LongAdder completedCount;
+    private final LongAdder failedCount;
+    private final LatencyHistogram lifecycleTimes; //Close time minus the intended connect time
+    private long lastServerAccepted = -1; //Only touched by the stats timer thread
+
+    private ChurnGenerator(String hostname, int port, int connectionRate, int threadCount, int metricsPort) {
+        address = new InetSocketAddress(hostname, port);
+        connectIntervalNanos = TimeUnit.SECONDS.toNanos(1) * threadCount / connectionRate;
+        payloadPool = new PayloadPool(AppConstants.LOAD_PAYLOAD_POOL_SIZE, AppConstants.BYTES_PER_MESSAGE);
+        metricsUrl = metricsPort > 0 ? "http://" + hostname + ":" + metricsPort + "/metrics" : null;
+        completedCount = new LongAdder();
+        failedCount = new LongAdder();
+        lifecycleTimes = new LatencyHistogram();
+
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(this::churn, "ChurnGenerator-" + i);
+            thread.start();
+        }
+        new ClientProfile(this::printStats).startExecution();
+        System.out.println("Churn generator opening " + connectionRate + " connections/s to server at " + hostname
+                + ":" + port + " from " + threadCount + " threads" + (AppConstants.CHURN_RESET_CLOSE ? " closing with RST" : ""));
+    }
+
+    /**
+     * Open one connection after another at the connection interval. A connection that takes longer than the interval
+     * delays the next ones, which is measured against their intended start times.
+     */
+    private void churn() {
+        ByteBuffer reply = ByteBuffer.allocate(AppConstants.BYTES_PER_HASH);
+        long nextConnectNanos = System.nanoTime() + ThreadLocalRandom.current().nextLong(connectIntervalNanos);
+        while (true) {
+            long waitNanos = nextConnectNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            int payload = ThreadLocalRandom.current().nextInt(payloadPool.size());
+            if (exchange(payloadPool.newView(payload), reply) && payloadPool.indexOfReply(reply, 0) == payload) {
+                completedCount.increment();
+                lifecycleTimes.record(System.nanoTime() - nextConnectNanos);
+            } else {
+                failedCount.increment();
+            }
+            nextConnectNanos += connectIntervalNanos;
+        }
+    }
+
+    /**
+     * Connect, send the payload, read the reply and close.
+     * @param payload
+     * @param reply receives AppConstants.BYTES_PER_HASH bytes
+     * @return false if the connection failed or the server closed it before replying
+     */
+    private boolean exchange(ByteBuffer payload, ByteBuffer reply) {
+        reply.clear();
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            if (AppConstants.CHURN_RESET_CLOSE) {
+                channel.socket().setSoLinger(true, 0); //Close with RST, skipping TIME_WAIT on this side
+            }
+            while (payload.hasRemaining()) {
+                channel.write(payload);
+            }
+            while (reply.hasRemaining()) {
+                if (channel.read(reply) == -1) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            if (AppConstants.DEBUG) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Fetch the server's metrics endpoint.
+     * @return value of every unlabelled sample by metric name, empty if the endpoint cannot be reached
+     */
+    private Map<String, Double> fetchServerMetrics() {
+        Map<String, Double> samples = new HashMap<>();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(metricsUrl).openConnection();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (line.startsWith("#") || space < 0 || line.indexOf('{') >= 0) {
+                        continue;
+                    }
+                    samples.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1).trim()));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        return samples;
+    }
+
+    void printStats() {
+        long completed = completedCount.sumThenReset();
+        System.out.println("------------------------------------------------------------------\n");
+        System.out.println("(" + System.currentTimeMillis() + ")");
+        System.out.println("Completed Connections:\t\t" + completed + "\t(" + completed / AppConstants.STATS_LOGGER_INTERVAL_SECS + " connections/s)\n"
+                + "Failed Connections:\t\t" + failedCount.sumThenReset() + "\n"
+                + "Lifecycle Time:\t\t\t" + lifecycleTimes.takeSnapshot().formatPercentiles());
+        if (metricsUrl != null) {
+            Map<String, Double> samples = fetchServerMetrics();
+            Double accepted = samples.get("scaling_connections_accepted_total");
+            if (accepted != null) {
+                String acceptRate = lastServerAccepted < 0 ? "n/a"
+                        : (accepted.longValue() - lastServerAccepted) / AppConstants.STATS_LOGGER_INTERVAL_SECS + " accepts/s";
+                lastServerAccepted = accepted.longValue();
+                System.out.println("Server Accepted:\t\t" + accepted.longValue() + "\t(" + acceptRate + ")\n"
+                        + "Server Open Connections:\t" + samples.get("scaling_active_connections").longValue() + "\n"
+                        + "Server Heap Used:\t\t" + samples.get("scaling_heap_used_bytes").longValue() / 1024 + " KB\n"
+                        + "Server Heap After GC:\t\t" + samples.get("scaling_heap_used_after_gc_bytes").longValue() / 1024 + " KB");
+            }
+        }
+        System.out.println();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Please provide at least 4 arguments.\nUsage: "
+                    + "java cs304.scaling.client.ChurnGenerator <server-host> <server-port> <connections-per-second> <threads> [metrics-port]\n"
+                    + "Exiting");
+            System.exit(1);
+        }
+        int metricsPort = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        new ChurnGenerator(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), metricsPort);
+    }
+}
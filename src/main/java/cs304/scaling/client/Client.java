@@ -1,6 +1,8 @@
 package cs304.scaling.client;
 
 import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.HashEngines;
+import cs304.scaling.utils.LatencyHistogram;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -9,8 +11,8 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -19,7 +21,14 @@ public class Client {
     private volatile AtomicInteger messageSentCount;
     private volatile AtomicInteger messageReceivedCount;
     private SocketChannel clientSocket;
-    private LinkedList<String> hashList;
+    private AtomicInteger unmatchedReplyCount; //Replies that matched no outstanding hash
+    private DigestSet outstandingHashes; //Digests of the messages sent and not answered yet, guarded by itself
+    private int statsGeneration; //Number of the current stats interval, guarded by outstandingHashes
+    private Semaphore inFlightWindow; //One permit per message that may be unanswered, null when the window is unlimited
+    private ByteBuffer replyBuffer; //Accumulates hashes from the server across reads
+    private byte[] replyDigest; //Digest decoded from the current reply, only used by the selector thread
+    private LatencyHistogram responseTimes; //Reply time minus the time the message was due, corrected for coordinated omission
+    private LatencyHistogram serviceTimes; //Reply time minus the time the message was actually sent
 
     private Client(String hostname, int port, int messagingRate) {
         try {
@@ -30,7 +39,15 @@ public class Client {
 
         messageSentCount = new AtomicInteger(0);
         messageReceivedCount = new AtomicInteger(0);
-        hashList = new LinkedList<>();
+        unmatchedReplyCount = new AtomicInteger(0);
+        outstandingHashes = new DigestSet(AppConstants.HASHES_PER_READ * 16);
+        if (AppConstants.CLIENT_MAX_IN_FLIGHT > 0) {
+            inFlightWindow = new Semaphore(AppConstants.CLIENT_MAX_IN_FLIGHT);
+        }
+        replyBuffer = ByteBuffer.allocate(AppConstants.BYTES_PER_HASH * AppConstants.HASHES_PER_READ);
+        replyDigest = new byte[HashEngines.WIRE_DIGEST_LENGTH];
+        responseTimes = new LatencyHistogram();
+        serviceTimes = new LatencyHistogram();
 
         new ClientProfile(this).startExecution(); //Start the Timer Task that prints Client statistics
 
@@ -65,43 +82,64 @@ public class Client {
                 it.remove(); //Remove key immediately to avoid processing this key again.
 
                 if (selectionKey.isReadable()) {
-                    ByteBuffer readBuffer = ByteBuffer.allocate(AppConstants.BYTES_PER_HASH); //Allocate 40 bytes to ByteBuffer to read hash
-                    int numBytesRead = 0;
-                    //SocketChannel channel = (SocketChannel) selectionKey.channel();
-                    while (readBuffer.hasRemaining() && numBytesRead != -1) {
-                        numBytesRead = clientSocket.read(readBuffer); //Read data(hashcode) from socket channel
+                    int numBytesRead = clientSocket.read(replyBuffer); //Read whatever is available, possibly several hashes or part of one
+                    if (numBytesRead == -1) {
+                        System.out.println("Server closed the connection");
+                        clientSocket.close();
+                        return;
                     }
-
-                    messageReceivedCount.incrementAndGet(); //Atomically increment the receive message count
-
-                    byte[] hashBytes = readBuffer.array();
-                    String hash = new String(hashBytes);
-                    synchronized (hashList) {
-                        String foundHash = containsHash(hash); //Indicator for the presence of hash in HashList
-                        if (foundHash != null) {
-                            if (AppConstants.DEBUG) {
-                                System.out.println("Hashes Matched. Removing hash " + hash + " from linked list.");
-                            }
-                            hashList.remove(foundHash);
-                        } else {
-                            if (AppConstants.DEBUG) {
-                                System.out.println(hash + " not found in hashlist");
-                            }
-                        }
+                    replyBuffer.flip();
+                    while (replyBuffer.remaining() >= AppConstants.BYTES_PER_HASH) {
+                        matchHash(replyBuffer.position());
+                        replyBuffer.position(replyBuffer.position() + AppConstants.BYTES_PER_HASH);
                     }
+                    replyBuffer.compact(); //Keep the bytes of an incomplete hash for the next read
                 }
 
             }
         }
     }
 
-    private String containsHash(String hash) {
-        for (String h : hashList) {
-            if (h.equals(hash)) {
-                return h;
+    /**
+     * Decode the reply at offset in replyBuffer and remove its digest from the outstanding hashes.
+     * @param offset
+     */
+    private void matchHash(int offset) {
+        messageReceivedCount.incrementAndGet(); //Atomically increment the receive message count
+        if (inFlightWindow != null) {
+            inFlightWindow.release(); //Every reply answers one message, whether it matches or not
+        }
+
+        long now = System.nanoTime();
+        boolean found = false;
+        if (HashEngines.parseReply(replyBuffer, offset, replyDigest)) {
+            synchronized (outstandingHashes) {
+                found = outstandingHashes.remove(replyDigest);
+                if (found) {
+                    responseTimes.record(now - outstandingHashes.getRemovedIntendedNanos());
+                    serviceTimes.record(now - outstandingHashes.getRemovedSentNanos());
+                }
             }
         }
-        return null;
+        if (found) {
+            if (AppConstants.DEBUG) {
+                System.out.println("Hashes Matched. Removed hash from outstanding hashes.");
+            }
+        } else {
+            unmatchedReplyCount.incrementAndGet();
+            if (AppConstants.DEBUG) {
+                System.out.println(new String(replyBuffer.array(), offset, AppConstants.BYTES_PER_HASH) + " not found in outstanding hashes");
+            }
+        }
+    }
+
+    /**
+     * Block the sender while the in-flight window is full.
+     */
+    void awaitSendWindow() throws InterruptedException {
+        if (inFlightWindow != null) {
+            inFlightWindow.acquire();
+        }
     }
 
 
@@ -111,19 +149,39 @@ public class Client {
 
 
     synchronized void printStats() {
+        int missing;
+        int inFlight;
+        synchronized (outstandingHashes) {
+            missing = outstandingHashes.countOlderThan(statsGeneration); //Sent before the previous print, still unanswered
+            inFlight = outstandingHashes.size();
+            statsGeneration++;
+        }
         System.out.println("------------------------------------------------------------------\n");
         System.out.println("(" + System.currentTimeMillis() + ")");
         System.out.println("Total Sent Count:\t\t" + messageSentCount + "\n"
-                + "Total Received Count:\t\t" + messageReceivedCount + "\n");
+                + "Total Received Count:\t\t" + messageReceivedCount + "\n"
+                + "Unmatched Replies:\t\t" + unmatchedReplyCount + "\n"
+                + "Missing Replies:\t\t" + missing + "\n"
+                + "In-Flight Messages:\t\t" + inFlight + "\n"
+                + "Response Time:\t\t\t" + responseTimes.takeSnapshot().formatPercentiles() + "\n"
+                + "Service Time:\t\t\t" + serviceTimes.takeSnapshot().formatPercentiles() + "\n");
         messageSentCount.set(0);
         messageReceivedCount.set(0);
+        unmatchedReplyCount.set(0);
     }
 
-    synchronized void updateHashes(String hashOfPayload) {
+    /**
+     * @param digestOfPayload raw digest of a message about to be sent, copied into the outstanding hashes
+     * @param intendedNanos time the message was due to be sent at
+     * @param sentNanos time the message is actually sent at
+     */
+    void updateHashes(byte[] digestOfPayload, long intendedNanos, long sentNanos) {
         if(AppConstants.DEBUG) {
-            System.out.println(hashOfPayload + " to hashlist");
+            System.out.println("Adding digest to outstanding hashes");
+        }
+        synchronized (outstandingHashes) {
+            outstandingHashes.add(digestOfPayload, statsGeneration, intendedNanos, sentNanos);
         }
-        hashList.add(hashOfPayload);
     }
 
     public static void main(String[] args) {
@@ -8,16 +8,20 @@ import java.util.TimerTask;
 
 public class ClientProfile extends TimerTask {
     private Timer timer;
-    private Client client;
+    private Runnable statsPrinter;
 
     ClientProfile(Client client) {
-        this.client = client;
+        this(client::printStats);
+    }
+
+    ClientProfile(Runnable statsPrinter) {
+        this.statsPrinter = statsPrinter;
         this.timer = new Timer("ClientStatsDisplayer");
     }
 
     @Override
     public void run() {
-        client.printStats(); //Invoke print statistics method in Client class
+        statsPrinter.run(); //Invoke print statistics method in Client or LoadGenerator
     }
 
     void startExecution() {
@@ -0,0 +1,180 @@
+package cs304.scaling.client;
+
+import cs304.scaling.utils.HashEngines;
+
+
+class DigestSet {
+    private static final int WORDS_PER_SLOT = 3; //Digest bytes 0-7, 8-15 and 16-19, the last word also holds the count
+
+    private long[] table; //Open addressing with linear probing, a slot with count 0 in its last word is empty
+    private int[] generations; //Stats interval in which the digest was added, per slot
+    private long[] intendedTimes; //Time the message was scheduled to be sent, per slot
+    private long[] sentTimes; //Time the message was actually sent, per slot
+    private long removedIntendedNanos;
+    private long removedSentNanos;
+    private int mask;
+    private int size;
+
+    /**
+     * Multiset of raw digests of HashEngines.WIRE_DIGEST_LENGTH bytes, stored in primitive arrays so that adding and
+     * removing neither allocates nor creates objects. Not thread-safe.
+     * @param initialCapacity
+     */
+    DigestSet(int initialCapacity) {
+        int slots = Integer.highestOneBit(Math.max(16, initialCapacity * 2 - 1)) << 1;
+        table = new long[slots * WORDS_PER_SLOT];
+        generations = new int[slots];
+        intendedTimes = new long[slots];
+        sentTimes = new long[slots];
+        mask = slots - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param digest
+     * @param generation stats interval the digest is added in, see countOlderThan()
+     * @param intendedNanos System.nanoTime() the message was scheduled to be sent at
+     * @param sentNanos System.nanoTime() the message was actually sent at
+     */
+    void add(byte[] digest, int generation, long intendedNanos, long sentNanos) {
+        if ((size + 1) * 2 > mask + 1) {
+            resize((mask + 1) * 2);
+        }
+        long w0 = word(digest, 0);
+        long w1 = word(digest, 8);
+        int w2 = (int) (word(digest, 16) >>> 32);
+        int slot = find(w0, w1, w2);
+        if (count(slot) > 0) {
+            table[slot * WORDS_PER_SLOT + 2] += 1L << 32; //Same payload sent again, the times of the first send are kept
+        } else {
+            store(slot, w0, w1, ((long) 1 << 32) | (w2 & 0xFFFFFFFFL), generation, intendedNanos, sentNanos);
+        }
+        size++;
+    }
+
+    /**
+     * @param digest
+     * @return true if the digest was present, its send times are then available from getRemovedIntendedNanos() and
+     * getRemovedSentNanos()
+     */
+    boolean remove(byte[] digest) {
+        int slot = find(word(digest, 0), word(digest, 8), (int) (word(digest, 16) >>> 32));
+        int count = count(slot);
+        if (count == 0) {
+            return false;
+        }
+        removedIntendedNanos = intendedTimes[slot];
+        removedSentNanos = sentTimes[slot];
+        size--;
+        if (count > 1) {
+            table[slot * WORDS_PER_SLOT + 2] -= 1L << 32;
+        } else {
+            deleteSlot(slot);
+        }
+        return true;
+    }
+
+    long getRemovedIntendedNanos() {
+        return removedIntendedNanos;
+    }
+
+    long getRemovedSentNanos() {
+        return removedSentNanos;
+    }
+
+    /**
+     * @param generation
+     * @return number of digests added in an earlier generation that are still present
+     */
+    int countOlderThan(int generation) {
+        int older = 0;
+        for (int slot = 0; slot <= mask; slot++) {
+            if (count(slot) > 0 && generations[slot] < generation) {
+                older += count(slot);
+            }
+        }
+        return older;
+    }
+
+    /**
+     * @return the slot holding the digest, or the empty slot where it belongs
+     */
+    private int find(long w0, long w1, int w2) {
+        int slot = (int) (w0 ^ (w0 >>> 32)) & mask; //Digest bytes are already uniformly distributed
+        while (true) {
+            int base = slot * WORDS_PER_SLOT;
+            if (count(slot) == 0
+                    || (table[base] == w0 && table[base + 1] == w1 && (int) table[base + 2] == w2)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Remove the entry in slot and shift later entries of the same probe sequence back, so that no tombstones are
+     * needed.
+     */
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (count(next) > 0) {
+            int home = (int) (table[next * WORDS_PER_SLOT] ^ (table[next * WORDS_PER_SLOT] >>> 32)) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) { //Entry may move into the hole without passing its home
+                int from = next * WORDS_PER_SLOT;
+                store(hole, table[from], table[from + 1], table[from + 2], generations[next], intendedTimes[next], sentTimes[next]);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole * WORDS_PER_SLOT + 2] = 0;
+    }
+
+    private void resize(int slots) {
+        long[] oldTable = table;
+        int[] oldGenerations = generations;
+        long[] oldIntendedTimes = intendedTimes;
+        long[] oldSentTimes = sentTimes;
+        table = new long[slots * WORDS_PER_SLOT];
+        generations = new int[slots];
+        intendedTimes = new long[slots];
+        sentTimes = new long[slots];
+        mask = slots - 1;
+        for (int slot = 0; slot < oldGenerations.length; slot++) {
+            int base = slot * WORDS_PER_SLOT;
+            if ((oldTable[base + 2] >>> 32) > 0) {
+                store(find(oldTable[base], oldTable[base + 1], (int) oldTable[base + 2]), oldTable[base],
+                        oldTable[base + 1], oldTable[base + 2], oldGenerations[slot], oldIntendedTimes[slot], oldSentTimes[slot]);
+            }
+        }
+    }
+
+    private void store(int slot, long w0, long w1, long w2, int generation, long intendedNanos, long sentNanos) {
+        int base = slot * WORDS_PER_SLOT;
+        table[base] = w0;
+        table[base + 1] = w1;
+        table[base + 2] = w2;
+        generations[slot] = generation;
+        intendedTimes[slot] = intendedNanos;
+        sentTimes[slot] = sentNanos;
+    }
+
+    private int count(int slot) {
+        return (int) (table[slot * WORDS_PER_SLOT + 2] >>> 32);
+    }
+
+    /**
+     * Big-endian word of up to 8 digest bytes starting at offset, missing bytes read as zero.
+     */
+    private static long word(byte[] digest, int offset) {
+        long word = 0;
+        for (int i = 0; i < 8; i++) {
+            int index = offset + i;
+            word = (word << 8) | (index < HashEngines.WIRE_DIGEST_LENGTH ? digest[index] & 0xFF : 0);
+        }
+        return word;
+    }
+}
@@ -0,0 +1,160 @@
+package cs304.scaling.client;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.WireProtocol;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+class LoadConnection {
+    final SocketChannel channel;
+    final LoadGeneratorLoop loop; //Selector thread doing all I/O of this connection
+    final AtomicInteger dueSends; //Sends credited by the pacer that have not been started yet
+    final AtomicBoolean readyQueued; //True while the connection sits in the ready queue of its loop
+    final ByteBuffer partialReply; //Bytes of a reply split across reads
+    final ByteBuffer requestHeader; //Header of the v2 request being written, null for protocol v1
+    boolean awaitingPreamble; //True until the server has acknowledged protocol v2
+    Runnable paceTask; //Scheduled on the pacer once per send interval
+    long nextSendNanos; //Time the pacer credits the next send at, advanced by exactly one interval per send
+    long firstSendNanos; //Intended time of the first send, send n is due n intervals later
+    long sendsStarted;
+    SelectionKey selectionKey;
+    int sendingPayload; //Index of the payload being written, -1 when no write is in progress
+    int sendOffset; //Bytes of the current payload already written
+    ByteBuffer replayPayload; //Journal payload a TrafficReplay is writing, null when no write is in progress
+    int outstanding; //Payloads sent and not yet answered
+    private int[] inFlightPayloads; //Ring of the payloads sent and not yet answered in send order, -1 once answered
+    private long[] inFlightIntended;
+    private long[] inFlightSent;
+    private int inFlightHead;
+    private int inFlightTail;
+    private long removedIntendedNanos;
+    private long removedSentNanos;
+
+    /**
+     * @param channel
+     * @param loop null for a TrafficReplay connection
+     * @param protocolV2 true if the channel has sent the v2 preamble
+     */
+    LoadConnection(SocketChannel channel, LoadGeneratorLoop loop, boolean protocolV2) {
+        this.channel = channel;
+        this.loop = loop;
+        this.dueSends = new AtomicInteger(0);
+        this.readyQueued = new AtomicBoolean(false);
+        this.partialReply = ByteBuffer.allocate(Math.max(AppConstants.BYTES_PER_HASH, WireProtocol.REPLY_LENGTH));
+        if (protocolV2) {
+            this.requestHeader = ByteBuffer.allocate(WireProtocol.REQUEST_HEADER_LENGTH);
+            this.requestHeader.flip(); //Nothing to write yet
+            this.awaitingPreamble = true;
+            this.partialReply.limit(WireProtocol.PREAMBLE_LENGTH);
+        } else {
+            this.requestHeader = null;
+            this.partialReply.limit(AppConstants.BYTES_PER_HASH);
+        }
+        this.sendingPayload = -1;
+        this.inFlightPayloads = new int[16];
+        this.inFlightIntended = new long[16];
+        this.inFlightSent = new long[16];
+    }
+
+    /**
+     * Remember a payload that is being sent. Only called by the loop thread.
+     * @param payload
+     * @param intendedNanos
+     * @param sentNanos
+     * @return sequence number of the send, used as the request id with protocol v2
+     */
+    int addInFlight(int payload, long intendedNanos, long sentNanos) {
+        if (inFlightTail - inFlightHead == inFlightPayloads.length) {
+            growInFlight();
+        }
+        int sequence = inFlightTail++;
+        int slot = sequence & (inFlightPayloads.length - 1);
+        inFlightPayloads[slot] = payload;
+        inFlightIntended[slot] = intendedNanos;
+        inFlightSent[slot] = sentNanos;
+        return sequence;
+    }
+
+    /**
+     * Find the oldest unanswered send of payload. Replies mostly come back in send order, so this usually stops at the
+     * head of the ring.
+     * @param payload
+     * @return true if found, its times are then available from getRemovedIntendedNanos() and getRemovedSentNanos()
+     */
+    boolean removeInFlight(int payload) {
+        int mask = inFlightPayloads.length - 1;
+        for (int i = inFlightHead; i != inFlightTail; i++) {
+            int slot = i & mask;
+            if (inFlightPayloads[slot] == payload) {
+                removedIntendedNanos = inFlightIntended[slot];
+                removedSentNanos = inFlightSent[slot];
+                inFlightPayloads[slot] = -1;
+                while (inFlightHead != inFlightTail && inFlightPayloads[inFlightHead & mask] == -1) {
+                    inFlightHead++;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Look up an unanswered send by the request id a v2 reply carries, in constant time whatever the reply order.
+     * @param requestId
+     * @return index of the payload sent, -1 if the id is unknown or already answered. Its times are then available
+     * from getRemovedIntendedNanos() and getRemovedSentNanos()
+     */
+    int removeRequest(long requestId) {
+        int sequence = (int) requestId;
+        if (sequence != requestId || sequence - inFlightHead < 0 || sequence - inFlightTail >= 0) {
+            return -1;
+        }
+        int mask = inFlightPayloads.length - 1;
+        int slot = sequence & mask;
+        int payload = inFlightPayloads[slot];
+        if (payload == -1) {
+            return -1;
+        }
+        removedIntendedNanos = inFlightIntended[slot];
+        removedSentNanos = inFlightSent[slot];
+        inFlightPayloads[slot] = -1;
+        while (inFlightHead != inFlightTail && inFlightPayloads[inFlightHead & mask] == -1) {
+            inFlightHead++;
+        }
+        return payload;
+    }
+
+    long getRemovedIntendedNanos() {
+        return removedIntendedNanos;
+    }
+
+    long getRemovedSentNanos() {
+        return removedSentNanos;
+    }
+
+    /**
+     * Double the ring. Sends keep their sequence numbers, so each one moves to the slot its number maps to in the
+     * larger ring.
+     */
+    private void growInFlight() {
+        int length = inFlightPayloads.length;
+        int[] payloads = new int[length * 2];
+        long[] intended = new long[length * 2];
+        long[] sent = new long[length * 2];
+        for (int i = inFlightHead; i != inFlightTail; i++) {
+            int from = i & (length - 1);
+            int to = i & (length * 2 - 1);
+            payloads[to] = inFlightPayloads[from];
+            intended[to] = inFlightIntended[from];
+            sent[to] = inFlightSent[from];
+        }
+        inFlightPayloads = payloads;
+        inFlightIntended = intended;
+        inFlightSent = sent;
+    }
+}
@@ -0,0 +1,166 @@
+package cs304.scaling.client;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.HashedTimingWheel;
+import cs304.scaling.utils.LatencyHistogram;
+import cs304.scaling.utils.WireProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class LoadGenerator {
+    private final HashedTimingWheel pacer; //Credits the sends of every connection at its message rate
+    private final long sendIntervalNanos;
+    private final LongAdder messageSentCount;
+    private final LongAdder messageReceivedCount;
+    private final LongAdder unmatchedReplyCount; //Replies that are not the hash of any pooled payload
+    private final AtomicInteger activeConnections;
+    private final LongAdder outstandingOfClosed; //Payloads never answered on connections that were closed
+    private final LatencyHistogram responseTimes; //Reply time minus the intended send time, corrected for coordinated omission
+    private final LatencyHistogram serviceTimes; //Reply time minus the time the payload was actually written
+
+    private LoadGenerator(String hostname, int port, int messagingRate, int connectionCount, int loopCount) throws IOException {
+        pacer = new HashedTimingWheel("LoadGeneratorPacer", AppConstants.MIN_TIMER_TICK_NANOS, TimeUnit.NANOSECONDS,
+                AppConstants.TIMER_TICKS_PER_WHEEL);
+        sendIntervalNanos = TimeUnit.SECONDS.toNanos(1) / messagingRate;
+        messageSentCount = new LongAdder();
+        messageReceivedCount = new LongAdder();
+        unmatchedReplyCount = new LongAdder();
+        activeConnections = new AtomicInteger(0);
+        outstandingOfClosed = new LongAdder();
+        responseTimes = new LatencyHistogram();
+        serviceTimes = new LatencyHistogram();
+
+        boolean protocolV2 = AppConstants.CLIENT_PROTOCOL_VERSION == WireProtocol.V2;
+        int payloadSize = protocolV2 ? AppConstants.LOAD_PAYLOAD_SIZE : AppConstants.BYTES_PER_MESSAGE;
+        if (payloadSize < 0 || payloadSize > WireProtocol.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("scaling.load.payloadSize must be between 0 and " + WireProtocol.MAX_PAYLOAD_LENGTH);
+        }
+        int payloadCount = AppConstants.LOAD_CORPUS_SIZE > 0 ? AppConstants.LOAD_CORPUS_SIZE : AppConstants.LOAD_PAYLOAD_POOL_SIZE;
+        if ((long) payloadCount * payloadSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("scaling.load.corpus payloads of " + payloadSize + " bytes do not fit in 2 GB");
+        }
+        PayloadPool payloadPool = new PayloadPool(payloadCount, payloadSize);
+        payloadPool.setSkew(AppConstants.LOAD_CORPUS_SKEW);
+        LoadGeneratorLoop[] loops = new LoadGeneratorLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new LoadGeneratorLoop(this, payloadPool, i);
+            loops[i].start();
+        }
+        pacer.start();
+        new ClientProfile(this::printStats).startExecution();
+
+        Random rd = new Random();
+        InetSocketAddress address = new InetSocketAddress(hostname, port);
+        for (int i = 0; i < connectionCount; i++) {
+            SocketChannel channel = SocketChannel.open(address); //Connect blocking, I/O is non-blocking afterwards
+            if (protocolV2) {
+                ByteBuffer preamble = ByteBuffer.allocate(WireProtocol.PREAMBLE_LENGTH);
+                WireProtocol.putPreamble(preamble);
+                preamble.flip();
+                while (preamble.hasRemaining()) {
+                    channel.write(preamble);
+                }
+            }
+            channel.configureBlocking(false);
+            LoadConnection connection = new LoadConnection(channel, loops[i % loopCount], protocolV2);
+            connection.paceTask = () -> pace(connection);
+            connection.loop.register(connection);
+            activeConnections.incrementAndGet();
+
+            long startDelay = (long) (rd.nextDouble() * sendIntervalNanos); //Spread the connections over one interval
+            connection.nextSendNanos = System.nanoTime() + startDelay;
+            connection.firstSendNanos = connection.nextSendNanos;
+            pacer.schedule(connection.paceTask, startDelay, TimeUnit.NANOSECONDS);
+        }
+        System.out.println("Load generator connected " + connectionCount + " clients to server at " + hostname + ":"
+                + port + " using " + loopCount + " selector threads"
+                + (protocolV2 ? " and protocol v2 with " + payloadSize + " byte payloads" : "")
+                + (AppConstants.LOAD_CORPUS_SIZE > 0 ? ", picking from a corpus of " + payloadCount + " payloads"
+                + (AppConstants.LOAD_CORPUS_SKEW > 0 ? " with Zipf exponent " + AppConstants.LOAD_CORPUS_SKEW : "") : ""));
+    }
+
+    /**
+     * Runs on the pacer thread. Credits every send whose intended time has passed, so the rate holds even when the
+     * timing wheel fires late, and schedules the next run for the next intended send time.
+     * @param connection
+     */
+    private void pace(LoadConnection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        long now = System.nanoTime();
+        int due = 0;
+        while (connection.nextSendNanos <= now) {
+            due++;
+            connection.nextSendNanos += sendIntervalNanos;
+        }
+        if (due > 0) {
+            connection.loop.creditSends(connection, due);
+        }
+        pacer.schedule(connection.paceTask, connection.nextSendNanos - now, TimeUnit.NANOSECONDS);
+    }
+
+    void recordSent() {
+        messageSentCount.increment();
+    }
+
+    long getSendIntervalNanos() {
+        return sendIntervalNanos;
+    }
+
+    void recordReply(long responseNanos, long serviceNanos) {
+        messageReceivedCount.increment();
+        responseTimes.record(responseNanos);
+        serviceTimes.record(serviceNanos);
+    }
+
+    void recordUnmatchedReply() {
+        messageReceivedCount.increment();
+        unmatchedReplyCount.increment();
+    }
+
+    void recordClosed(LoadConnection connection) {
+        activeConnections.decrementAndGet();
+        outstandingOfClosed.add(connection.outstanding);
+        System.out.println("Server closed a connection with " + connection.outstanding + " messages unanswered");
+    }
+
+    void printStats() {
+        long sent = messageSentCount.sumThenReset();
+        long received = messageReceivedCount.sumThenReset();
+        System.out.println("------------------------------------------------------------------\n");
+        System.out.println("(" + System.currentTimeMillis() + ")");
+        System.out.println("Active Connections:\t\t" + activeConnections.get() + "\n"
+                + "Total Sent Count:\t\t" + sent + "\t(" + sent / AppConstants.STATS_LOGGER_INTERVAL_SECS + " messages/s)\n"
+                + "Total Received Count:\t\t" + received + "\t(" + received / AppConstants.STATS_LOGGER_INTERVAL_SECS + " messages/s)\n"
+                + "Unmatched Replies:\t\t" + unmatchedReplyCount.sumThenReset() + "\n"
+                + "Unanswered On Close:\t\t" + outstandingOfClosed.sumThenReset() + "\n"
+                + "Response Time:\t\t\t" + responseTimes.takeSnapshot().formatPercentiles() + "\n"
+                + "Service Time:\t\t\t" + serviceTimes.takeSnapshot().formatPercentiles() + "\n");
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Please provide at least 4 arguments.\nUsage: "
+                    + "java cs304.scaling.client.LoadGenerator <server-host> <server-port> <message-rate> <connections> [selector-threads]\n"
+                    + "Exiting");
+            System.exit(1);
+        }
+        int loopCount = args.length > 4 ? Integer.parseInt(args[4])
+                : Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        try {
+            new LoadGenerator(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), loopCount);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package cs304.scaling.client;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.WireProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+class LoadGeneratorLoop extends Thread {
+    private final LoadGenerator generator;
+    private final PayloadPool payloadPool;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<LoadConnection> pendingConnections; //Connected channels waiting to be registered
+    private final ConcurrentLinkedQueue<LoadConnection> readyConnections; //Connections with sends credited by the pacer
+    private final ByteBuffer[] payloadViews; //One view per pooled payload, only used by this thread
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer[] requestBuffers; //Header and payload of a v2 request, written with one gathering write
+    private int nextPayload;
+
+    LoadGeneratorLoop(LoadGenerator generator, PayloadPool payloadPool, int loopId) throws IOException {
+        super("LoadGeneratorLoop-" + loopId);
+        this.generator = generator;
+        this.payloadPool = payloadPool;
+        this.selector = Selector.open();
+        this.pendingConnections = new ConcurrentLinkedQueue<>();
+        this.readyConnections = new ConcurrentLinkedQueue<>();
+        this.payloadViews = new ByteBuffer[payloadPool.size()];
+        for (int i = 0; i < payloadViews.length; i++) {
+            payloadViews[i] = payloadPool.newView(i);
+        }
+        this.readBuffer = ByteBuffer.allocateDirect(AppConstants.BYTES_PER_HASH * AppConstants.HASHES_PER_READ);
+        this.requestBuffers = new ByteBuffer[2];
+        this.nextPayload = loopId;
+    }
+
+    void register(LoadConnection connection) {
+        pendingConnections.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Credit sends to a connection. Called by the pacer thread, the writes happen on this loop.
+     * @param connection
+     * @param sends
+     */
+    void creditSends(LoadConnection connection, int sends) {
+        connection.dueSends.addAndGet(sends);
+        if (connection.readyQueued.compareAndSet(false, true)) {
+            readyConnections.add(connection);
+            selector.wakeup(); //Only the first wakeup per select() costs a system call
+        }
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                registerPendingConnections();
+                LoadConnection ready;
+                while ((ready = readyConnections.poll()) != null) {
+                    ready.readyQueued.set(false); //Credits added from here on queue the connection again
+                    if (ready.channel.isOpen() && ready.selectionKey != null) {
+                        write(ready);
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    LoadConnection connection = (LoadConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(connection);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void registerPendingConnections() {
+        LoadConnection connection;
+        while ((connection = pendingConnections.poll()) != null) {
+            try {
+                connection.selectionKey = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Write credited sends until they are used up or the socket send buffer is full, in which case the connection
+     * waits for OP_WRITE to finish the payload in progress.
+     */
+    private void write(LoadConnection connection) {
+        try {
+            while (true) {
+                if (connection.sendingPayload < 0) {
+                    if (connection.dueSends.get() == 0) {
+                        break;
+                    }
+                    connection.dueSends.decrementAndGet();
+                    connection.sendingPayload = AppConstants.LOAD_CORPUS_SIZE > 0 ? payloadPool.pick()
+                            : nextPayload++ % payloadViews.length;
+                    connection.sendOffset = 0;
+                    long intendedNanos = connection.firstSendNanos + connection.sendsStarted++ * generator.getSendIntervalNanos();
+                    int sequence = connection.addInFlight(connection.sendingPayload, intendedNanos, System.nanoTime());
+                    if (connection.requestHeader != null) {
+                        connection.requestHeader.clear();
+                        connection.requestHeader.putInt(payloadViews[connection.sendingPayload].capacity());
+                        connection.requestHeader.putLong(sequence);
+                        connection.requestHeader.flip();
+                    }
+                }
+                ByteBuffer view = payloadViews[connection.sendingPayload];
+                view.limit(view.capacity()).position(connection.sendOffset);
+                ByteBuffer header = connection.requestHeader;
+                if (header != null) {
+                    requestBuffers[0] = header;
+                    requestBuffers[1] = view;
+                    connection.channel.write(requestBuffers);
+                } else {
+                    connection.channel.write(view);
+                }
+                connection.sendOffset = view.position();
+                if (view.hasRemaining() || (header != null && header.hasRemaining())) {
+                    connection.selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.sendingPayload = -1;
+                connection.outstanding++;
+                generator.recordSent();
+            }
+            if ((connection.selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                connection.selectionKey.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            close(connection, e);
+        }
+    }
+
+    private void read(LoadConnection connection) {
+        readBuffer.clear();
+        try {
+            if (connection.channel.read(readBuffer) == -1) {
+                close(connection, null);
+                return;
+            }
+        } catch (IOException e) {
+            close(connection, e);
+            return;
+        }
+        readBuffer.flip();
+
+        ByteBuffer partial = connection.partialReply;
+        if (connection.awaitingPreamble) {
+            fill(partial, readBuffer);
+            if (partial.hasRemaining()) {
+                return;
+            }
+            if (!WireProtocol.isPreamble(partial, 0)) {
+                System.out.println("Server did not acknowledge protocol v2");
+                close(connection, null);
+                return;
+            }
+            connection.awaitingPreamble = false;
+            partial.clear();
+            partial.limit(WireProtocol.REPLY_LENGTH);
+        }
+        int replyLength = partial.limit();
+        if (partial.position() > 0) { //Complete the reply left over from the previous read first
+            fill(partial, readBuffer);
+            if (partial.hasRemaining()) {
+                return;
+            }
+            matchReply(connection, partial, 0);
+            partial.clear();
+            partial.limit(replyLength);
+        }
+        while (readBuffer.remaining() >= replyLength) {
+            matchReply(connection, readBuffer, readBuffer.position());
+            readBuffer.position(readBuffer.position() + replyLength);
+        }
+        partial.put(readBuffer);
+    }
+
+    private static void fill(ByteBuffer partial, ByteBuffer from) {
+        while (partial.hasRemaining() && from.hasRemaining()) {
+            partial.put(from.get());
+        }
+    }
+
+    private void matchReply(LoadConnection connection, ByteBuffer replies, int offset) {
+        connection.outstanding--;
+        boolean matched;
+        if (connection.requestHeader != null) {
+            int payload = connection.removeRequest(replies.getLong(offset)); //No search, the reply names its request
+            matched = payload >= 0 && payloadPool.matchesDigest(payload, replies, offset + 8);
+        } else {
+            int payload = payloadPool.indexOfReply(replies, offset);
+            matched = payload >= 0 && connection.removeInFlight(payload);
+        }
+        if (matched) {
+            long now = System.nanoTime();
+            generator.recordReply(now - connection.getRemovedIntendedNanos(), now - connection.getRemovedSentNanos());
+        } else {
+            generator.recordUnmatchedReply();
+        }
+    }
+
+    private void close(LoadConnection connection, IOException cause) {
+        if (cause != null && AppConstants.DEBUG) {
+            cause.printStackTrace();
+        }
+        connection.selectionKey.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        generator.recordClosed(connection);
+    }
+}
@@ -0,0 +1,136 @@
+package cs304.scaling.client;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.HashEngines;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+class PayloadPool {
+    private final ByteBuffer[] payloads; //Random payloads generated once, slices of one direct allocation
+    private final long[] replyKeys; //Sorted keys of the replies expected for the payloads
+    private final int[] replyPayloads; //Index of the payload each sorted reply key belongs to
+    private final byte[] digests; //Raw digest of every payload as carried by v2 replies, WIRE_DIGEST_LENGTH bytes each
+    private double[] pickThresholds; //Cumulative Zipf probabilities of the payloads for pick(), null picks uniformly
+
+    /**
+     * Generate count random payloads and precompute the reply the server sends for each of them, so that no payload is
+     * generated or hashed while sending.
+     * @param count
+     * @param payloadSize AppConstants.BYTES_PER_MESSAGE for protocol v1
+     */
+    PayloadPool(int count, int payloadSize) {
+        payloads = new ByteBuffer[count];
+        replyKeys = new long[count];
+        replyPayloads = new int[count];
+        digests = new byte[count * HashEngines.WIRE_DIGEST_LENGTH];
+        Integer[] order = new Integer[count];
+        ByteBuffer slab = ByteBuffer.allocateDirect(Math.max(1, count * payloadSize));
+        byte[] randomBytes = new byte[payloadSize];
+        byte[] digest = new byte[HashEngines.WIRE_DIGEST_LENGTH];
+        Random rd = new Random();
+        for (int i = 0; i < count; i++) {
+            rd.nextBytes(randomBytes);
+            slab.limit((i + 1) * payloadSize);
+            slab.position(i * payloadSize);
+            payloads[i] = slab.slice();
+            payloads[i].put(randomBytes).flip();
+
+            HashEngines.hashToDigest(randomBytes, digest);
+            System.arraycopy(digest, 0, digests, i * HashEngines.WIRE_DIGEST_LENGTH, HashEngines.WIRE_DIGEST_LENGTH);
+            byte[] reply = HashEngines.hashToString(randomBytes).getBytes(StandardCharsets.US_ASCII);
+            replyKeys[i] = replyKey(ByteBuffer.wrap(reply), 0);
+            order[i] = i;
+        }
+        long[] keys = replyKeys.clone();
+        Arrays.sort(order, (x, y) -> Long.compare(keys[x], keys[y]));
+        for (int i = 0; i < count; i++) {
+            replyKeys[i] = keys[order[i]];
+            replyPayloads[i] = order[i];
+        }
+    }
+
+    int size() {
+        return payloads.length;
+    }
+
+    /**
+     * Make pick() favour low payload indices with the given Zipf exponent, so a few payloads are sent far more often
+     * than the rest, like retries of popular requests.
+     * @param exponent 0 keeps picking every payload equally often
+     */
+    void setSkew(double exponent) {
+        if (exponent <= 0) {
+            pickThresholds = null;
+            return;
+        }
+        double[] thresholds = new double[payloads.length];
+        double sum = 0;
+        for (int i = 0; i < thresholds.length; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            thresholds[i] = sum;
+        }
+        for (int i = 0; i < thresholds.length; i++) {
+            thresholds[i] /= sum;
+        }
+        pickThresholds = thresholds;
+    }
+
+    /**
+     * @return index of a random payload, drawn with the skew set by setSkew()
+     */
+    int pick() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (pickThresholds == null) {
+            return random.nextInt(payloads.length);
+        }
+        int found = Arrays.binarySearch(pickThresholds, random.nextDouble());
+        return Math.min(payloads.length - 1, found >= 0 ? found : -found - 1);
+    }
+
+    /**
+     * @param index
+     * @return a new view of the payload, to be reused by a single thread for every send of that payload
+     */
+    ByteBuffer newView(int index) {
+        return payloads[index].duplicate();
+    }
+
+    /**
+     * @param replies
+     * @param offset absolute index of a reply of AppConstants.BYTES_PER_HASH bytes in replies
+     * @return index of the payload the reply is the hash of, -1 if it matches none
+     */
+    int indexOfReply(ByteBuffer replies, int offset) {
+        int found = Arrays.binarySearch(replyKeys, replyKey(replies, offset));
+        return found >= 0 ? replyPayloads[found] : -1;
+    }
+
+    /**
+     * @param payload
+     * @param replies
+     * @param offset absolute index of a raw digest of HashEngines.WIRE_DIGEST_LENGTH bytes in replies
+     * @return true if it is the digest of the payload
+     */
+    boolean matchesDigest(int payload, ByteBuffer replies, int offset) {
+        int base = payload * HashEngines.WIRE_DIGEST_LENGTH;
+        for (int i = 0; i < HashEngines.WIRE_DIGEST_LENGTH; i++) {
+            if (replies.get(offset + i) != digests[base + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long replyKey(ByteBuffer replies, int offset) {
+        long key = 0;
+        for (int i = 0; i < AppConstants.BYTES_PER_HASH; i++) {
+            key = key * 31 + replies.get(offset + i);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,353 @@
+package cs304.scaling.client;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.LatencyHistogram;
+import cs304.scaling.utils.TrafficJournal;
+import cs304.scaling.utils.WireProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// * Re-drives a traffic journal captured by a Server against a Server. Every captured connection gets a protocol v2
+// * connection of its own, and every request is sent with its captured payload at its captured arrival time divided by
+// * the speed-up, or back to back at max speed. Payloads are written to the sockets straight from the memory-mapped
+// * segments without being copied into the heap. Response times are measured from the time a request was due, like
+// * with the LoadGenerator, so a server that cannot keep up with the recorded load shows it.
+
+
+public class TrafficReplay {
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10); //Wait for the last replies at most this long without progress
+
+    private final InetSocketAddress address;
+    private final double speed; //Multiple of the captured rate, 0 for max speed
+    private final Selector selector;
+    private final Map<Long, LoadConnection> connections; //Replay connection of every captured connection id
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer[] requestBuffers; //Header and payload of a request, written with one gathering write
+    private final LongAdder messageSentCount;
+    private final LongAdder messageReceivedCount;
+    private final LongAdder unmatchedReplyCount;
+    private final LongAdder unansweredOfClosed;
+    private final LatencyHistogram responseTimes; //Reply time minus the time the request was due
+    private final LatencyHistogram serviceTimes; //Reply time minus the time the request was actually written
+    private volatile long lagNanos; //How late the last request was started compared to its due time
+    private long outstanding; //Requests sent and not answered on open connections
+    private long statsStartNanos; //Start of the window the next printStats() reports on, guarded by this
+
+    private TrafficReplay(String hostname, int port, double speed) throws IOException {
+        this.address = new InetSocketAddress(hostname, port);
+        this.speed = speed;
+        this.selector = Selector.open();
+        this.connections = new HashMap<>();
+        this.readBuffer = ByteBuffer.allocateDirect(WireProtocol.REPLY_LENGTH * AppConstants.HASHES_PER_READ);
+        this.requestBuffers = new ByteBuffer[2];
+        this.messageSentCount = new LongAdder();
+        this.messageReceivedCount = new LongAdder();
+        this.unmatchedReplyCount = new LongAdder();
+        this.unansweredOfClosed = new LongAdder();
+        this.responseTimes = new LatencyHistogram();
+        this.serviceTimes = new LatencyHistogram();
+        this.statsStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Send every record of the segments in order, then wait for the outstanding replies.
+     * @param segments oldest first
+     */
+    private void replay(List<Path> segments) throws IOException {
+        long firstArrivalNanos = -1;
+        long startNanos = 0;
+        long records = 0;
+        for (Path path : segments) {
+            MappedByteBuffer segment = TrafficJournal.mapForReading(path);
+            int end = segment.limit();
+            while (segment.remaining() >= TrafficJournal.RECORD_HEADER_LENGTH) {
+                int record = segment.position();
+                int length = segment.getInt(record);
+                int payloadStart = record + TrafficJournal.RECORD_HEADER_LENGTH;
+                if (length < 0 || length > WireProtocol.MAX_PAYLOAD_LENGTH || payloadStart + length > end) {
+                    throw new IOException(path + " holds a corrupt record at offset " + record);
+                }
+                long arrivalNanos = segment.getLong(record + TrafficJournal.RECORD_ARRIVAL_OFFSET);
+                if (firstArrivalNanos < 0) {
+                    firstArrivalNanos = arrivalNanos;
+                    startNanos = System.nanoTime();
+                }
+                long dueNanos = speed > 0 ? startNanos + (long) ((arrivalNanos - firstArrivalNanos) / speed) : System.nanoTime();
+
+                segment.limit(payloadStart + length).position(payloadStart);
+                ByteBuffer payload = segment.slice(); //A view of the mapped pages, not a copy
+                segment.limit(end).position(payloadStart + length);
+
+                LoadConnection connection = connectionFor(segment.getLong(record + TrafficJournal.RECORD_CONNECTION_OFFSET));
+                awaitTurn(connection, dueNanos);
+                if (connection.channel.isOpen()) {
+                    send(connection, payload, dueNanos);
+                }
+                records++;
+            }
+            System.out.println("Replayed " + path.getFileName() + ", " + records + " requests so far");
+        }
+        drain();
+    }
+
+    /**
+     * @param capturedId connection id in the journal
+     * @return the open replay connection standing in for it, a new one if it does not exist yet or was closed
+     */
+    private LoadConnection connectionFor(long capturedId) throws IOException {
+        LoadConnection connection = connections.get(capturedId);
+        if (connection != null && connection.channel.isOpen()) {
+            return connection;
+        }
+        SocketChannel channel = SocketChannel.open(address); //Connect blocking, I/O is non-blocking afterwards
+        ByteBuffer preamble = ByteBuffer.allocate(WireProtocol.PREAMBLE_LENGTH);
+        WireProtocol.putPreamble(preamble);
+        preamble.flip();
+        while (preamble.hasRemaining()) {
+            channel.write(preamble);
+        }
+        channel.configureBlocking(false);
+        connection = new LoadConnection(channel, null, true);
+        connection.selectionKey = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.put(capturedId, connection);
+        return connection;
+    }
+
+    /**
+     * Serve replies until the request is due and the previous request of its connection is completely written.
+     * @param connection
+     * @param dueNanos
+     */
+    private void awaitTurn(LoadConnection connection, long dueNanos) throws IOException {
+        while (true) {
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos <= 0 && (connection.replayPayload == null || !connection.channel.isOpen())) {
+                lagNanos = -waitNanos;
+                return;
+            }
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+            if (connection.replayPayload != null || waitMillis > 0) {
+                selector.select(Math.max(1, waitMillis));
+            } else {
+                selector.selectNow();
+                LockSupport.parkNanos(waitNanos); //Less than a millisecond, select() cannot wait that precisely
+            }
+            serveSelectedKeys();
+        }
+    }
+
+    private void send(LoadConnection connection, ByteBuffer payload, long dueNanos) {
+        int sequence = connection.addInFlight(0, dueNanos, System.nanoTime());
+        connection.requestHeader.clear();
+        connection.requestHeader.putInt(payload.remaining());
+        connection.requestHeader.putLong(sequence);
+        connection.requestHeader.flip();
+        connection.replayPayload = payload;
+        connection.outstanding++;
+        outstanding++;
+        write(connection);
+    }
+
+    /**
+     * Write the request in progress, or wait for OP_WRITE if the socket send buffer is full.
+     * @param connection
+     */
+    private void write(LoadConnection connection) {
+        requestBuffers[0] = connection.requestHeader;
+        requestBuffers[1] = connection.replayPayload;
+        try {
+            connection.channel.write(requestBuffers);
+        } catch (IOException e) {
+            close(connection, e);
+            return;
+        }
+        if (connection.replayPayload.hasRemaining()) {
+            connection.selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+        connection.replayPayload = null;
+        messageSentCount.increment();
+        if ((connection.selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            connection.selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void serveSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            LoadConnection connection = (LoadConnection) key.attachment();
+            if (key.isValid() && key.isReadable()) {
+                read(connection);
+            }
+            if (key.isValid() && key.isWritable() && connection.replayPayload != null) {
+                write(connection);
+            }
+        }
+    }
+
+    private void read(LoadConnection connection) {
+        readBuffer.clear();
+        try {
+            if (connection.channel.read(readBuffer) == -1) {
+                close(connection, null);
+                return;
+            }
+        } catch (IOException e) {
+            close(connection, e);
+            return;
+        }
+        readBuffer.flip();
+
+        ByteBuffer partial = connection.partialReply;
+        if (connection.awaitingPreamble) {
+            fill(partial, readBuffer);
+            if (partial.hasRemaining()) {
+                return;
+            }
+            if (!WireProtocol.isPreamble(partial, 0)) {
+                System.out.println("Server did not acknowledge protocol v2");
+                close(connection, null);
+                return;
+            }
+            connection.awaitingPreamble = false;
+            partial.clear();
+            partial.limit(WireProtocol.REPLY_LENGTH);
+        }
+        if (partial.position() > 0) { //Complete the reply left over from the previous read first
+            fill(partial, readBuffer);
+            if (partial.hasRemaining()) {
+                return;
+            }
+            matchReply(connection, partial.getLong(0));
+            partial.clear();
+            partial.limit(WireProtocol.REPLY_LENGTH);
+        }
+        while (readBuffer.remaining() >= WireProtocol.REPLY_LENGTH) {
+            matchReply(connection, readBuffer.getLong(readBuffer.position()));
+            readBuffer.position(readBuffer.position() + WireProtocol.REPLY_LENGTH);
+        }
+        partial.put(readBuffer);
+    }
+
+    private static void fill(ByteBuffer partial, ByteBuffer from) {
+        while (partial.hasRemaining() && from.hasRemaining()) {
+            partial.put(from.get());
+        }
+    }
+
+    private void matchReply(LoadConnection connection, long requestId) {
+        messageReceivedCount.increment();
+        if (connection.removeRequest(requestId) < 0) {
+            unmatchedReplyCount.increment();
+            return;
+        }
+        connection.outstanding--;
+        outstanding--;
+        long now = System.nanoTime();
+        responseTimes.record(now - connection.getRemovedIntendedNanos());
+        serviceTimes.record(now - connection.getRemovedSentNanos());
+    }
+
+    /**
+     * Wait for the replies still outstanding, giving up after DRAIN_TIMEOUT_NANOS without one.
+     */
+    private void drain() throws IOException {
+        long lastProgressNanos = System.nanoTime();
+        long lastOutstanding = outstanding;
+        while (outstanding > 0 && System.nanoTime() - lastProgressNanos < DRAIN_TIMEOUT_NANOS) {
+            selector.select(100);
+            serveSelectedKeys();
+            if (outstanding != lastOutstanding) {
+                lastOutstanding = outstanding;
+                lastProgressNanos = System.nanoTime();
+            }
+        }
+        unansweredOfClosed.add(outstanding); //Given up on
+    }
+
+    private void close(LoadConnection connection, IOException cause) {
+        if (cause != null && AppConstants.DEBUG) {
+            cause.printStackTrace();
+        }
+        connection.selectionKey.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        connection.replayPayload = null;
+        outstanding -= connection.outstanding;
+        unansweredOfClosed.add(connection.outstanding);
+        System.out.println("Server closed a connection with " + connection.outstanding + " requests unanswered");
+    }
+
+    /**
+     * Print the counts and latencies since the previous call, also called once more when the replay is done.
+     */
+    synchronized void printStats() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - statsStartNanos) / 1e9; //The last window is usually shorter than the interval
+        statsStartNanos = now;
+        long sent = messageSentCount.sumThenReset();
+        long received = messageReceivedCount.sumThenReset();
+        System.out.println("------------------------------------------------------------------\n");
+        System.out.println("(" + System.currentTimeMillis() + ")");
+        System.out.println("Total Sent Count:\t\t" + sent + "\t(" + (long) (sent / seconds) + " messages/s)\n"
+                + "Total Received Count:\t\t" + received + "\t(" + (long) (received / seconds) + " messages/s)\n"
+                + "Unmatched Replies:\t\t" + unmatchedReplyCount.sumThenReset() + "\n"
+                + "Unanswered Requests:\t\t" + unansweredOfClosed.sumThenReset() + "\n"
+                + "Behind Schedule:\t\t" + String.format("%.3f ms", lagNanos / 1e6) + "\n"
+                + "Response Time:\t\t\t" + responseTimes.takeSnapshot().formatPercentiles() + "\n"
+                + "Service Time:\t\t\t" + serviceTimes.takeSnapshot().formatPercentiles() + "\n");
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Please provide at least 3 arguments.\nUsage: "
+                    + "java cs304.scaling.client.TrafficReplay <server-host> <server-port> <journal-directory> [speed|max]\n"
+                    + "Exiting");
+            System.exit(1);
+        }
+        double speed = args.length < 4 ? 1 : "max".equals(args[3]) ? 0 : Double.parseDouble(args[3]);
+        if (speed < 0 || Double.isNaN(speed) || (speed == 0 && !"max".equals(args[3]))) {
+            System.out.println("Speed must be a positive multiple of the captured rate or \"max\"");
+            System.exit(1);
+        }
+        try {
+            List<Path> segments = TrafficJournal.listSegments(Paths.get(args[2]));
+            if (segments.isEmpty()) {
+                System.out.println("No journal segments in " + args[2]);
+                System.exit(1);
+            }
+            TrafficReplay replay = new TrafficReplay(args[0], Integer.parseInt(args[1]), speed);
+            new ClientProfile(replay::printStats).startExecution();
+            System.out.println("Replaying " + segments.size() + " journal segments to " + args[0] + ":" + args[1]
+                    + (speed > 0 ? " at " + speed + "x the captured rate" : " at max speed"));
+            long startNanos = System.nanoTime();
+            replay.replay(segments);
+            System.out.println("Replay finished after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+            replay.printStats();
+            System.exit(0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -1,19 +1,116 @@
 package cs304.scaling.functions;
 
-import java.util.LinkedList;
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.HashEngine;
+import cs304.scaling.utils.HashEngines;
+import cs304.scaling.utils.MultiBufferSHA1;
+import cs304.scaling.utils.ResultCache;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// * Runs the tasks of one batch in order on a worker. With -Dscaling.hash.multibuffer=true (SHA-1 only) the full-size
+// * messages of the batch are hashed MultiBufferSHA1.LANES at a time instead. That stage is opt-in and off by default
+// * because it is not a throughput win everywhere: on CPUs with the SHA extensions the JDK's intrinsic MessageDigest is
+// * several times faster (about 1.1 GB/s against 220 MB/s per core on 8KB messages), and without them the two are
+// * about even. Measure with HashEngineBenchmark before turning it on.
 
 public class BatchExecutorTask implements TaskInterface {
-    private LinkedList<TaskInterface> batch;
+    private static final boolean MULTI_BUFFER_HASHING = AppConstants.MULTI_BUFFER_HASHING
+            && ("SHA-1".equalsIgnoreCase(AppConstants.HASH_ALGORITHM) || "SHA1".equalsIgnoreCase(AppConstants.HASH_ALGORITHM));
+    private static final ThreadLocal<Lanes> THREAD_LANES = ThreadLocal.withInitial(Lanes::new);
+
+    private List<TaskInterface> batch;
 
-    public BatchExecutorTask(LinkedList<TaskInterface> batch) {
+    public BatchExecutorTask(List<TaskInterface> batch) {
         this.batch = batch;
     }
 
     @Override
     public void onTask() {
+        if (MULTI_BUFFER_HASHING) {
+            executeInLanes();
+            return;
+        }
         for (TaskInterface taskInterface : batch) {
             taskInterface.onTask(); //Execute the task for each instance of task
         }
     }
+
+    /**
+     * Hash full-size messages MultiBufferSHA1.LANES at a time. Any other task, and whatever is left over at the end of
+     * the batch, runs on its own after the messages gathered before it, so tasks still complete in batch order. With
+     * the result cache enabled, cached messages are answered right away and only the misses take up lanes.
+     */
+    private void executeInLanes() {
+        Lanes lanes = THREAD_LANES.get();
+        ResultCache cache = HashEngines.RESULT_CACHE;
+        int gathered = 0;
+        for (TaskInterface taskInterface : batch) {
+            if (taskInterface instanceof ReadWriter
+                    && ((ReadWriter) taskInterface).getPayload().remaining() == AppConstants.BYTES_PER_MESSAGE) {
+                ReadWriter task = (ReadWriter) taskInterface;
+                if (cache.isEnabled()) {
+                    long fingerprint = cache.fingerprint(task.getPayload());
+                    int length = cache.lookup(task.getPayload(), fingerprint, lanes.scalarDigest);
+                    if (length >= 0) {
+                        task.onHashed(lanes.scalarDigest, length);
+                        continue;
+                    }
+                    lanes.fingerprints[gathered] = fingerprint;
+                }
+                lanes.tasks[gathered] = task;
+                lanes.payloads[gathered] = task.getPayload();
+                if (++gathered == MultiBufferSHA1.LANES) {
+                    lanes.hasher.digest(lanes.payloads, lanes.digests);
+                    for (int l = 0; l < MultiBufferSHA1.LANES; l++) {
+                        if (cache.isEnabled()) {
+                            cache.store(lanes.payloads[l], lanes.fingerprints[l], lanes.digests[l], MultiBufferSHA1.DIGEST_LENGTH);
+                        }
+                        lanes.tasks[l].onHashed(lanes.digests[l], MultiBufferSHA1.DIGEST_LENGTH);
+                    }
+                    gathered = lanes.clear(gathered);
+                }
+            } else {
+                gathered = lanes.executeScalar(gathered); //Ragged message or another kind of task
+                taskInterface.onTask();
+            }
+        }
+        lanes.executeScalar(gathered);
+    }
+
+    private static final class Lanes {
+        private final MultiBufferSHA1 hasher = new MultiBufferSHA1();
+        private final ReadWriter[] tasks = new ReadWriter[MultiBufferSHA1.LANES];
+        private final ByteBuffer[] payloads = new ByteBuffer[MultiBufferSHA1.LANES];
+        private final byte[][] digests = new byte[MultiBufferSHA1.LANES][MultiBufferSHA1.DIGEST_LENGTH];
+        private final long[] fingerprints = new long[MultiBufferSHA1.LANES]; //Result cache keys of the gathered messages
+        private final byte[] scalarDigest = new byte[MultiBufferSHA1.DIGEST_LENGTH];
+
+        private int executeScalar(int gathered) {
+            ResultCache cache = HashEngines.RESULT_CACHE;
+            for (int l = 0; l < gathered; l++) {
+                if (!cache.isEnabled()) {
+                    tasks[l].onTask();
+                    continue;
+                }
+                HashEngine engine = HashEngines.threadEngine(); //Already missed the cache, so do not look it up again
+                int position = payloads[l].position();
+                engine.update(payloads[l]);
+                int length = engine.digest(scalarDigest, 0);
+                payloads[l].position(position);
+                cache.store(payloads[l], fingerprints[l], scalarDigest, length);
+                tasks[l].onHashed(scalarDigest, length);
+            }
+            return clear(gathered);
+        }
+
+        private int clear(int gathered) {
+            for (int l = 0; l < gathered; l++) {
+                tasks[l] = null;
+                payloads[l] = null;
+            }
+            return 0;
+        }
+    }
 }
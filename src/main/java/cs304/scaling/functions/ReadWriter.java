@@ -1,49 +1,98 @@
 package cs304.scaling.functions;
 
+import cs304.scaling.server.ClientConnection;
+import cs304.scaling.server.PipelineEvents;
 import cs304.scaling.utils.AppConstants;
-import cs304.scaling.utils.SHA1Hasher;
+import cs304.scaling.utils.BufferPools;
+import cs304.scaling.utils.HashEngines;
+import cs304.scaling.utils.WireProtocol;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
 
 
 public class ReadWriter implements TaskInterface {
-    private SelectionKey selectionKey;
+    private ClientConnection connection;
+    private ByteBuffer payload; //Complete frame read by the selector thread, owned by this task until it is released
+    private long requestId; //Echoed in the reply when the connection speaks protocol v2
+    private long batchId;
+    private long batchedNanos; //When the task was added to its batch, for the queue wait of the hash event
 
-    public ReadWriter(SelectionKey selectionKey) {
-        this.selectionKey = selectionKey;
+    public ReadWriter(ClientConnection connection, ByteBuffer payload) {
+        this(connection, payload, 0);
+    }
+
+    public ReadWriter(ClientConnection connection, ByteBuffer payload, long requestId) {
+        this.connection = connection;
+        this.payload = payload;
+        this.requestId = requestId;
+    }
+
+    ByteBuffer getPayload() {
+        return payload;
+    }
+
+    @Override
+    public void onBatched(long batchId) {
+        this.batchId = batchId;
+        this.batchedNanos = System.nanoTime();
     }
 
     @Override
     public void onTask() {
-        SocketChannel channel = (SocketChannel) selectionKey.channel(); //Extract channel from selection key
-        ByteBuffer readBuffer = ByteBuffer.allocate(AppConstants.BYTES_PER_MESSAGE);
-
-        try {
-            int numBytesRead = 0;
-            while (readBuffer.hasRemaining() && numBytesRead != -1) {
-                numBytesRead = channel.read(readBuffer); //Read bytes into a byte buffer
-            }
-            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
-
-        } catch (IOException e) {
-            e.printStackTrace();
+        PipelineEvents.Hash hashEvent = new PipelineEvents.Hash();
+        hashEvent.begin();
+        long startNanos = System.nanoTime();
+        ByteBuffer hashBuffer = BufferPools.HASHES.acquire();
+
+        int payloadBytes = payload.remaining();
+        if (connection.getProtocolVersion() == WireProtocol.V2) {
+            hashBuffer.putLong(requestId);
+            HashEngines.digestInto(payload, hashBuffer);
+        } else {
+            HashEngines.hashInto(payload, hashBuffer); //Hash straight into the reply buffer, already padded to 40 bytes
         }
-        String hashOfPayload = SHA1Hasher.SHA1FromBytes(readBuffer.array());
-        hashOfPayload = String.format("%40s", hashOfPayload).replace(" ", "-"); //Pad hash to make it length 40. Essential for synchronizing sizes of messages
-        byte[] hashBytes = hashOfPayload.getBytes();
-        ByteBuffer byteBuffer = ByteBuffer.wrap(hashBytes); //Wrap computed hash into a byte buffer
-        while (byteBuffer.hasRemaining()) {
-            try {
-                if (AppConstants.DEBUG) {
-                    System.out.println("Writing hash to Client " + hashOfPayload);
-                }
-                channel.write(byteBuffer); //Write hash to the client that sent the message
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        commitHashEvent(hashEvent, startNanos, payloadBytes, false);
+        reply(hashBuffer);
+    }
+
+    /**
+     * Complete the task with a digest computed by the batch, instead of hashing the payload in onTask().
+     * @param digest
+     * @param length
+     */
+    void onHashed(byte[] digest, int length) {
+        PipelineEvents.Hash hashEvent = new PipelineEvents.Hash();
+        hashEvent.begin();
+        long startNanos = System.nanoTime();
+        ByteBuffer hashBuffer = BufferPools.HASHES.acquire();
+
+        if (connection.getProtocolVersion() == WireProtocol.V2) {
+            hashBuffer.putLong(requestId);
+            HashEngines.writeDigest(digest, length, hashBuffer);
+        } else {
+            HashEngines.writeHash(digest, length, hashBuffer);
+        }
+        commitHashEvent(hashEvent, startNanos, payload.remaining(), true);
+        reply(hashBuffer);
+    }
+
+    private void commitHashEvent(PipelineEvents.Hash hashEvent, long startNanos, int payloadBytes, boolean multiBuffer) {
+        if (hashEvent.shouldCommit()) {
+            hashEvent.connectionId = connection.getId();
+            hashEvent.batchId = batchId;
+            hashEvent.payloadBytes = payloadBytes;
+            hashEvent.multiBuffer = multiBuffer;
+            hashEvent.queueWait = startNanos - batchedNanos;
+            hashEvent.commit();
+        }
+    }
+
+    private void reply(ByteBuffer hashBuffer) {
+        BufferPools.PAYLOADS.release(payload);
+        hashBuffer.flip();
+        if (AppConstants.DEBUG) {
+            System.out.println("Queueing hash for Client");
         }
+        connection.enqueueReply(hashBuffer); //The selector thread writes it back to the client that sent the message
     }
 }
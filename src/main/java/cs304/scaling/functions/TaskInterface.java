@@ -3,4 +3,11 @@ package cs304.scaling.functions;
 
 public interface TaskInterface {
     void onTask();
+
+    /**
+     * Called once the task has been added to a batch, before the batch can be dispatched.
+     * @param batchId id of the batch, unique for the lifetime of the server
+     */
+    default void onBatched(long batchId) {
+    }
 }
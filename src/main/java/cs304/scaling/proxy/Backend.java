@@ -0,0 +1,61 @@
+package cs304.scaling.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+// * One Server behind the proxy. Whether it is on the hash ring is decided by the HealthChecker, and the proxy loops
+// * report upstream connections that fail with requests in flight, so a dead backend leaves the ring without waiting
+// * for the next probe.
+
+class Backend {
+    private final int index; //Position in the backend list, also the index of its upstreams in every ProxyLoop
+    private final InetSocketAddress address;
+    private final String name;
+    private final LongAdder forwardedRequests;
+    private volatile boolean healthy;
+    int passedProbes; //Consecutive probe results, guarded by the Proxy
+    int failedProbes;
+
+    /**
+     * @param index
+     * @param hostAndPort in the form host:port
+     */
+    Backend(int index, String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Backend " + hostAndPort + " is not in the form host:port");
+        }
+        this.index = index;
+        this.address = new InetSocketAddress(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+        this.name = hostAndPort;
+        this.forwardedRequests = new LongAdder();
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    void recordForwarded() {
+        forwardedRequests.increment();
+    }
+
+    long getForwardedCount() {
+        return forwardedRequests.sum();
+    }
+}
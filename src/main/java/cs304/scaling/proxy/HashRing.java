@@ -0,0 +1,81 @@
+package cs304.scaling.proxy;
+
+import cs304.scaling.utils.XXHash64;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// * Consistent-hash ring over the healthy backends. Every backend owns virtualNodes points derived from its name, and a
+// * key belongs to the backend owning the first point at or after the hash of the key. When a backend leaves only the
+// * keys on its points move, spread over all the others, and when it joins again it takes back exactly those keys. Rings
+// * are immutable, a membership change builds a new one with a higher version.
+
+final class HashRing {
+    private final long[] points; //Sorted
+    private final Backend[] owners; //Backend owning each point
+    private final int version;
+
+    private HashRing(long[] points, Backend[] owners, int version) {
+        this.points = points;
+        this.owners = owners;
+        this.version = version;
+    }
+
+    /**
+     * @param backends members of the ring
+     * @param virtualNodes points per backend
+     * @param version
+     * @return the ring, empty if there are no backends
+     */
+    static HashRing build(List<Backend> backends, int virtualNodes, int version) {
+        int count = backends.size() * virtualNodes;
+        long[] hashes = new long[count];
+        Integer[] order = new Integer[count];
+        for (int b = 0; b < backends.size(); b++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                int i = b * virtualNodes + v;
+                hashes[i] = hash(backends.get(b).getName() + "#" + v);
+                order[i] = i;
+            }
+        }
+        Arrays.sort(order, (x, y) -> hashes[x] != hashes[y] ? Long.compare(hashes[x], hashes[y])
+                : Integer.compare(backends.get(x / virtualNodes).getIndex(), backends.get(y / virtualNodes).getIndex()));
+        long[] points = new long[count];
+        Backend[] owners = new Backend[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = backends.get(order[i] / virtualNodes);
+        }
+        return new HashRing(points, owners, version);
+    }
+
+    /**
+     * @param key
+     * @return the 64 bit xxHash of key, the position of key on the ring
+     */
+    static long hash(String key) {
+        return XXHash64.hash(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)), 0);
+    }
+
+    /**
+     * @param keyHash position on the ring, see hash()
+     * @return the backend owning keyHash, null if the ring is empty
+     */
+    Backend route(long keyHash) {
+        if (points.length == 0) {
+            return null;
+        }
+        int found = Arrays.binarySearch(points, keyHash);
+        int index = found >= 0 ? found : -found - 1;
+        while (index > 0 && index < points.length && points[index - 1] == keyHash) {
+            index--; //Equal points are ordered by backend, take the first
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    int getVersion() {
+        return version;
+    }
+}
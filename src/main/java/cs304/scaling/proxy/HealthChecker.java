@@ -0,0 +1,63 @@
+package cs304.scaling.proxy;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.WireProtocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// * Probes every backend at a fixed interval with the handshake the upstream connections start with: connect, send
+// * the protocol v2 preamble and wait for it to come back. A backend that only accepts connections but whose selector
+// * is stuck fails the probe as well. The Proxy turns consecutive results into ring membership.
+
+class HealthChecker extends Thread {
+    private final Proxy proxy;
+    private final List<Backend> backends;
+    private final byte[] preamble;
+
+    HealthChecker(Proxy proxy, List<Backend> backends) {
+        super("BackendHealthChecker");
+        setDaemon(true);
+        this.proxy = proxy;
+        this.backends = backends;
+        ByteBuffer buffer = ByteBuffer.allocate(WireProtocol.PREAMBLE_LENGTH);
+        WireProtocol.putPreamble(buffer);
+        this.preamble = buffer.array();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(AppConstants.PROXY_HEALTH_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Backend backend : backends) {
+                proxy.recordProbe(backend, probe(backend));
+            }
+        }
+    }
+
+    /**
+     * @param backend
+     * @return true if backend answered the preamble within AppConstants.PROXY_HEALTH_TIMEOUT_MILLIS
+     */
+    boolean probe(Backend backend) {
+        try (Socket socket = new Socket()) {
+            socket.connect(backend.getAddress(), AppConstants.PROXY_HEALTH_TIMEOUT_MILLIS);
+            socket.setSoTimeout(AppConstants.PROXY_HEALTH_TIMEOUT_MILLIS);
+            socket.getOutputStream().write(preamble);
+            byte[] answer = new byte[WireProtocol.PREAMBLE_LENGTH];
+            new DataInputStream(socket.getInputStream()).readFully(answer);
+            return WireProtocol.isPreamble(ByteBuffer.wrap(answer), 0);
+        } catch (IOException e) {
+            if (AppConstants.DEBUG) {
+                System.out.println("Probe of backend " + backend.getName() + " failed: " + e.getMessage());
+            }
+            return false;
+        }
+    }
+}
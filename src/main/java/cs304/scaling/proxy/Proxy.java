@@ -0,0 +1,243 @@
+package cs304.scaling.proxy;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// * Front proxy spreading clients over several Servers. Each client is routed by its address through a consistent-hash
+// * ring of the healthy backends, and its requests are pipelined over protocol v2 connections the ProxyLoops keep open
+// * to every backend. Clients may speak either protocol, they get the same replies as from a single Server.
+
+
+public class Proxy {
+    private final List<Backend> backends;
+    private final ProxyLoop[] loops;
+    private final AtomicInteger activeClients;
+    private final LongAdder failovers; //Requests sent again after their upstream connection failed
+    private final LatencyHistogram overheadTimes; //Time a request and its reply spend in the proxy
+    private final LatencyHistogram backendTimes; //Time from writing a request upstream to reading its reply
+    private final long[] lastForwardedCounts; //Per backend, only touched by the stats timer
+    private volatile HashRing ring;
+    private int ringVersion;
+
+    private Proxy(int port, List<String> backendNames, int loopCount) throws IOException {
+        backends = new ArrayList<>();
+        for (String name : backendNames) {
+            backends.add(new Backend(backends.size(), name));
+        }
+        activeClients = new AtomicInteger();
+        failovers = new LongAdder();
+        overheadTimes = new LatencyHistogram();
+        backendTimes = new LatencyHistogram();
+        lastForwardedCounts = new long[backends.size()];
+
+        HealthChecker healthChecker = new HealthChecker(this, backends);
+        for (Backend backend : backends) {
+            backend.setHealthy(healthChecker.probe(backend)); //Initial membership, before the first client arrives
+        }
+        rebuildRing();
+
+        loops = new ProxyLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new ProxyLoop(this, backends, i);
+            loops[i].start();
+        }
+        healthChecker.start();
+        new Timer("ProxyStatsDisplayer").scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                printStats();
+            }
+        }, AppConstants.STATS_LOGGER_START_DELAY_MILLIS, AppConstants.STATS_LOGGER_INTERVAL_MILLIS);
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), AppConstants.ACCEPT_BACKLOG);
+        System.out.println("Proxy listening on port " + port + " with " + loopCount + " loops in front of " + backends.size() + " backends");
+        acceptConnections(serverChannel);
+    }
+
+    /**
+     * Accept clients with blocking accepts and hand them to the loops round-robin. A failed accept, e.g. out of file
+     * descriptors, leaves the client in the backlog, so the next one is tried after AppConstants.ACCEPT_RETRY_MILLIS and
+     * only the first failure in a row is reported.
+     * @param serverChannel
+     */
+    private void acceptConnections(ServerSocketChannel serverChannel) {
+        int nextLoop = 0;
+        boolean failing = false;
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (!failing) {
+                    e.printStackTrace();
+                    failing = true;
+                }
+                pauseAccepting();
+                continue;
+            }
+            failing = false;
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true); //Replies are already batched by the loop
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void pauseAccepting() {
+        try {
+            Thread.sleep(AppConstants.ACCEPT_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Build a new ring from the backends that are healthy right now. Clients of the backends that did not change keep
+     * their backend.
+     */
+    private synchronized void rebuildRing() {
+        List<Backend> members = new ArrayList<>();
+        StringBuilder names = new StringBuilder();
+        for (Backend backend : backends) {
+            if (backend.isHealthy()) {
+                members.add(backend);
+                names.append(names.length() == 0 ? "" : ", ").append(backend.getName());
+            }
+        }
+        ring = HashRing.build(members, AppConstants.PROXY_VIRTUAL_NODES, ++ringVersion);
+        System.out.println("Hash ring " + ringVersion + ": " + (members.isEmpty() ? "no healthy backends" : names));
+    }
+
+    /**
+     * Count a health probe and move the backend on or off the ring after AppConstants.PROXY_HEALTH_THRESHOLD equal
+     * results in a row.
+     * @param backend
+     * @param passed
+     */
+    synchronized void recordProbe(Backend backend, boolean passed) {
+        if (passed) {
+            backend.failedProbes = 0;
+            backend.passedProbes++;
+            if (!backend.isHealthy() && backend.passedProbes >= AppConstants.PROXY_HEALTH_THRESHOLD) {
+                backend.setHealthy(true);
+                System.out.println("Backend " + backend.getName() + " is up, joining the ring");
+                rebuildRing();
+            }
+        } else {
+            backend.passedProbes = 0;
+            backend.failedProbes++;
+            if (backend.isHealthy() && backend.failedProbes >= AppConstants.PROXY_HEALTH_THRESHOLD) {
+                backend.setHealthy(false);
+                System.out.println("Backend " + backend.getName() + " failed " + backend.failedProbes + " probes, leaving the ring");
+                rebuildRing();
+            }
+        }
+    }
+
+    /**
+     * Take a backend off the ring right away because an upstream connection to it failed. It has to pass the health
+     * probes again to come back.
+     * @param backend
+     * @param cause
+     */
+    synchronized void reportFailure(Backend backend, IOException cause) {
+        backend.passedProbes = 0;
+        if (backend.isHealthy()) {
+            backend.setHealthy(false);
+            System.out.println("Backend " + backend.getName() + " failed (" + cause.getMessage() + "), leaving the ring");
+            rebuildRing();
+        }
+    }
+
+    void clientOpened() {
+        activeClients.incrementAndGet();
+    }
+
+    void clientClosed() {
+        activeClients.decrementAndGet();
+    }
+
+    void recordFailover() {
+        failovers.increment();
+    }
+
+    void recordOverhead(long nanos) {
+        overheadTimes.record(nanos);
+    }
+
+    void recordBackendTime(long nanos) {
+        backendTimes.record(nanos);
+    }
+
+    synchronized void printStats() {
+        System.out.println("--------------------------------------------------------");
+        System.out.println("\n(" + System.currentTimeMillis() + ")");
+        long forwarded = 0;
+        StringBuilder perBackend = new StringBuilder();
+        for (Backend backend : backends) {
+            long count = backend.getForwardedCount();
+            long delta = count - lastForwardedCounts[backend.getIndex()];
+            lastForwardedCounts[backend.getIndex()] = count;
+            forwarded += delta;
+            perBackend.append("Backend ").append(backend.getName()).append("\t\t").append(backend.isHealthy() ? "UP" : "DOWN")
+                    .append(", ").append(delta / AppConstants.STATS_LOGGER_INTERVAL_SECS).append(" requests/s\n");
+        }
+        System.out.println("Proxy Throughput\t\t" + forwarded / AppConstants.STATS_LOGGER_INTERVAL_SECS);
+        System.out.println("Active Client Connections\t" + activeClients.get());
+        System.out.println("Failed Over Requests\t\t" + failovers.sumThenReset());
+        System.out.print(perBackend);
+        System.out.println("Proxy Overhead\t\t\t" + overheadTimes.takeSnapshot().formatPercentiles());
+        System.out.println("Backend Round Trip\t\t" + backendTimes.takeSnapshot().formatPercentiles());
+    }
+
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Please provide 2 arguments.\nUsage: "
+                    + "java cs304.scaling.proxy.Proxy <portNum> <host:port[,host:port...]> [loop-count]\n"
+                    + "Exiting");
+            System.exit(1);
+        }
+        List<String> backendNames = new ArrayList<>();
+        for (String name : args[1].split(",")) {
+            if (!name.trim().isEmpty()) {
+                backendNames.add(name.trim());
+            }
+        }
+        int loopCount = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        try {
+            new Proxy(Integer.parseInt(args[0]), backendNames, loopCount);
+        } catch (IOException e) {
+            if (AppConstants.DEBUG) {
+                System.out.println("Proxy Constructor threw error");
+            }
+            e.printStackTrace();
+        }
+    }
+}
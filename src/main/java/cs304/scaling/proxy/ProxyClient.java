@@ -0,0 +1,206 @@
+package cs304.scaling.proxy;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.BufferPools;
+import cs304.scaling.utils.WireProtocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+// * A client connection of the proxy. It speaks either protocol to the client, decided by its first bytes like on the
+// * Server, and sticks to the backend the hash ring assigns to its address until the ring changes. All of its state is
+// * owned by the ProxyLoop it was registered on.
+
+class ProxyClient {
+    final SocketChannel channel;
+    final long routingKey; //Position of the client on the hash ring
+    SelectionKey selectionKey;
+    Backend backend; //Backend the last request was routed to, null until the first request
+    int ringVersion; //Version of the ring backend was looked up in
+    int inFlight; //Requests forwarded and not yet answered
+    boolean readPaused; //True while too many requests are in flight
+    boolean flushQueued; //True while the client is in the flush list of its loop
+    boolean writeBlocked; //True while replies wait for OP_WRITE
+    private final ByteBuffer header; //Header of the v2 request that is currently arriving
+    private final ArrayDeque<ByteBuffer> replies; //Replies waiting to be written
+    private final ByteBuffer[] gatherBuffers; //Replies handed to the current gathering write
+    private int gatherCount;
+    private int version; //0 until the first WireProtocol.PREAMBLE_LENGTH bytes have arrived
+    private long requestId; //Request id of the last v2 frame handed out
+    private ByteBuffer partialFrame; //Pooled buffer of the frame that is currently arriving, null between frames
+    private boolean closed;
+
+    ProxyClient(SocketChannel channel, long routingKey) {
+        this.channel = channel;
+        this.routingKey = routingKey;
+        this.header = ByteBuffer.allocate(WireProtocol.REQUEST_HEADER_LENGTH);
+        this.replies = new ArrayDeque<>();
+        this.gatherBuffers = new ByteBuffer[AppConstants.MAX_GATHERED_WRITES];
+    }
+
+    int getProtocolVersion() {
+        return version;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Move bytes of a read into the partial frame, the same way the Server's FrameDecoder does. Called until it
+     * returns null. The v2 preamble is answered with the preamble right away.
+     * @param readBuffer consumed as far as frames are completed
+     * @return the next complete frame, flipped and owned by the caller, or null once readBuffer is used up
+     * @throws ProtocolException if a v2 header announces a payload longer than WireProtocol.MAX_PAYLOAD_LENGTH
+     */
+    ByteBuffer nextFrame(ByteBuffer readBuffer) throws ProtocolException {
+        while (true) {
+            if (partialFrame != null && !partialFrame.hasRemaining()) {
+                if (version == 0) {
+                    negotiate();
+                    continue;
+                }
+                ByteBuffer frame = partialFrame;
+                partialFrame = null;
+                frame.flip();
+                return frame;
+            }
+            if (!readBuffer.hasRemaining()) {
+                return null;
+            }
+            if (partialFrame == null) {
+                startFrame(readBuffer);
+            } else {
+                transfer(readBuffer, partialFrame);
+            }
+        }
+    }
+
+    /**
+     * @return request id of the frame nextFrame() returned last, meaningful for v2 clients only
+     */
+    long getRequestId() {
+        return requestId;
+    }
+
+    private void startFrame(ByteBuffer readBuffer) throws ProtocolException {
+        if (version != WireProtocol.V2) {
+            partialFrame = BufferPools.PAYLOADS.acquire();
+            if (version == 0) {
+                partialFrame.limit(WireProtocol.PREAMBLE_LENGTH);
+            }
+            return;
+        }
+        transfer(readBuffer, header);
+        if (header.hasRemaining()) {
+            return;
+        }
+        header.flip();
+        int length = header.getInt();
+        requestId = header.getLong();
+        header.clear();
+        if (length < 0 || length > WireProtocol.MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Request " + requestId + " announces " + length + " payload bytes");
+        }
+        partialFrame = BufferPools.PAYLOADS.acquire();
+        partialFrame.limit(length);
+    }
+
+    private void negotiate() {
+        if (WireProtocol.isPreamble(partialFrame, 0)) {
+            version = WireProtocol.V2;
+            BufferPools.PAYLOADS.release(partialFrame);
+            partialFrame = null;
+            ByteBuffer preamble = BufferPools.HASHES.acquire();
+            WireProtocol.putPreamble(preamble);
+            preamble.flip();
+            replies.add(preamble);
+        } else {
+            version = WireProtocol.V1;
+            partialFrame.limit(partialFrame.capacity()); //The bytes are the start of the first message
+        }
+    }
+
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int count = Math.min(from.remaining(), to.remaining());
+        int limit = from.limit();
+        from.limit(from.position() + count);
+        to.put(from);
+        from.limit(limit);
+    }
+
+    boolean hasQueuedReplies() {
+        return !replies.isEmpty() || gatherCount > 0;
+    }
+
+    /**
+     * @param reply flipped pooled buffer, released once written
+     */
+    void queueReply(ByteBuffer reply) {
+        replies.add(reply);
+    }
+
+    /**
+     * Write queued replies with gathering writes until they are all written or the socket send buffer is full.
+     * @return false if replies are left for the next OP_WRITE
+     */
+    boolean flush() throws IOException {
+        while (true) {
+            while (gatherCount < gatherBuffers.length && !replies.isEmpty()) {
+                gatherBuffers[gatherCount++] = replies.poll();
+            }
+            if (gatherCount == 0) {
+                return true;
+            }
+            channel.write(gatherBuffers, 0, gatherCount);
+            int written = 0;
+            while (written < gatherCount && !gatherBuffers[written].hasRemaining()) {
+                BufferPools.HASHES.release(gatherBuffers[written]);
+                written++;
+            }
+            System.arraycopy(gatherBuffers, written, gatherBuffers, 0, gatherCount - written);
+            for (int i = gatherCount - written; i < gatherCount; i++) {
+                gatherBuffers[i] = null;
+            }
+            gatherCount -= written;
+            if (gatherCount > 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Close the channel and return the pooled buffers. Requests still in flight are answered into the void.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (partialFrame != null) {
+            BufferPools.PAYLOADS.release(partialFrame);
+            partialFrame = null;
+        }
+        for (int i = 0; i < gatherCount; i++) {
+            BufferPools.HASHES.release(gatherBuffers[i]);
+            gatherBuffers[i] = null;
+        }
+        gatherCount = 0;
+        ByteBuffer reply;
+        while ((reply = replies.poll()) != null) {
+            BufferPools.HASHES.release(reply);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package cs304.scaling.proxy;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.BufferPools;
+import cs304.scaling.utils.HashEngines;
+import cs304.scaling.utils.WireProtocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// * Selector thread of the proxy. It owns a share of the client connections and its own pipelined upstream connections
+// * to every backend, so forwarding a request or a reply never crosses threads. Requests read from all ready clients
+// * are written upstream together at the end of each pass over the ready keys, and so are the replies to the clients.
+
+class ProxyLoop extends Thread {
+    private final Proxy proxy;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> pendingChannels; //Accepted channels waiting to be registered
+    private final Upstream[][] upstreams; //Connections to every backend, indexed by backend index
+    private final ByteBuffer readBuffer; //Shared by all channels of this loop
+    private final byte[] digest; //Digest of a reply to a v1 client, re-encoded as hex
+    private final List<Upstream> upstreamsToFlush;
+    private final List<ProxyClient> clientsToFlush;
+    private final ArrayDeque<FailedRequest> failedRequests; //Requests of a failed upstream waiting to be sent again
+    private long[] overheadStarts; //Per reply of this pass, its time in the proxy minus the time its upstream read returned
+    private int overheadCount;
+
+    ProxyLoop(Proxy proxy, List<Backend> backends, int loopId) throws IOException {
+        super("ProxyLoop-" + loopId);
+        this.proxy = proxy;
+        this.selector = Selector.open();
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.upstreams = new Upstream[backends.size()][AppConstants.PROXY_UPSTREAM_CONNECTIONS];
+        for (Backend backend : backends) {
+            for (int i = 0; i < AppConstants.PROXY_UPSTREAM_CONNECTIONS; i++) {
+                upstreams[backend.getIndex()][i] = new Upstream(backend);
+            }
+        }
+        this.readBuffer = ByteBuffer.allocateDirect(AppConstants.READ_BUFFER_SIZE);
+        this.digest = new byte[HashEngines.WIRE_DIGEST_LENGTH];
+        this.upstreamsToFlush = new ArrayList<>();
+        this.clientsToFlush = new ArrayList<>();
+        this.failedRequests = new ArrayDeque<>();
+        this.overheadStarts = new long[256];
+    }
+
+    /**
+     * Hand an accepted client channel to this loop. The registration itself happens on the loop thread.
+     * @param channel
+     */
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            registerPendingChannels();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey selectionKey = it.next();
+                it.remove();
+                if (!selectionKey.isValid()) {
+                    continue;
+                }
+                if (selectionKey.attachment() instanceof ProxyClient) {
+                    dispatchClient(selectionKey, (ProxyClient) selectionKey.attachment());
+                } else {
+                    dispatchUpstream(selectionKey, (Upstream) selectionKey.attachment());
+                }
+            }
+            flushUpstreams();
+            flushClients();
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                ProxyClient client = new ProxyClient(channel, HashRing.hash(channel.getRemoteAddress().toString()));
+                client.selectionKey = channel.register(selector, SelectionKey.OP_READ, client);
+                proxy.clientOpened();
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void dispatchClient(SelectionKey selectionKey, ProxyClient client) {
+        if (selectionKey.isReadable()) {
+            readClient(client);
+        }
+        if (!client.isClosed() && selectionKey.isWritable()) {
+            queueFlush(client);
+        }
+    }
+
+    /**
+     * Read what the client has sent and forward every complete request.
+     * @param client
+     */
+    private void readClient(ProxyClient client) {
+        readBuffer.clear();
+        try {
+            if (client.channel.read(readBuffer) == -1) {
+                closeClient(client);
+                return;
+            }
+        } catch (IOException e) {
+            if (AppConstants.DEBUG) {
+                e.printStackTrace();
+            }
+            closeClient(client);
+            return;
+        }
+        readBuffer.flip();
+        long decodedNanos = System.nanoTime();
+        try {
+            ByteBuffer frame;
+            while ((frame = client.nextFrame(readBuffer)) != null) {
+                client.inFlight++;
+                forward(client, client.getRequestId(), frame, decodedNanos);
+                if (client.isClosed()) {
+                    return;
+                }
+            }
+        } catch (ProtocolException e) {
+            if (AppConstants.DEBUG) {
+                e.printStackTrace();
+            }
+            closeClient(client);
+            return;
+        }
+        if (client.hasQueuedReplies()) {
+            queueFlush(client); //Acknowledgement of the v2 preamble
+        }
+        if (!client.readPaused && client.inFlight >= AppConstants.PROXY_MAX_IN_FLIGHT) {
+            client.readPaused = true; //TCP flow control holds the client back until the backends catch up
+            updateInterest(client);
+        }
+    }
+
+    /**
+     * Queue a request on an upstream connection to the backend the ring assigns to its client. If that backend cannot
+     * be reached it is taken off the ring and the next one is tried.
+     * @param client
+     * @param clientRequestId
+     * @param frame
+     * @param decodedNanos
+     */
+    private void forward(ProxyClient client, long clientRequestId, ByteBuffer frame, long decodedNanos) {
+        for (int attempt = 0; attempt <= upstreams.length; attempt++) {
+            Backend backend = route(client);
+            if (backend == null) {
+                break;
+            }
+            Upstream upstream = pickUpstream(backend);
+            if (upstream != null) {
+                upstream.enqueue(client, clientRequestId, frame, decodedNanos);
+                backend.recordForwarded();
+                queueFlush(upstream);
+                return;
+            }
+        }
+        BufferPools.PAYLOADS.release(frame);
+        System.out.println("No backend available, closing client connection");
+        closeClient(client);
+    }
+
+    /**
+     * @param client
+     * @return the backend of client on the current ring, null if no backend is healthy
+     */
+    private Backend route(ProxyClient client) {
+        HashRing ring = proxy.getRing();
+        if (client.backend == null || client.ringVersion != ring.getVersion()) {
+            client.backend = ring.route(client.routingKey); //Only clients on the points of a changed backend move
+            client.ringVersion = ring.getVersion();
+        }
+        return client.backend;
+    }
+
+    /**
+     * @param backend
+     * @return the connection to backend with the fewest requests in flight, null if backend cannot be connected to
+     */
+    private Upstream pickUpstream(Backend backend) {
+        Upstream best = null;
+        for (Upstream upstream : upstreams[backend.getIndex()]) {
+            if (!upstream.isOpen()) {
+                try {
+                    upstream.open(selector);
+                } catch (IOException e) {
+                    proxy.reportFailure(backend, e);
+                    return null;
+                }
+            }
+            if (best == null || upstream.getOutstanding() < best.getOutstanding()) {
+                best = upstream;
+            }
+        }
+        return best;
+    }
+
+    private void dispatchUpstream(SelectionKey selectionKey, Upstream upstream) {
+        try {
+            if (selectionKey.isConnectable()) {
+                upstream.finishConnect();
+                queueFlush(upstream); //Preamble and the requests queued while connecting
+            }
+            if (selectionKey.isValid() && selectionKey.isReadable()) {
+                readUpstream(upstream);
+            }
+            if (selectionKey.isValid() && selectionKey.isWritable()) {
+                queueFlush(upstream);
+            }
+        } catch (IOException e) {
+            failUpstream(upstream, e);
+        }
+    }
+
+    /**
+     * Read replies from a backend and pass each one on to the client that sent the request.
+     * @param upstream
+     */
+    private void readUpstream(Upstream upstream) throws IOException {
+        if (!upstream.read(readBuffer)) {
+            if (upstream.getOutstanding() == 0) {
+                upstream.close(this::requestFailed); //E.g. closed by the idle reaper of the backend, nothing lost
+                return;
+            }
+            throw new IOException("Backend " + upstream.backend.getName() + " closed a connection with "
+                    + upstream.getOutstanding() + " requests in flight");
+        }
+        long readNanos = System.nanoTime();
+        ByteBuffer reply;
+        while ((reply = upstream.nextReply(readBuffer)) != null) {
+            int offset = upstream.getReplyOffset();
+            long requestId = reply.getLong(offset);
+            if (!upstream.removeRequest(requestId)) {
+                throw new ProtocolException("Backend " + upstream.backend.getName() + " answered unknown request " + requestId);
+            }
+            ProxyClient client = upstream.removedClient();
+            long clientRequestId = upstream.removedClientRequestId();
+            long sentNanos = upstream.removedSentNanos();
+            BufferPools.PAYLOADS.release(upstream.removedFrame());
+            proxy.recordBackendTime(readNanos - sentNanos);
+            addOverheadStart(sentNanos - upstream.removedDecodedNanos() - readNanos);
+            upstream.releaseRemoved();
+            if (!client.isClosed()) {
+                deliver(client, clientRequestId, reply, offset + 8);
+            }
+        }
+    }
+
+    /**
+     * Queue the reply to a request in the protocol of its client.
+     * @param client
+     * @param clientRequestId
+     * @param source holds the raw digest of a v2 reply
+     * @param offset absolute index of the digest in source
+     */
+    private void deliver(ProxyClient client, long clientRequestId, ByteBuffer source, int offset) {
+        ByteBuffer reply = BufferPools.HASHES.acquire();
+        for (int i = 0; i < digest.length; i++) {
+            digest[i] = source.get(offset + i);
+        }
+        if (client.getProtocolVersion() == WireProtocol.V2) {
+            reply.putLong(clientRequestId);
+            reply.put(digest);
+        } else {
+            HashEngines.writeHash(digest, digest.length, reply); //Same bytes the backend sends a v1 client
+        }
+        reply.flip();
+        client.queueReply(reply);
+        queueFlush(client);
+        client.inFlight--;
+        if (client.readPaused && client.inFlight <= AppConstants.PROXY_MAX_IN_FLIGHT / 2) {
+            client.readPaused = false;
+            updateInterest(client);
+        }
+    }
+
+    /**
+     * Close a broken upstream connection, take its backend off the ring and send the requests it had in flight again
+     * through whichever backends their clients map to now.
+     * @param upstream
+     * @param cause
+     */
+    private void failUpstream(Upstream upstream, IOException cause) {
+        upstream.close(this::requestFailed);
+        proxy.reportFailure(upstream.backend, cause);
+        FailedRequest request;
+        while ((request = failedRequests.poll()) != null) {
+            if (request.client.isClosed()) {
+                BufferPools.PAYLOADS.release(request.frame);
+                continue;
+            }
+            proxy.recordFailover();
+            forward(request.client, request.clientRequestId, request.frame, request.decodedNanos);
+        }
+    }
+
+    private void requestFailed(ProxyClient client, long clientRequestId, ByteBuffer frame, long decodedNanos) {
+        failedRequests.add(new FailedRequest(client, clientRequestId, frame, decodedNanos));
+    }
+
+    private void queueFlush(Upstream upstream) {
+        if (!upstream.flushQueued) {
+            upstream.flushQueued = true;
+            upstreamsToFlush.add(upstream);
+        }
+    }
+
+    private void queueFlush(ProxyClient client) {
+        if (!client.flushQueued) {
+            client.flushQueued = true;
+            clientsToFlush.add(client);
+        }
+    }
+
+    private void flushUpstreams() {
+        for (int i = 0; i < upstreamsToFlush.size(); i++) { //A failed flush fails requests over, which can add upstreams
+            Upstream upstream = upstreamsToFlush.get(i);
+            upstream.flushQueued = false;
+            if (!upstream.isOpen()) {
+                continue;
+            }
+            try {
+                upstream.flush();
+            } catch (IOException e) {
+                failUpstream(upstream, e);
+            }
+        }
+        upstreamsToFlush.clear();
+    }
+
+    private void flushClients() {
+        for (ProxyClient client : clientsToFlush) {
+            client.flushQueued = false;
+            if (client.isClosed()) {
+                continue;
+            }
+            try {
+                boolean blocked = !client.flush();
+                if (blocked != client.writeBlocked) {
+                    client.writeBlocked = blocked;
+                    updateInterest(client);
+                }
+            } catch (IOException e) {
+                if (AppConstants.DEBUG) {
+                    e.printStackTrace();
+                }
+                closeClient(client);
+            }
+        }
+        clientsToFlush.clear();
+
+        long flushedNanos = System.nanoTime();
+        for (int i = 0; i < overheadCount; i++) {
+            proxy.recordOverhead(overheadStarts[i] + flushedNanos);
+        }
+        overheadCount = 0;
+    }
+
+    private void addOverheadStart(long start) {
+        if (overheadCount == overheadStarts.length) {
+            overheadStarts = Arrays.copyOf(overheadStarts, overheadCount * 2);
+        }
+        overheadStarts[overheadCount++] = start;
+    }
+
+    private void updateInterest(ProxyClient client) {
+        client.selectionKey.interestOps((client.readPaused ? 0 : SelectionKey.OP_READ)
+                | (client.writeBlocked ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void closeClient(ProxyClient client) {
+        if (!client.isClosed()) {
+            client.close();
+            proxy.clientClosed();
+        }
+    }
+
+    private static final class FailedRequest {
+        private final ProxyClient client;
+        private final long clientRequestId;
+        private final ByteBuffer frame;
+        private final long decodedNanos;
+
+        private FailedRequest(ProxyClient client, long clientRequestId, ByteBuffer frame, long decodedNanos) {
+            this.client = client;
+            this.clientRequestId = clientRequestId;
+            this.frame = frame;
+            this.decodedNanos = decodedNanos;
+        }
+    }
+}
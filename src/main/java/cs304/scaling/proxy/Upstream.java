@@ -0,0 +1,349 @@
+package cs304.scaling.proxy;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.WireProtocol;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+// * A pipelined protocol v2 connection from a ProxyLoop to one backend. Requests of any number of clients share it,
+// * each one gets the next sequence number of the connection as its request id, so a reply finds its client in the
+// * in-flight ring without a search whatever order the backend answers in. Payloads stay in the ring until they are
+// * answered, so the requests of a failed connection can be sent again through another one.
+
+class Upstream {
+    private static final int BATCH = AppConstants.MAX_GATHERED_WRITES / 2; //Requests per gathering write, header and payload each
+
+    final Backend backend;
+    boolean flushQueued; //True while the upstream is in the flush list of its loop
+    private final ByteBuffer[] headers; //Slices of one direct allocation, one per request of a gathering write
+    private final ByteBuffer[] gatherBuffers;
+    private final ByteBuffer preamble;
+    private final ByteBuffer partialReply; //Bytes of a reply split across reads
+    private SocketChannel channel; //Null while closed, reopened on the next request
+    private SelectionKey selectionKey;
+    private boolean connected;
+    private boolean awaitingPreamble; //True until the backend has acknowledged protocol v2
+    private ProxyClient[] clients; //Ring of the requests sent and not yet answered, indexed by request id, null once answered
+    private long[] clientRequestIds;
+    private ByteBuffer[] frames;
+    private long[] decodedNanos; //When the proxy had the whole request
+    private long[] sentNanos; //When the request was written to the backend
+    private int head; //Oldest unanswered request id
+    private int nextWrite; //First request id whose payload is not completely written yet
+    private int tail; //Next request id
+    private int gatherStart; //First buffer of the current gathering write that is not fully written
+    private int gatherEnd;
+    private int replyOffset; //Absolute index of the reply nextReply() returned last
+    private int removedSlot;
+
+    Upstream(Backend backend) {
+        this.backend = backend;
+        ByteBuffer slab = ByteBuffer.allocateDirect(BATCH * WireProtocol.REQUEST_HEADER_LENGTH);
+        this.headers = new ByteBuffer[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            slab.limit((i + 1) * WireProtocol.REQUEST_HEADER_LENGTH);
+            slab.position(i * WireProtocol.REQUEST_HEADER_LENGTH);
+            headers[i] = slab.slice();
+        }
+        this.gatherBuffers = new ByteBuffer[BATCH * 2];
+        this.preamble = ByteBuffer.allocate(WireProtocol.PREAMBLE_LENGTH);
+        this.partialReply = ByteBuffer.allocate(WireProtocol.REPLY_LENGTH);
+        this.clients = new ProxyClient[16];
+        this.clientRequestIds = new long[16];
+        this.frames = new ByteBuffer[16];
+        this.decodedNanos = new long[16];
+        this.sentNanos = new long[16];
+    }
+
+    boolean isOpen() {
+        return channel != null;
+    }
+
+    int getOutstanding() {
+        return tail - head;
+    }
+
+    /**
+     * Start a non-blocking connect. Requests can be queued right away, they are written once the preamble is out.
+     * @param selector of the loop owning this upstream
+     */
+    void open(Selector selector) throws IOException {
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true); //Requests are already batched by the loop
+            connected = channel.connect(backend.getAddress());
+            selectionKey = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        } catch (IOException e) {
+            channel.close();
+            channel = null;
+            throw e;
+        }
+        preamble.clear();
+        WireProtocol.putPreamble(preamble);
+        preamble.flip();
+        awaitingPreamble = true;
+        partialReply.clear();
+        partialReply.limit(WireProtocol.PREAMBLE_LENGTH);
+    }
+
+    /**
+     * Called on OP_CONNECT.
+     */
+    void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            connected = true;
+            selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Queue a request for the next flush.
+     * @param client
+     * @param clientRequestId id the client gave the request, echoed in its reply
+     * @param frame pooled buffer holding the payload, kept until the request is answered or failed over
+     * @param decodedNanos
+     */
+    void enqueue(ProxyClient client, long clientRequestId, ByteBuffer frame, long decodedNanos) {
+        if (tail - head == clients.length) {
+            growInFlight();
+        }
+        int slot = tail++ & (clients.length - 1);
+        frame.rewind(); //A failed over request was already written once
+        clients[slot] = client;
+        clientRequestIds[slot] = clientRequestId;
+        frames[slot] = frame;
+        this.decodedNanos[slot] = decodedNanos;
+    }
+
+    /**
+     * Write the preamble and the queued requests with gathering writes until everything is written or the socket send
+     * buffer is full, in which case the rest waits for OP_WRITE.
+     */
+    void flush() throws IOException {
+        if (!connected) {
+            return; //OP_CONNECT comes first, the loop flushes again once connected
+        }
+        if (preamble.hasRemaining()) {
+            channel.write(preamble);
+            if (preamble.hasRemaining()) {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        int mask = clients.length - 1;
+        while (true) {
+            if (gatherStart == gatherEnd) {
+                int count = Math.min(BATCH, tail - nextWrite);
+                if (count == 0) {
+                    break;
+                }
+                for (int i = 0; i < count; i++) {
+                    int id = nextWrite + i;
+                    ByteBuffer frame = frames[id & mask];
+                    headers[i].clear();
+                    headers[i].putInt(frame.remaining());
+                    headers[i].putLong(id);
+                    headers[i].flip();
+                    gatherBuffers[2 * i] = headers[i];
+                    gatherBuffers[2 * i + 1] = frame;
+                }
+                gatherStart = 0;
+                gatherEnd = 2 * count;
+            }
+            channel.write(gatherBuffers, gatherStart, gatherEnd - gatherStart);
+            long now = System.nanoTime();
+            while (gatherStart < gatherEnd && !gatherBuffers[gatherStart].hasRemaining()) {
+                if ((gatherStart & 1) == 1) { //Payload written, the backend may answer from now on
+                    sentNanos[nextWrite++ & mask] = now;
+                }
+                gatherBuffers[gatherStart++] = null;
+            }
+            if (gatherStart < gatherEnd) {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            gatherStart = 0;
+            gatherEnd = 0;
+        }
+        if ((selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * @return false at end of stream
+     */
+    boolean read(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        readBuffer.flip();
+        return read != -1;
+    }
+
+    /**
+     * Take the next complete reply out of the bytes of the last read.
+     * @param readBuffer
+     * @return buffer holding the reply at getReplyOffset(), either readBuffer or a buffer of the upstream, null once
+     * readBuffer is used up. Only valid until the next call
+     * @throws IOException if the backend did not acknowledge protocol v2
+     */
+    ByteBuffer nextReply(ByteBuffer readBuffer) throws IOException {
+        while (true) {
+            if (partialReply.position() == 0 && !awaitingPreamble && readBuffer.remaining() >= WireProtocol.REPLY_LENGTH) {
+                replyOffset = readBuffer.position(); //Whole reply in the read buffer, no copy
+                readBuffer.position(replyOffset + WireProtocol.REPLY_LENGTH);
+                return readBuffer;
+            }
+            if (!readBuffer.hasRemaining()) {
+                return null;
+            }
+            int count = Math.min(readBuffer.remaining(), partialReply.remaining());
+            for (int i = 0; i < count; i++) {
+                partialReply.put(readBuffer.get());
+            }
+            if (partialReply.hasRemaining()) {
+                return null;
+            }
+            partialReply.flip();
+            if (awaitingPreamble) {
+                if (!WireProtocol.isPreamble(partialReply, 0)) {
+                    throw new IOException("Backend " + backend.getName() + " did not acknowledge protocol v2");
+                }
+                awaitingPreamble = false;
+                partialReply.clear();
+                continue;
+            }
+            partialReply.clear();
+            replyOffset = 0;
+            return partialReply; //Its bytes stay in place until the next put
+        }
+    }
+
+    int getReplyOffset() {
+        return replyOffset;
+    }
+
+    /**
+     * Take an answered request out of the ring. Its fields are then read with the removed*() getters.
+     * @param requestId
+     * @return false if the id is unknown or already answered
+     */
+    boolean removeRequest(long requestId) {
+        int id = (int) requestId;
+        if (id != requestId || id - head < 0 || id - nextWrite >= 0) {
+            return false;
+        }
+        int mask = clients.length - 1;
+        int slot = id & mask;
+        if (clients[slot] == null) {
+            return false;
+        }
+        removedSlot = slot;
+        return true;
+    }
+
+    ProxyClient removedClient() {
+        return clients[removedSlot];
+    }
+
+    long removedClientRequestId() {
+        return clientRequestIds[removedSlot];
+    }
+
+    ByteBuffer removedFrame() {
+        return frames[removedSlot];
+    }
+
+    long removedDecodedNanos() {
+        return decodedNanos[removedSlot];
+    }
+
+    long removedSentNanos() {
+        return sentNanos[removedSlot];
+    }
+
+    /**
+     * Free the slot of the request last found by removeRequest(), once its fields have been read.
+     */
+    void releaseRemoved() {
+        clients[removedSlot] = null;
+        frames[removedSlot] = null;
+        int mask = clients.length - 1;
+        while (head != nextWrite && clients[head & mask] == null) {
+            head++;
+        }
+    }
+
+    /**
+     * Close the channel. The requests in flight are handed to failover, oldest first, and forgotten. failover must not
+     * queue requests on this upstream.
+     * @param failover gets every unanswered request
+     */
+    void close(FailoverHandler failover) {
+        if (selectionKey != null) {
+            selectionKey.cancel();
+            selectionKey = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+        connected = false;
+        int mask = clients.length - 1;
+        for (int id = head; id != tail; id++) {
+            int slot = id & mask;
+            if (clients[slot] != null) {
+                failover.requestFailed(clients[slot], clientRequestIds[slot], frames[slot], decodedNanos[slot]);
+                clients[slot] = null;
+                frames[slot] = null;
+            }
+        }
+        for (int i = gatherStart; i < gatherEnd; i++) {
+            gatherBuffers[i] = null;
+        }
+        gatherStart = 0;
+        gatherEnd = 0;
+        head = tail;
+        nextWrite = tail;
+    }
+
+    /**
+     * Double the ring. Requests keep their ids, so each one moves to the slot its id maps to in the larger ring.
+     */
+    private void growInFlight() {
+        int length = clients.length;
+        ProxyClient[] grownClients = new ProxyClient[length * 2];
+        long[] grownRequestIds = new long[length * 2];
+        ByteBuffer[] grownFrames = new ByteBuffer[length * 2];
+        long[] grownDecoded = new long[length * 2];
+        long[] grownSent = new long[length * 2];
+        for (int id = head; id != tail; id++) {
+            int from = id & (length - 1);
+            int to = id & (length * 2 - 1);
+            grownClients[to] = clients[from];
+            grownRequestIds[to] = clientRequestIds[from];
+            grownFrames[to] = frames[from];
+            grownDecoded[to] = decodedNanos[from];
+            grownSent[to] = sentNanos[from];
+        }
+        clients = grownClients;
+        clientRequestIds = grownRequestIds;
+        frames = grownFrames;
+        decodedNanos = grownDecoded;
+        sentNanos = grownSent;
+    }
+
+    interface FailoverHandler {
+        void requestFailed(ProxyClient client, long clientRequestId, ByteBuffer frame, long decodedNanos);
+    }
+}
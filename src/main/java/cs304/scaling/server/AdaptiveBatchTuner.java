@@ -0,0 +1,127 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.HashedTimingWheel;
+import cs304.scaling.utils.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+class AdaptiveBatchTuner {
+    private static final double GROWTH_FACTOR = 1.25; //Batch size growth per window while the pool is saturated
+    private static final double SHRINK_FACTOR = 0.8; //Batch size shrink per window while the pool is idle
+    private static final double SMOOTHING = 0.5; //Weight of the new batch time against the previous one
+
+    private final BatchAccumulator[] batchAccumulators; //All accumulators share the same batch size and time
+    private final HashedTimingWheel timingWheel;
+    private final long targetP99Nanos;
+    private final LatencyHistogram batchLatencies; //End-to-end latency of every batch in the window, first arrival until execution finished
+    private final LongAdder serviceNanos; //Time spent executing batches in the current window
+    private final LongAdder executedTasks; //Tasks executed in the current window
+    private volatile int batchSize; //Read by the stats printer, written by the timing wheel thread only
+    private volatile long batchTimeNanos;
+
+    AdaptiveBatchTuner(BatchAccumulator[] batchAccumulators, HashedTimingWheel timingWheel, int batchSize,
+                       long batchTimeNanos, long targetP99Nanos) {
+        this.batchAccumulators = batchAccumulators;
+        this.timingWheel = timingWheel;
+        this.targetP99Nanos = targetP99Nanos;
+        this.batchLatencies = new LatencyHistogram();
+        this.serviceNanos = new LongAdder();
+        this.executedTasks = new LongAdder();
+        this.batchSize = batchSize;
+        this.batchTimeNanos = batchTimeNanos;
+    }
+
+    void start() {
+        scheduleNextRetune();
+    }
+
+    /**
+     * Record an executed batch. Called by the worker thread that executed it.
+     * @param size number of tasks in the batch
+     * @param latencyNanos time between the arrival of the first task and the end of the execution
+     * @param executionNanos time spent executing the batch
+     */
+    void recordBatch(int size, long latencyNanos, long executionNanos) {
+        batchLatencies.record(latencyNanos);
+        serviceNanos.add(executionNanos);
+        executedTasks.add(size);
+    }
+
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    long getBatchTimeNanos() {
+        return batchTimeNanos;
+    }
+
+    private void scheduleNextRetune() {
+        timingWheel.schedule(this::retune, AppConstants.ADAPTIVE_TUNING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on the timing wheel thread once per tuning interval.
+     *
+     * The batch time is the part of the latency the batching controls directly, so it gets whatever is left of the
+     * target once the observed queueing and execution overhead is taken off. The batch size follows the number of tasks
+     * that arrive within that batch time, so that batches tend to fill right when their timer fires. On top of that the
+     * size grows while batches are queueing up behind busy workers, since bigger batches amortise the dispatch cost, and
+     * shrinks while the queue is empty, since small batches start executing sooner. A batch is never allowed to take
+     * longer than the target to execute on its own.
+     */
+    private void retune() {
+        try {
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(AppConstants.ADAPTIVE_TUNING_INTERVAL_MILLIS);
+            long dispatched = 0;
+            int queuedBatches = 0;
+            for (BatchAccumulator batchAccumulator : batchAccumulators) {
+                dispatched += batchAccumulator.takeDispatchedTaskCount();
+                queuedBatches += batchAccumulator.getQueuedBatchCount();
+            }
+            double arrivalRate = (double) dispatched / batchAccumulators.length / intervalNanos; //Tasks per nanosecond and accumulator
+            long p99 = batchLatencies.takeSnapshot().getValueAtPercentile(99);
+            long executed = executedTasks.sumThenReset();
+            long service = serviceNanos.sumThenReset();
+            long perTaskServiceNanos = executed > 0 ? service / executed : 0;
+
+            if (p99 > 0) {
+                long overhead = Math.max(0, p99 - batchTimeNanos);
+                long budget = clamp(targetP99Nanos - overhead, AppConstants.ADAPTIVE_MIN_BATCH_TIME_NANOS, targetP99Nanos);
+                batchTimeNanos = (long) (SMOOTHING * budget + (1 - SMOOTHING) * batchTimeNanos);
+            }
+
+            int fillSize = (int) Math.ceil(arrivalRate * batchTimeNanos);
+            int newSize;
+            if (queuedBatches > 0) {
+                newSize = Math.max(fillSize, (int) Math.ceil(batchSize * GROWTH_FACTOR));
+            } else {
+                newSize = Math.min(fillSize, (int) (batchSize * SHRINK_FACTOR));
+            }
+            if (perTaskServiceNanos > 0) {
+                newSize = (int) Math.min(newSize, targetP99Nanos / perTaskServiceNanos); //Executing the batch alone must fit the target
+            }
+            batchSize = (int) clamp(newSize, 1, AppConstants.ADAPTIVE_MAX_BATCH_SIZE);
+
+            for (BatchAccumulator batchAccumulator : batchAccumulators) {
+                batchAccumulator.setBatchSize(batchSize);
+                batchAccumulator.setBatchTimeNanos(batchTimeNanos);
+            }
+            timingWheel.setTickDuration(ThreadPool.flushTickNanos(batchTimeNanos), TimeUnit.NANOSECONDS); //Flushes stay within an eighth of the batch time
+
+            if (AppConstants.DEBUG) {
+                System.out.println("Adaptive batching: p99 " + p99 + "ns, rate " + arrivalRate * 1e9 + "/s, queued "
+                        + queuedBatches + ", service " + perTaskServiceNanos + "ns/task -> size " + batchSize
+                        + ", time " + batchTimeNanos + "ns");
+            }
+        } finally {
+            scheduleNextRetune();
+        }
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,145 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+
+class AdmissionControl {
+    private final int highWatermark; //Admitted messages at which every connection that reads is paused, 0 when disabled
+    private final int lowWatermark; //Admitted messages at which the paused connections resume
+    private final IntSupplier activeConnections;
+    private final AtomicInteger pendingTasks; //Messages read from a client and not yet answered, across all connections
+    private final AtomicBoolean saturated; //Set once the high watermark is reached, cleared at the low watermark
+    private final Set<ClientConnection> pausedConnections;
+    private final LongAdder pauses; //Times a connection stopped reading since start
+
+    /**
+     * @param highWatermark unanswered messages at which reading stops, 0 disables admission control
+     * @param lowWatermark unanswered messages at which reading resumes
+     * @param activeConnections number of open connections, the high watermark is shared fairly among them
+     */
+    AdmissionControl(int highWatermark, int lowWatermark, IntSupplier activeConnections) {
+        this.highWatermark = Math.max(0, highWatermark);
+        this.lowWatermark = Math.max(0, Math.min(lowWatermark, this.highWatermark - 1));
+        this.activeConnections = activeConnections;
+        this.pendingTasks = new AtomicInteger(0);
+        this.saturated = new AtomicBoolean(false);
+        this.pausedConnections = ConcurrentHashMap.newKeySet();
+        this.pauses = new LongAdder();
+    }
+
+    boolean isEnabled() {
+        return highWatermark > 0;
+    }
+
+    int getPendingTaskCount() {
+        return pendingTasks.get();
+    }
+
+    int getPausedConnectionCount() {
+        return pausedConnections.size();
+    }
+
+    long getPauseCount() {
+        return pauses.sum();
+    }
+
+    /**
+     * Account for messages read from a connection and queued for hashing. Called by the selector thread owning the
+     * connection. While the server is saturated every connection that manages to read is paused, so the clients
+     * sending the most are the first to be held back by TCP flow control. A connection holding more than its fair
+     * share of the high watermark is paused on its own, so one noisy client cannot fill the queue for everybody.
+     * @param connection
+     * @param messages
+     */
+    void admitted(ClientConnection connection, int messages) {
+        if (!isEnabled() || messages == 0) {
+            return;
+        }
+        int pending = pendingTasks.addAndGet(messages);
+        int connectionPending = connection.addPendingTasks(messages);
+        if (pending >= highWatermark) {
+            saturated.set(true);
+            pause(connection);
+            resumeIfDrained(); //The workers may have drained the queue before saturated was set
+        } else if (connectionPending >= fairShare()) {
+            pause(connection);
+            resumeIfBelowShare(connection); //Replies may have come in before the connection was marked as paused
+        }
+    }
+
+    /**
+     * Account for a message that was answered. Called by the worker thread that queued the reply.
+     * @param connection
+     */
+    void completed(ClientConnection connection) {
+        if (!isEnabled()) {
+            return;
+        }
+        int pending = pendingTasks.decrementAndGet();
+        connection.addPendingTasks(-1);
+        if (pending <= lowWatermark && saturated.get()) {
+            resumeIfDrained();
+        } else if (connection.isReadPaused(ClientConnection.PAUSED_BY_ADMISSION)) {
+            resumeIfBelowShare(connection);
+        }
+    }
+
+    /**
+     * Forget a connection that was closed. Its messages still in flight are accounted for when they complete.
+     * @param connection
+     */
+    void connectionClosed(ClientConnection connection) {
+        pausedConnections.remove(connection);
+    }
+
+    private int fairShare() {
+        return Math.max(AppConstants.ADMISSION_MIN_CONNECTION_SHARE, highWatermark / Math.max(1, activeConnections.getAsInt()));
+    }
+
+    private void pause(ClientConnection connection) {
+        if (connection.pauseReading(ClientConnection.PAUSED_BY_ADMISSION)) {
+            pausedConnections.add(connection);
+            pauses.increment();
+            if (AppConstants.DEBUG) {
+                System.out.println("Paused reading from connection " + connection.getId());
+            }
+        }
+    }
+
+    /**
+     * Leave the saturated state once the low watermark is reached and let every paused connection that is not over
+     * its own share read again.
+     */
+    private void resumeIfDrained() {
+        if (pendingTasks.get() > lowWatermark || !saturated.compareAndSet(true, false)) {
+            return;
+        }
+        for (ClientConnection connection : pausedConnections) {
+            resumeIfBelowShare(connection);
+        }
+    }
+
+    /**
+     * Resume a connection paused for its share once half of its share is answered, so it does not flap between
+     * paused and reading on every message.
+     * @param connection
+     */
+    private void resumeIfBelowShare(ClientConnection connection) {
+        if (saturated.get() || connection.getPendingTasks() > fairShare() / 2) {
+            return;
+        }
+        pausedConnections.remove(connection); //Before resuming, so a pause right after the resume is not lost
+        if (connection.resumeReading(ClientConnection.PAUSED_BY_ADMISSION)) {
+            if (AppConstants.DEBUG) {
+                System.out.println("Resumed reading from connection " + connection.getId());
+            }
+        }
+    }
+}
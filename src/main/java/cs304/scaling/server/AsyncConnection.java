@@ -0,0 +1,316 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.BufferPools;
+import cs304.scaling.utils.WireProtocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// * Connection of the proactor transport. There is at most one read and one write in flight: each read goes straight
+// * into the pooled buffer of the message that is arriving, so a full buffer is a complete frame and needs no copy, and
+// * replies queued by the workers while a write is in flight go out with the next gathering write. With protocol v2 the
+// * header of the next request is read together with the payload in a scattering read.
+
+class AsyncConnection extends ClientConnection {
+    private final Server server;
+    private final AsynchronousSocketChannel channel;
+    private final ReadHandler readHandler;
+    private final WriteHandler writeHandler;
+    private final AtomicBoolean readParked; //True while no read is in flight because reading is paused
+    private final ByteBuffer header; //Header of the next v2 request
+    private final ByteBuffer[] readTargets; //Frame and/or header the read in flight fills
+    private final ConcurrentLinkedQueue<ByteBuffer> outboundQueue; //Replies enqueued by the workers
+    private final AtomicBoolean writeInFlight; //Held by whoever starts the next write, until the write chain runs dry
+    private final ByteBuffer[] gatherBuffers; //Replies of the write in flight, partially written ones stay at the front
+    private int gatherCount;
+    private ByteBuffer frame; //Pooled buffer the read in flight fills, only touched by the read chain
+    private int version; //0 until the first WireProtocol.PREAMBLE_LENGTH bytes have arrived, only touched by the read chain
+    private long requestId; //Request id of the v2 frame being read
+    private StreamedRequest stream; //Request the frame being read is a chunk of, null for whole messages
+    private int streamRemaining; //Bytes of the streamed payload that are not in a chunk yet, the next header follows them
+    private int framesRead; //Frames completed by the last read
+
+    AsyncConnection(Server server, AsynchronousSocketChannel channel, int shard, AdmissionControl admissionControl) {
+        super(shard, admissionControl);
+        this.server = server;
+        this.channel = channel;
+        this.readHandler = new ReadHandler();
+        this.writeHandler = new WriteHandler();
+        this.readParked = new AtomicBoolean(false);
+        this.header = ByteBuffer.allocate(WireProtocol.REQUEST_HEADER_LENGTH);
+        this.readTargets = new ByteBuffer[2];
+        this.outboundQueue = new ConcurrentLinkedQueue<>();
+        this.writeInFlight = new AtomicBoolean(false);
+        this.gatherBuffers = new ByteBuffer[AppConstants.MAX_GATHERED_WRITES];
+    }
+
+    /**
+     * Start the next read: the first bytes of the connection to decide its protocol, the next v1 message, or the rest
+     * of a v2 payload or chunk followed by the next header once the payload is complete.
+     */
+    void startReading() {
+        if (frame == null && version != WireProtocol.V2) {
+            frame = BufferPools.PAYLOADS.acquire();
+            if (version == 0) {
+                frame.limit(WireProtocol.PREAMBLE_LENGTH);
+            }
+        }
+        int count = 0;
+        if (frame != null) {
+            readTargets[count++] = frame;
+        }
+        if (version == WireProtocol.V2 && streamRemaining == 0) {
+            readTargets[count++] = header;
+        }
+        channel.read(readTargets, 0, count, 0, TimeUnit.MILLISECONDS, null, readHandler);
+    }
+
+    @Override
+    void stopReading() {
+        //The read in flight completes as usual, the read handler does not start the next one
+    }
+
+    @Override
+    void restartReading() {
+        if (readParked.compareAndSet(true, false)) {
+            startReading();
+        }
+    }
+
+    @Override
+    void sendReply(ByteBuffer reply) {
+        if (!channel.isOpen()) {
+            BufferPools.HASHES.release(reply);
+            return;
+        }
+        outboundQueue.add(reply);
+        if (!channel.isOpen()) {
+            releaseQueuedReplies(); //close() may have drained the queue between the check above and the add
+            return;
+        }
+        if (writeInFlight.compareAndSet(false, true)) {
+            writeQueued();
+        }
+    }
+
+    /**
+     * Start a gathering write of the queued replies, or give up the write flag if there are none. Called only by the
+     * holder of writeInFlight.
+     */
+    private void writeQueued() {
+        while (gatherCount < gatherBuffers.length) {
+            ByteBuffer reply = outboundQueue.poll();
+            if (reply == null) {
+                break;
+            }
+            gatherBuffers[gatherCount++] = reply;
+        }
+        if (gatherCount == 0) {
+            writeInFlight.set(false);
+            // A worker that enqueued after the poll above saw the flag still set and did not start a write
+            if (!outboundQueue.isEmpty() && writeInFlight.compareAndSet(false, true)) {
+                writeQueued();
+            }
+            return;
+        }
+        channel.write(gatherBuffers, 0, gatherCount, 0, TimeUnit.MILLISECONDS, null, writeHandler);
+    }
+
+    @Override
+    void expire() {
+        try {
+            channel.shutdownInput();
+        } catch (IOException e) {
+            if (AppConstants.DEBUG) {
+                e.printStackTrace(); //Already closed
+            }
+        }
+    }
+
+    @Override
+    void close() {
+        try {
+            channel.close(); //Fails the reads and writes in flight, their handlers return the buffers
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (readParked.getAndSet(false) && frame != null) { //No read in flight that could still use the frame
+            BufferPools.PAYLOADS.release(frame);
+            frame = null;
+        }
+        releaseQueuedReplies();
+    }
+
+    /**
+     * Release the replies left in the queue of a closed connection. close(), a late sendReply() and a failed write may
+     * all drain it, poll() hands every reply to only one of them.
+     */
+    private void releaseQueuedReplies() {
+        ByteBuffer reply;
+        while ((reply = outboundQueue.poll()) != null) {
+            BufferPools.HASHES.release(reply);
+        }
+    }
+
+    private class ReadHandler implements CompletionHandler<Long, Void> {
+        @Override
+        public void completed(Long bytesRead, Void attachment) {
+            if (bytesRead == -1) {
+                failed(null, attachment);
+                return;
+            }
+            PipelineEvents.Readiness readinessEvent = new PipelineEvents.Readiness();
+            readinessEvent.begin();
+            framesRead = 0;
+            ProtocolException protocolError = null;
+            try {
+                queueFrames();
+            } catch (ProtocolException e) {
+                protocolError = e;
+            }
+            server.messagesRead(AsyncConnection.this, framesRead, bytesRead.intValue()); //Also for the frames queued before a bad header
+            if (readinessEvent.shouldCommit()) {
+                readinessEvent.connectionId = getId();
+                readinessEvent.bytesRead = bytesRead.intValue();
+                readinessEvent.frames = framesRead;
+                readinessEvent.commit();
+            }
+            if (protocolError != null) {
+                failed(protocolError, attachment);
+                return;
+            }
+
+            if (isReadPaused()) {
+                readParked.set(true);
+                // resumeReading() may have run before the flag was set, in which case nobody else restarts the read
+                if (isReadPaused() || !readParked.compareAndSet(true, false)) {
+                    return;
+                }
+            }
+            startReading();
+        }
+
+        /**
+         * Queue the frames the read completed, counting them in framesRead. A v1 read completes at most one, a v2 read
+         * can also complete the next header, and then the frame it announces if that is empty. The chunks of a streamed
+         * payload are handed to its request and count as one frame once the last one is in.
+         */
+        private void queueFrames() throws ProtocolException {
+            while (true) {
+                if (frame != null) {
+                    if (frame.hasRemaining()) {
+                        return;
+                    }
+                    if (version == 0) {
+                        negotiate();
+                        continue;
+                    }
+                    frame.flip();
+                    if (stream == null) {
+                        server.queueMessage(AsyncConnection.this, frame, requestId);
+                        framesRead++;
+                    } else if (server.queueChunk(stream, frame)) {
+                        stream = null;
+                        framesRead++; //The last chunk completes the streamed request
+                    }
+                    frame = null;
+                    if (streamRemaining > 0) {
+                        startChunk();
+                        continue;
+                    }
+                }
+                if (version != WireProtocol.V2 || header.hasRemaining()) {
+                    return;
+                }
+                header.flip();
+                int length = header.getInt();
+                requestId = header.getLong();
+                header.clear();
+                if (length < 0 || length > WireProtocol.MAX_STREAMED_LENGTH) {
+                    throw new ProtocolException("Request " + requestId + " announces " + length + " payload bytes");
+                }
+                if (length > WireProtocol.MAX_PAYLOAD_LENGTH) {
+                    stream = new StreamedRequest(AsyncConnection.this, requestId, length);
+                    streamRemaining = length;
+                    startChunk();
+                } else {
+                    frame = BufferPools.PAYLOADS.acquire();
+                    frame.limit(length);
+                }
+            }
+        }
+
+        private void startChunk() {
+            frame = BufferPools.PAYLOADS.acquire();
+            frame.limit(Math.min(streamRemaining, frame.capacity()));
+            streamRemaining -= frame.limit();
+        }
+
+        /**
+         * Called once the first PREAMBLE_LENGTH bytes of the connection are in the frame.
+         */
+        private void negotiate() {
+            if (WireProtocol.isPreamble(frame, 0)) {
+                version = WireProtocol.V2;
+                BufferPools.PAYLOADS.release(frame);
+                frame = null;
+                acceptProtocolV2();
+            } else {
+                version = WireProtocol.V1;
+                frame.limit(frame.capacity()); //The bytes are the start of the first message
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            if (exc != null && AppConstants.DEBUG) {
+                exc.printStackTrace();
+            }
+            if (frame != null) {
+                BufferPools.PAYLOADS.release(frame);
+                frame = null;
+            }
+            server.closeConnection(AsyncConnection.this);
+        }
+    }
+
+    private class WriteHandler implements CompletionHandler<Long, Void> {
+        @Override
+        public void completed(Long bytesWritten, Void attachment) {
+            int written = 0;
+            while (written < gatherCount && !gatherBuffers[written].hasRemaining()) {
+                BufferPools.HASHES.release(gatherBuffers[written]);
+                written++;
+            }
+            recordSent(written, bytesWritten);
+            System.arraycopy(gatherBuffers, written, gatherBuffers, 0, gatherCount - written);
+            for (int i = gatherCount - written; i < gatherCount; i++) {
+                gatherBuffers[i] = null;
+            }
+            gatherCount -= written;
+            writeQueued(); //Continues a partial write or picks up the replies queued meanwhile
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            if (AppConstants.DEBUG) {
+                exc.printStackTrace();
+            }
+            for (int i = 0; i < gatherCount; i++) {
+                BufferPools.HASHES.release(gatherBuffers[i]);
+                gatherBuffers[i] = null;
+            }
+            gatherCount = 0;
+            server.closeConnection(AsyncConnection.this);
+            releaseQueuedReplies(); //Queued after close() drained, the write chain ends here and never picks them up
+            writeInFlight.set(false);
+        }
+    }
+}
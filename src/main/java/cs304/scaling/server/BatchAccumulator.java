@@ -0,0 +1,229 @@
+package cs304.scaling.server;
+
+import cs304.scaling.functions.BatchExecutorTask;
+import cs304.scaling.functions.TaskInterface;
+import cs304.scaling.utils.HashedTimingWheel;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+class BatchAccumulator {
+    private static final AtomicLong NEXT_BATCH_ID = new AtomicLong(0); //Shared by all accumulators so ids are unique per server
+    private static final int FILLED = 1; //Readiness bits of a batch, it is dispatched by whoever sets the second one
+    private static final int TURN = 2;
+
+    private final ThreadPool threadPool;
+    private final int shard; //Shard the batches are dispatched to
+    private final HashedTimingWheel timingWheel;
+    private final AtomicReference<Batch> current; //Batch currently accepting tasks
+    private final AtomicInteger queuedBatches; //Batches dispatched to the executor that have not started executing yet
+    private final LongAdder dispatchedTasks; //Tasks dispatched since the last call to takeDispatchedTaskCount()
+    private final LongAdder totalBatches; //Batches dispatched since start
+    private final LongAdder totalBatchedTasks; //Tasks in those batches
+    private volatile int batchSize; //Capacity of the next batch, may be changed at runtime by the adaptive tuner
+    private volatile long batchTimeNanos; //Flush delay of the next batch, may be changed at runtime by the adaptive tuner
+    private AdaptiveBatchTuner batchTuner; //Receives execution measurements of every batch, null when batching is static
+
+    BatchAccumulator(ThreadPool threadPool, int shard, HashedTimingWheel timingWheel, int batchSize, long batchTimeNanos) {
+        this.threadPool = threadPool;
+        this.shard = shard;
+        this.timingWheel = timingWheel;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchTimeNanos = batchTimeNanos;
+        Batch first = new Batch(this.batchSize);
+        first.readiness.set(TURN); //No predecessor to wait for
+        this.current = new AtomicReference<>(first);
+        this.queuedBatches = new AtomicInteger(0);
+        this.dispatchedTasks = new LongAdder();
+        this.totalBatches = new LongAdder();
+        this.totalBatchedTasks = new LongAdder();
+    }
+
+    void setBatchTuner(AdaptiveBatchTuner batchTuner) {
+        this.batchTuner = batchTuner;
+    }
+
+    /**
+     * Takes effect from the next batch onwards, the current batch keeps its capacity.
+     * @param batchSize
+     */
+    void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    void setBatchTimeNanos(long batchTimeNanos) {
+        this.batchTimeNanos = batchTimeNanos;
+    }
+
+    int getQueuedBatchCount() {
+        return queuedBatches.get();
+    }
+
+    long takeDispatchedTaskCount() {
+        return dispatchedTasks.sumThenReset();
+    }
+
+    long getTotalBatchCount() {
+        return totalBatches.sum();
+    }
+
+    long getTotalBatchedTaskCount() {
+        return totalBatchedTasks.sum();
+    }
+
+    /**
+     * Add a task to the current batch without taking a lock. A producer claims a slot with a single getAndIncrement,
+     * the first task of a batch schedules its flush on the timing wheel and the producer filling the last slot rolls
+     * over to a new batch. A batch is dispatched once its arrival count reaches its capacity and the batch before it
+     * was dispatched, so batches reach the executor in the order they were opened, and a sharded executor answers the
+     * messages of a connection in order even when a slow producer holds up an older batch.
+     * @param task
+     * @return id of the batch the task was added to
+     */
+    long add(TaskInterface task) {
+        while (true) {
+            Batch batch = current.get();
+            int slot = batch.claimed.getAndIncrement();
+            if (slot >= batch.capacity) { //Batch is full or was sealed by the timer, move on to a fresh one
+                rollOver(batch);
+                continue;
+            }
+            if (slot == 0) {
+                batch.firstArrivalNanos = System.nanoTime(); //Published to the dispatcher through the slot write below
+            }
+            task.onBatched(batch.id);
+            batch.slots.set(slot, task);
+            if (slot == 0 && batch.capacity > 1) {
+                timingWheel.schedule(() -> seal(batch), batchTimeNanos, TimeUnit.NANOSECONDS);
+            }
+            if (slot == batch.capacity - 1) {
+                rollOver(batch);
+            }
+            arrive(batch, 1);
+            return batch.id;
+        }
+    }
+
+    /**
+     * Called on the timing wheel thread once batchTime has passed since the first task of the batch arrived. Closes
+     * the batch for further producers and accounts for the slots that will never be filled.
+     * @param batch
+     */
+    private void seal(Batch batch) {
+        int claimedAtSeal = batch.claimed.getAndAdd(batch.capacity); //Pushes the claim counter past capacity
+        if (claimedAtSeal >= batch.capacity) {
+            return; //Batch filled up before the timer fired, the last producer dispatches it
+        }
+        batch.sealedSize = claimedAtSeal;
+        rollOver(batch);
+        arrive(batch, batch.capacity - claimedAtSeal);
+    }
+
+    /**
+     * Link the successor of a full or sealed batch and make it current. Every caller does this before its arrival, so
+     * a batch always has its successor linked by the time it is dispatched.
+     * @param batch
+     */
+    private void rollOver(Batch batch) {
+        Batch successor = batch.next.get();
+        if (successor == null) {
+            Batch fresh = new Batch(batchSize);
+            successor = batch.next.compareAndSet(null, fresh) ? fresh : batch.next.get();
+        }
+        current.compareAndSet(batch, successor);
+    }
+
+    private void arrive(Batch batch, int count) {
+        if (batch.arrived.addAndGet(count) == batch.capacity) {
+            markReady(batch, FILLED);
+        }
+    }
+
+    /**
+     * Set a readiness bit of batch and, if that completes it, dispatch it and hand the turn on to its successors.
+     * @param batch
+     * @param bit FILLED or TURN
+     */
+    private void markReady(Batch batch, int bit) {
+        while (batch != null && batch.readiness.addAndGet(bit) == (FILLED | TURN)) {
+            int size = batch.sealedSize >= 0 ? batch.sealedSize : batch.capacity;
+            ArrayList<TaskInterface> tasks = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                tasks.add(batch.slots.get(i));
+            }
+            dispatch(new BatchExecutorTask(tasks), batch.id, size, batch.sealedSize >= 0, batch.firstArrivalNanos);
+            batch = batch.next.get(); //Linked by rollOver() before the batch could fill up
+            bit = TURN;
+        }
+    }
+
+    /**
+     * Queue the batch task, wrapped so that the queue depth and the execution time of every batch are measured.
+     */
+    private void dispatch(BatchExecutorTask batchTask, long batchId, int size, boolean sealedByTimer,
+                          long firstArrivalNanos) {
+        dispatchedTasks.add(size);
+        totalBatches.increment();
+        totalBatchedTasks.add(size);
+        queuedBatches.incrementAndGet();
+        PipelineEvents.BatchDispatch dispatchEvent = new PipelineEvents.BatchDispatch();
+        dispatchEvent.begin();
+        long dispatchNanos = System.nanoTime();
+        threadPool.notifyAndExecuteImmediate(() -> {
+            queuedBatches.decrementAndGet();
+            PipelineEvents.BatchExecution executionEvent = new PipelineEvents.BatchExecution();
+            executionEvent.begin();
+            long startNanos = System.nanoTime();
+            batchTask.onTask();
+            long endNanos = System.nanoTime();
+            if (executionEvent.shouldCommit()) {
+                executionEvent.batchId = batchId;
+                executionEvent.shard = shard;
+                executionEvent.batchSize = size;
+                executionEvent.queueWait = startNanos - dispatchNanos;
+                executionEvent.commit();
+            }
+            AdaptiveBatchTuner tuner = batchTuner;
+            if (tuner != null) {
+                tuner.recordBatch(size, endNanos - firstArrivalNanos, endNanos - startNanos);
+            }
+        }, shard);
+        if (dispatchEvent.shouldCommit()) {
+            dispatchEvent.batchId = batchId;
+            dispatchEvent.shard = shard;
+            dispatchEvent.batchSize = size;
+            dispatchEvent.sealedByTimer = sealedByTimer;
+            dispatchEvent.fillTime = dispatchNanos - firstArrivalNanos;
+            dispatchEvent.commit();
+        }
+    }
+
+    private static final class Batch {
+        private final long id;
+        private final int capacity;
+        private final AtomicReferenceArray<TaskInterface> slots;
+        private final AtomicInteger claimed; //Slots handed out to producers, pushed past capacity when sealed
+        private final AtomicInteger arrived; //Slots written plus the slots given up by seal()
+        private final AtomicInteger readiness; //FILLED and TURN bits set so far
+        private final AtomicReference<Batch> next; //Batch opened after this one, dispatched after it
+        private volatile int sealedSize; //Number of tasks when the batch was sealed by the timer, -1 while unsealed
+        private long firstArrivalNanos;
+
+        Batch(int capacity) {
+            this.id = NEXT_BATCH_ID.incrementAndGet();
+            this.capacity = capacity;
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.claimed = new AtomicInteger(0);
+            this.arrived = new AtomicInteger(0);
+            this.readiness = new AtomicInteger(0);
+            this.next = new AtomicReference<>();
+            this.sealedSize = -1;
+        }
+    }
+}
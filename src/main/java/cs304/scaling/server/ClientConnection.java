@@ -0,0 +1,191 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.BufferPools;
+import cs304.scaling.utils.HashedTimingWheel;
+import cs304.scaling.utils.WireProtocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// * State of one client connection that every transport shares: its id, its thread pool shard, the wire protocol it
+// * speaks, the traffic counters read by ServerMetrics and the reasons reading is paused for. How bytes move is
+// * up to the subclass of the transport that accepted the connection.
+
+public abstract class ClientConnection {
+    static final int PAUSED_BY_ADMISSION = 1; //Reasons to stop reading, a connection reads again once all are cleared
+    static final int PAUSED_BY_STREAM = 2;
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(0);
+
+    private final long id; //Identifies the connection in flight recordings
+    private final int shard; //Thread pool shard all tasks of this connection are batched and executed on
+    private final AdmissionControl admissionControl; //Told about every reply, may pause and resume reading
+    private final LongAdder messagesReceived; //Counters only ever grow, windows are computed by ServerMetrics
+    private final LongAdder bytesReceived;
+    private final LongAdder repliesSent;
+    private final LongAdder bytesSent;
+    private final AtomicInteger pendingTasks; //Messages read from this connection and not yet answered
+    private final AtomicInteger readPauses; //PAUSED_BY_* bits of everyone who currently wants reading stopped
+    private volatile int protocolVersion; //Written by the transport before the first v2 message is queued, read by the workers
+    private volatile long lastActivityNanos; //Last time anything was read or written, read by the IdleReaper
+    long messagesAtWindowStart; //Messages received when the current stats window started, guarded by ServerMetrics
+    volatile HashedTimingWheel.Timeout idleCheck; //Next idle check of the IdleReaper, cancelled when the connection closes
+    volatile boolean idleUntracked; //Set when the connection closes, the IdleReaper schedules no check after it
+
+    ClientConnection(int shard, AdmissionControl admissionControl) {
+        this.id = NEXT_ID.incrementAndGet();
+        this.shard = shard;
+        this.admissionControl = admissionControl;
+        this.messagesReceived = new LongAdder();
+        this.bytesReceived = new LongAdder();
+        this.repliesSent = new LongAdder();
+        this.bytesSent = new LongAdder();
+        this.pendingTasks = new AtomicInteger(0);
+        this.readPauses = new AtomicInteger(0);
+        this.protocolVersion = WireProtocol.V1;
+        this.lastActivityNanos = System.nanoTime();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    int getShard() {
+        return shard;
+    }
+
+    void recordReceived(int messages, int bytes) {
+        messagesReceived.add(messages);
+        bytesReceived.add(bytes);
+        lastActivityNanos = System.nanoTime();
+    }
+
+    void recordSent(int replies, long bytes) {
+        repliesSent.add(replies);
+        bytesSent.add(bytes);
+        lastActivityNanos = System.nanoTime();
+    }
+
+    long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    long getRepliesSent() {
+        return repliesSent.sum();
+    }
+
+    long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    int addPendingTasks(int delta) {
+        return pendingTasks.addAndGet(delta);
+    }
+
+    int getPendingTasks() {
+        return pendingTasks.get();
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Switch the connection to protocol v2 after its preamble arrived, and acknowledge with the preamble ahead of any
+     * reply. Called by the transport thread before it queues the first v2 message.
+     */
+    void acceptProtocolV2() {
+        protocolVersion = WireProtocol.V2;
+        ByteBuffer preamble = BufferPools.HASHES.acquire();
+        WireProtocol.putPreamble(preamble);
+        preamble.flip();
+        sendReply(preamble); //Not the answer to a message, so the admission control is not told
+    }
+
+    boolean isReadPaused() {
+        return readPauses.get() != 0;
+    }
+
+    /**
+     * @param reason one of the PAUSED_BY_* bits
+     * @return true if reading is stopped for reason, it may also be stopped for others
+     */
+    boolean isReadPaused(int reason) {
+        return (readPauses.get() & reason) != 0;
+    }
+
+    /**
+     * Stop reading from the client, so it is held back by TCP flow control once the socket buffers fill up.
+     * @param reason one of the PAUSED_BY_* bits
+     * @return false if reading was already paused for reason
+     */
+    boolean pauseReading(int reason) {
+        int pauses;
+        do {
+            pauses = readPauses.get();
+            if ((pauses & reason) != 0) {
+                return false;
+            }
+        } while (!readPauses.compareAndSet(pauses, pauses | reason));
+        if (pauses == 0) {
+            stopReading();
+        }
+        return true;
+    }
+
+    /**
+     * Clear a reason to pause, and read from the client again once no other reason is left. Can be called from any
+     * thread.
+     * @param reason one of the PAUSED_BY_* bits
+     * @return false if reading was not paused for reason
+     */
+    boolean resumeReading(int reason) {
+        int pauses;
+        do {
+            pauses = readPauses.get();
+            if ((pauses & reason) == 0) {
+                return false;
+            }
+        } while (!readPauses.compareAndSet(pauses, pauses & ~reason));
+        if (pauses == reason) {
+            restartReading();
+        }
+        return true;
+    }
+
+    /**
+     * Queue the reply to a message of this connection. Called by the worker that hashed the message.
+     * @param reply flipped pooled buffer, released by the connection once written
+     */
+    public void enqueueReply(ByteBuffer reply) {
+        admissionControl.completed(this);
+        sendReply(reply);
+    }
+
+    abstract void sendReply(ByteBuffer reply);
+
+    abstract void stopReading();
+
+    abstract void restartReading();
+
+    /**
+     * Shut down the input of the channel, so the transport reads end of stream and tears the connection down on its
+     * own thread as if the client had closed it. Can be called from any thread.
+     */
+    abstract void expire();
+
+    /**
+     * Close the channel and return all pooled buffers held by the connection.
+     */
+    abstract void close();
+}
@@ -0,0 +1,164 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.BufferPools;
+import cs304.scaling.utils.WireProtocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+class FrameDecoder {
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect(AppConstants.READ_BUFFER_SIZE)); //One per selector thread, shared by all its connections
+
+    private final ClientConnection connection; //Switched to protocol v2 when its first bytes are the preamble
+    private final ByteBuffer header; //Header of the v2 frame that is currently arriving
+    private int version; //0 until the first WireProtocol.PREAMBLE_LENGTH bytes have arrived
+    private long requestId; //Request id of the last v2 frame handed out
+    private StreamedRequest stream; //Request the frames handed out are chunks of, null for whole messages
+    private int streamRemaining; //Bytes of the streamed payload that are not in a chunk yet
+    private ByteBuffer partialFrame; //Pooled buffer accumulating the frame that is currently arriving, null between frames
+    private ByteBuffer readBuffer; //Bytes of the last read that have not been copied into a frame yet
+
+    FrameDecoder(ClientConnection connection) {
+        this.connection = connection;
+        this.header = ByteBuffer.allocate(WireProtocol.REQUEST_HEADER_LENGTH);
+    }
+
+    /**
+     * Do a single non-blocking read from the channel. The bytes read are handed out by nextFrame().
+     * @param channel
+     * @return number of bytes read, -1 at end of stream
+     */
+    int read(SocketChannel channel) throws IOException {
+        readBuffer = READ_BUFFER.get();
+        readBuffer.clear();
+        int numBytesRead = channel.read(readBuffer);
+        readBuffer.flip();
+        return numBytesRead;
+    }
+
+    /**
+     * Move the bytes of the last read into the partial frame. A read can complete any number of frames, so this is
+     * called until it returns null, and the bytes of an incomplete trailing frame are kept for the next read. The first
+     * bytes of a connection decide its protocol: the v2 preamble is acknowledged and dropped, anything else is the start
+     * of the first 8KB v1 message. A v2 payload longer than WireProtocol.MAX_PAYLOAD_LENGTH is handed out in chunks of
+     * that size as they fill up, see getStream().
+     * @return the next complete frame, flipped and owned by the caller, or null once the last read is used up
+     * @throws ProtocolException if a v2 header announces a payload longer than WireProtocol.MAX_STREAMED_LENGTH
+     */
+    ByteBuffer nextFrame() throws ProtocolException {
+        while (true) {
+            if (partialFrame != null && !partialFrame.hasRemaining()) {
+                if (version == 0) {
+                    negotiate();
+                    continue;
+                }
+                ByteBuffer frame = partialFrame;
+                partialFrame = null;
+                frame.flip();
+                return frame;
+            }
+            if (readBuffer == null || !readBuffer.hasRemaining()) {
+                readBuffer = null;
+                return null;
+            }
+            if (partialFrame == null) {
+                startFrame(); //Leaves partialFrame null while a v2 header is incomplete
+            } else {
+                transfer(readBuffer, partialFrame);
+            }
+        }
+    }
+
+    /**
+     * @return request id of the frame nextFrame() returned last, meaningful for v2 connections only
+     */
+    long getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * @return streamed request the frame nextFrame() returned last is a chunk of, null if it was a whole message
+     */
+    StreamedRequest getStream() {
+        return stream;
+    }
+
+    private void startFrame() throws ProtocolException {
+        if (streamRemaining > 0) {
+            startChunk();
+            return;
+        }
+        if (version != WireProtocol.V2) {
+            partialFrame = BufferPools.PAYLOADS.acquire();
+            if (version == 0) {
+                partialFrame.limit(WireProtocol.PREAMBLE_LENGTH);
+            }
+            return;
+        }
+        transfer(readBuffer, header);
+        if (header.hasRemaining()) {
+            return;
+        }
+        header.flip();
+        int length = header.getInt();
+        requestId = header.getLong();
+        header.clear();
+        if (length < 0 || length > WireProtocol.MAX_STREAMED_LENGTH) {
+            throw new ProtocolException("Request " + requestId + " announces " + length + " payload bytes");
+        }
+        if (length > WireProtocol.MAX_PAYLOAD_LENGTH) {
+            stream = new StreamedRequest(connection, requestId, length);
+            streamRemaining = length;
+            startChunk();
+            return;
+        }
+        stream = null;
+        partialFrame = BufferPools.PAYLOADS.acquire();
+        partialFrame.limit(length);
+    }
+
+    private void startChunk() {
+        partialFrame = BufferPools.PAYLOADS.acquire();
+        partialFrame.limit(Math.min(streamRemaining, partialFrame.capacity()));
+        streamRemaining -= partialFrame.limit();
+    }
+
+    /**
+     * Called once the first PREAMBLE_LENGTH bytes of the connection are in the partial frame.
+     */
+    private void negotiate() {
+        if (WireProtocol.isPreamble(partialFrame, 0)) {
+            version = WireProtocol.V2;
+            BufferPools.PAYLOADS.release(partialFrame);
+            partialFrame = null;
+            connection.acceptProtocolV2();
+        } else {
+            version = WireProtocol.V1;
+            partialFrame.limit(partialFrame.capacity()); //The bytes are the start of the first message
+        }
+    }
+
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int count = Math.min(from.remaining(), to.remaining());
+        int limit = from.limit();
+        from.limit(from.position() + count);
+        to.put(from);
+        from.limit(limit);
+    }
+
+    /**
+     * Return the partial frame to the pool once the connection is closed.
+     */
+    void release() {
+        if (partialFrame != null) {
+            BufferPools.PAYLOADS.release(partialFrame);
+            partialFrame = null;
+        }
+        readBuffer = null;
+    }
+}
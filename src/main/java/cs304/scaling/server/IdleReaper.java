@@ -0,0 +1,110 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.HashedTimingWheel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// * Closes connections that have not read or written anything for the idle timeout, such as clients that dropped off
+// * the network without closing their socket. Every connection has a single check on a coarse timing wheel. Reads and
+// * writes only stamp the connection, and a check that finds recent activity rearms itself for the rest of the timeout,
+// * so a busy connection costs one wheel entry per timeout instead of one per message.
+
+class IdleReaper {
+    private static final int TICKS_PER_WHEEL = 512; //One rotation spans the idle timeout, so a check is never more than one round away
+    private static final long MIN_TICK_MILLIS = 10; //Keeps the wheel thread from waking up constantly for short timeouts
+
+    private final long timeoutNanos;
+    private final HashedTimingWheel timingWheel;
+    private final LongAdder reapedConnections;
+
+    /**
+     * @param timeoutMillis 0 disables reaping
+     */
+    IdleReaper(long timeoutMillis) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.timingWheel = new HashedTimingWheel("IdleConnectionReaper", tickMillis(timeoutMillis), TimeUnit.MILLISECONDS,
+                TICKS_PER_WHEEL);
+        this.reapedConnections = new LongAdder();
+    }
+
+    /**
+     * Granularity of the idle timeout, connections are reaped at most one tick late.
+     * @param timeoutMillis
+     * @return a TICKS_PER_WHEEL-th of the timeout, at least MIN_TICK_MILLIS
+     */
+    static long tickMillis(long timeoutMillis) {
+        return Math.max(MIN_TICK_MILLIS, timeoutMillis / TICKS_PER_WHEEL);
+    }
+
+    boolean isEnabled() {
+        return timeoutNanos > 0;
+    }
+
+    void start() {
+        if (isEnabled()) {
+            timingWheel.start();
+        }
+    }
+
+    long getReapedCount() {
+        return reapedConnections.sum();
+    }
+
+    /**
+     * Start watching a newly accepted connection.
+     * @param connection
+     */
+    void track(ClientConnection connection) {
+        if (isEnabled()) {
+            scheduleCheck(connection, timeoutNanos);
+        }
+    }
+
+    /**
+     * Stop watching a closed connection, so the wheel does not keep it reachable for the rest of its timeout.
+     * @param connection
+     */
+    void untrack(ClientConnection connection) {
+        connection.idleUntracked = true; //Before reading idleCheck, see scheduleCheck()
+        HashedTimingWheel.Timeout idleCheck = connection.idleCheck;
+        if (idleCheck != null) {
+            idleCheck.cancel();
+        }
+    }
+
+    /**
+     * A check that rearms itself while the connection closes may publish its next timeout after untrack() read the
+     * previous one, so the flag is read again after the write and the new timeout cancelled here if it was missed.
+     */
+    private void scheduleCheck(ClientConnection connection, long delayNanos) {
+        HashedTimingWheel.Timeout idleCheck = timingWheel.schedule(() -> check(connection), delayNanos, TimeUnit.NANOSECONDS);
+        connection.idleCheck = idleCheck;
+        if (connection.idleUntracked) {
+            idleCheck.cancel();
+        }
+    }
+
+    /**
+     * Runs on the timing wheel thread. The connection is expired rather than closed here, so its buffers are still
+     * only ever touched by the thread that does its I/O.
+     * @param connection
+     */
+    private void check(ClientConnection connection) {
+        if (connection.idleUntracked) {
+            return; //Closed meanwhile, neither rearmed nor counted
+        }
+        long idleNanos = System.nanoTime() - connection.getLastActivityNanos();
+        if (idleNanos < timeoutNanos) {
+            scheduleCheck(connection, timeoutNanos - idleNanos);
+            return;
+        }
+        reapedConnections.increment();
+        if (AppConstants.DEBUG) {
+            System.out.println("Closing connection " + connection.getId() + " after "
+                    + TimeUnit.NANOSECONDS.toMillis(idleNanos) + " ms without traffic");
+        }
+        connection.expire();
+    }
+}
@@ -0,0 +1,51 @@
+package cs304.scaling.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import cs304.scaling.utils.AppConstants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+
+class MetricsEndpoint {
+    private final ServerMetrics metrics;
+    private final HttpServer httpServer;
+
+    /**
+     * Serve the server metrics in the Prometheus text format on GET /metrics. Requests are handled one at a time on the
+     * HTTP server's own thread.
+     * @param metrics
+     * @param port
+     */
+    MetricsEndpoint(ServerMetrics metrics, int port) throws IOException {
+        this.metrics = metrics;
+        this.httpServer = HttpServer.create(new InetSocketAddress(AppConstants.METRICS_BIND_ADDRESS, port), 0);
+        this.httpServer.createContext("/metrics", this::handle);
+    }
+
+    void start() {
+        httpServer.start();
+        System.out.println("Metrics available at http://" + AppConstants.METRICS_BIND_ADDRESS + ":"
+                + httpServer.getAddress().getPort() + "/metrics");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
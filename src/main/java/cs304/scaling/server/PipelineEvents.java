@@ -0,0 +1,142 @@
+package cs304.scaling.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+// * Flight Recorder events for the stages a message goes through: readiness, enqueue into a batch, batch dispatch,
+// * batch execution, hashing and the reply write. None of them records a stack trace, and the two events emitted once
+// * per message only keep the slow ones by default, so the events can stay enabled in production. Every event can be
+// * tuned in a .jfc file, e.g. jfr configure +cs304.scaling.Hash#threshold=0ms records every hash.
+
+public final class PipelineEvents {
+    private static final String CATEGORY = "Scaling Server";
+
+    private PipelineEvents() {
+    }
+
+    @Name("cs304.scaling.Readiness")
+    @Label("Read Readiness")
+    @Description("Connection became readable, its bytes were read and decoded and the frames queued into batches")
+    @Category({CATEGORY, "Pipeline"})
+    @StackTrace(false)
+    public static final class Readiness extends Event {
+        @Label("Connection Id")
+        public long connectionId;
+
+        @Label("Bytes Read")
+        public int bytesRead;
+
+        @Label("Frames")
+        public int frames;
+    }
+
+    @Name("cs304.scaling.Enqueue")
+    @Label("Task Enqueue")
+    @Description("Read-write task added to the batch of its shard")
+    @Category({CATEGORY, "Pipeline"})
+    @StackTrace(false)
+    @Threshold("20 us")
+    public static final class Enqueue extends Event {
+        @Label("Connection Id")
+        public long connectionId;
+
+        @Label("Batch Id")
+        public long batchId;
+
+        @Label("Shard")
+        public int shard;
+    }
+
+    @Name("cs304.scaling.BatchDispatch")
+    @Label("Batch Dispatch")
+    @Description("Full or timed out batch handed to the executor")
+    @Category({CATEGORY, "Pipeline"})
+    @StackTrace(false)
+    public static final class BatchDispatch extends Event {
+        @Label("Batch Id")
+        public long batchId;
+
+        @Label("Shard")
+        public int shard;
+
+        @Label("Batch Size")
+        public int batchSize;
+
+        @Label("Sealed By Timer")
+        public boolean sealedByTimer;
+
+        @Label("Fill Time")
+        @Description("Time between the arrival of the first task and the dispatch")
+        @Timespan(Timespan.NANOSECONDS)
+        public long fillTime;
+    }
+
+    @Name("cs304.scaling.BatchExecution")
+    @Label("Batch Execution")
+    @Description("Batch executed by a worker, the event duration is the service time of the batch")
+    @Category({CATEGORY, "Pipeline"})
+    @StackTrace(false)
+    public static final class BatchExecution extends Event {
+        @Label("Batch Id")
+        public long batchId;
+
+        @Label("Shard")
+        public int shard;
+
+        @Label("Batch Size")
+        public int batchSize;
+
+        @Label("Queue Wait")
+        @Description("Time between the dispatch and the start of the execution")
+        @Timespan(Timespan.NANOSECONDS)
+        public long queueWait;
+    }
+
+    @Name("cs304.scaling.Hash")
+    @Label("Message Hash")
+    @Description("Hash of one message, the event duration is its service time")
+    @Category({CATEGORY, "Pipeline"})
+    @StackTrace(false)
+    @Threshold("20 us")
+    public static final class Hash extends Event {
+        @Label("Connection Id")
+        public long connectionId;
+
+        @Label("Batch Id")
+        public long batchId;
+
+        @Label("Payload Bytes")
+        public int payloadBytes;
+
+        @Label("Multi-Buffer")
+        @Description("Digest was computed together with other messages, the duration only covers writing the reply")
+        public boolean multiBuffer;
+
+        @Label("Queue Wait")
+        @Description("Time between adding the task to its batch and hashing it")
+        @Timespan(Timespan.NANOSECONDS)
+        public long queueWait;
+    }
+
+    @Name("cs304.scaling.ReplyWrite")
+    @Label("Reply Write")
+    @Description("Gathering write of queued replies to a connection")
+    @Category({CATEGORY, "Pipeline"})
+    @StackTrace(false)
+    public static final class ReplyWrite extends Event {
+        @Label("Connection Id")
+        public long connectionId;
+
+        @Label("Replies")
+        public int replies;
+
+        @Label("Bytes Written")
+        public long bytesWritten;
+    }
+}
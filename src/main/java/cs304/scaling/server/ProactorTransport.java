@@ -0,0 +1,99 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// * Proactor transport on NIO.2: accepts, reads and writes are started asynchronously and finished by completion
+// * handlers running on a fixed AsynchronousChannelGroup. Complete messages are queued into the same batches as with
+// * the selector transport, only the way the bytes are moved differs.
+
+class ProactorTransport implements Transport {
+    private final Server server;
+    private final int ioThreads;
+    private final AsynchronousChannelGroup channelGroup;
+    private final AsynchronousServerSocketChannel serverChannel;
+    private final AcceptHandler acceptHandler;
+    private final Timer acceptRetryTimer; //Starts the next accept after a failed one, the I/O threads never wait
+
+    /**
+     * @param server
+     * @param address
+     * @param ioThreads number of threads of the channel group running all completion handlers
+     */
+    ProactorTransport(Server server, InetSocketAddress address, int ioThreads) throws IOException {
+        this.server = server;
+        this.ioThreads = ioThreads;
+        AtomicInteger threadIds = new AtomicInteger(0);
+        this.channelGroup = AsynchronousChannelGroup.withFixedThreadPool(ioThreads,
+                runnable -> new Thread(runnable, "Proactor-" + threadIds.getAndIncrement()));
+        this.serverChannel = AsynchronousServerSocketChannel.open(channelGroup).bind(address, AppConstants.ACCEPT_BACKLOG);
+        this.acceptHandler = new AcceptHandler();
+        this.acceptRetryTimer = new Timer("ProactorAcceptRetry", true);
+    }
+
+    /**
+     * Start accepting and block the calling thread, all the work happens on the channel group threads.
+     */
+    @Override
+    public void serve() throws IOException {
+        System.out.println("Server running with " + ioThreads + " proactor I/O threads");
+        serverChannel.accept(null, acceptHandler);
+        while (true) {
+            try {
+                channelGroup.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                return;
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Void> {
+        private volatile boolean failing; //Set by the first failed accept of a burst, cleared by the next success
+
+        @Override
+        public void completed(AsynchronousSocketChannel channel, Void attachment) {
+            failing = false;
+            serverChannel.accept(null, this); //Only one accept may be outstanding, start the next one first
+            AsyncConnection connection = new AsyncConnection(server, channel, server.getThreadPool().assignShard(),
+                    server.getAdmissionControl());
+            server.connectionOpened(connection);
+            connection.startReading();
+            if (AppConstants.DEBUG) {
+                System.out.println("Accepted connection " + connection.getId());
+            }
+        }
+
+        /**
+         * A failed accept, e.g. out of file descriptors, leaves the connection in the backlog and would fail again right
+         * away, so the next one starts after AppConstants.ACCEPT_RETRY_MILLIS and only the first failure in a row is
+         * reported.
+         */
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            if (!serverChannel.isOpen()) {
+                return;
+            }
+            if (!failing) {
+                exc.printStackTrace();
+                failing = true;
+            }
+            acceptRetryTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    serverChannel.accept(null, AcceptHandler.this);
+                }
+            }, AppConstants.ACCEPT_RETRY_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.BufferPools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+class SelectorConnection extends ClientConnection {
+    private final SocketChannel channel;
+    private final FrameDecoder decoder; //Only touched by the selector thread owning the connection
+    private final ConcurrentLinkedQueue<ByteBuffer> outboundQueue; //Replies enqueued by the workers, flushed by the selector thread
+    private final AtomicBoolean flushScheduled; //True while OP_WRITE is requested for the queued replies
+    private final ByteBuffer[] gatherBuffers; //Replies handed to the current gathering write, partially written ones stay at the front
+    private int gatherCount;
+    private volatile SelectionKey selectionKey;
+
+    SelectorConnection(SocketChannel channel, int shard, AdmissionControl admissionControl) {
+        super(shard, admissionControl);
+        this.channel = channel;
+        this.decoder = new FrameDecoder(this);
+        this.outboundQueue = new ConcurrentLinkedQueue<>();
+        this.flushScheduled = new AtomicBoolean(false);
+        this.gatherBuffers = new ByteBuffer[AppConstants.MAX_GATHERED_WRITES];
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Queue a reply for the selector thread to write. Only the first reply after a flush requests OP_WRITE and wakes
+     * the selector, so replies that pile up in the meantime go out together in one gathering write.
+     * @param reply flipped pooled buffer, released by the connection once written
+     */
+    @Override
+    void sendReply(ByteBuffer reply) {
+        if (!channel.isOpen()) {
+            BufferPools.HASHES.release(reply);
+            return;
+        }
+        outboundQueue.add(reply);
+        if (!channel.isOpen()) {
+            releaseQueuedReplies(); //close() may have drained the queue between the check above and the add
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            updateInterest(SelectionKey.OP_WRITE, true);
+            selectionKey.selector().wakeup();
+        }
+    }
+
+    /**
+     * Write queued replies with gathering writes until either the queue is drained, in which case OP_WRITE is dropped
+     * again, or the socket send buffer is full, in which case the rest waits for the next OP_WRITE. Called by the
+     * selector thread only.
+     */
+    void flush() throws IOException {
+        while (true) {
+            while (gatherCount < gatherBuffers.length) {
+                ByteBuffer reply = outboundQueue.poll();
+                if (reply == null) {
+                    break;
+                }
+                gatherBuffers[gatherCount++] = reply;
+            }
+
+            if (gatherCount == 0) {
+                updateInterest(SelectionKey.OP_WRITE, false);
+                flushScheduled.set(false);
+                // A worker that enqueued after the poll above saw flushScheduled still set and did not request
+                // OP_WRITE, so check once more before going back to sleep
+                if (outboundQueue.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                updateInterest(SelectionKey.OP_WRITE, true);
+                continue;
+            }
+
+            PipelineEvents.ReplyWrite writeEvent = new PipelineEvents.ReplyWrite();
+            writeEvent.begin();
+            long bytesWritten = channel.write(gatherBuffers, 0, gatherCount);
+            int written = 0;
+            while (written < gatherCount && !gatherBuffers[written].hasRemaining()) {
+                BufferPools.HASHES.release(gatherBuffers[written]);
+                written++;
+            }
+            recordSent(written, bytesWritten);
+            if (writeEvent.shouldCommit()) {
+                writeEvent.connectionId = getId();
+                writeEvent.replies = written;
+                writeEvent.bytesWritten = bytesWritten;
+                writeEvent.commit();
+            }
+            if (written < gatherCount) {
+                System.arraycopy(gatherBuffers, written, gatherBuffers, 0, gatherCount - written);
+                for (int i = gatherCount - written; i < gatherCount; i++) {
+                    gatherBuffers[i] = null;
+                }
+                gatherCount -= written;
+                return; //Send buffer is full, OP_WRITE stays set
+            }
+            for (int i = 0; i < gatherCount; i++) {
+                gatherBuffers[i] = null;
+            }
+            gatherCount = 0;
+        }
+    }
+
+    @Override
+    void stopReading() {
+        updateReadInterest();
+    }
+
+    /**
+     * Can be called from a worker thread, the selector is woken up to pick up the change.
+     */
+    @Override
+    void restartReading() {
+        updateReadInterest();
+        selectionKey.selector().wakeup();
+    }
+
+    /**
+     * A pause on the selector thread and a resume on a worker can flip the paused flag in one order and reach the
+     * interest set in the other, so OP_READ follows the flag as it is when the monitor is held, not the call.
+     */
+    private synchronized void updateReadInterest() {
+        updateInterest(SelectionKey.OP_READ, !isReadPaused());
+    }
+
+    @Override
+    void expire() {
+        try {
+            channel.shutdownInput();
+        } catch (IOException e) {
+            if (AppConstants.DEBUG) {
+                e.printStackTrace(); //Already closed
+            }
+        }
+    }
+
+    @Override
+    void close() {
+        SelectionKey key = selectionKey;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        decoder.release();
+        for (int i = 0; i < gatherCount; i++) {
+            BufferPools.HASHES.release(gatherBuffers[i]);
+            gatherBuffers[i] = null;
+        }
+        gatherCount = 0;
+        releaseQueuedReplies();
+    }
+
+    /**
+     * Release the replies left in the queue of a closed connection. Both close() and a late sendReply() may drain it,
+     * poll() hands every reply to only one of them.
+     */
+    private void releaseQueuedReplies() {
+        ByteBuffer reply;
+        while ((reply = outboundQueue.poll()) != null) {
+            BufferPools.HASHES.release(reply);
+        }
+    }
+
+    /**
+     * interestOps() followed by interestOps(int) is not atomic, and both worker and selector threads change the
+     * interest set, so every change goes through this monitor.
+     */
+    synchronized void updateInterest(int operation, boolean enabled) {
+        SelectionKey key = selectionKey;
+        try {
+            key.interestOps(enabled ? key.interestOps() | operation : key.interestOps() & ~operation);
+        } catch (CancelledKeyException e) {
+            if (AppConstants.DEBUG) {
+                System.out.println("Interest set not updated, connection already closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+// * Reactor transport: non-blocking channels multiplexed by a selector, either all on the main thread or with the main
+// * thread only accepting and reactor-count sub-reactors owning the client channels.
+
+public class SelectorTransport implements Transport {
+    private final Server server;
+    private final int reactorCount;
+    private final Selector selector;
+    private final ServerSocketChannel serverSocketChannel;
+    private final SelectionKey acceptKey;
+    private final Timer acceptRetryTimer; //Re-arms OP_ACCEPT after a failed accept
+    private volatile boolean acceptRetryDue; //Set by the retry timer, OP_ACCEPT is re-armed by the selector thread
+    private boolean acceptFailing; //Set by the first failed accept of a run, cleared by the next success
+    private SubReactor[] reactors; //Sub-reactors that own the client channels. Null when the single selector mode is used
+    private int nextReactor; //Round-robin index of the sub-reactor receiving the next accepted connection
+
+    SelectorTransport(Server server, InetSocketAddress address, int reactorCount) throws IOException {
+        this.server = server;
+        this.reactorCount = reactorCount;
+        selector = Selector.open();
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.configureBlocking(false); //enable non-blocking I/O
+        serverSocketChannel.socket().bind(address, AppConstants.ACCEPT_BACKLOG); //bind serversocket to the designated port
+        acceptKey = serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT); //register intent to accept connections
+        acceptRetryTimer = new Timer("SelectorAcceptRetry", true);
+    }
+
+    @Override
+    public void serve() throws IOException {
+        if (reactorCount > 0) {
+            initiateReactors(reactorCount);
+        }
+        startKeyWiseMultiplexing();
+    }
+
+    /**
+     * Start reactorCount sub-reactors, each with its own selector. The selector of this class is then only used by the
+     * acceptor for OP_ACCEPT.
+     * @param reactorCount
+     */
+    private void initiateReactors(int reactorCount) throws IOException {
+        reactors = new SubReactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new SubReactor(this, i);
+            reactors[i].start();
+        }
+        System.out.println("Server running with " + reactorCount + " sub-reactors");
+    }
+
+    private void startKeyWiseMultiplexing() {
+        while (true) {
+            try {
+                selector.select(); //Block until a key is ready or wakeup() is called, partial batches are flushed by the thread pool's timer
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (acceptRetryDue) {
+                acceptRetryDue = false;
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+
+            Set<SelectionKey> selectedKeys = selector.selectedKeys(); //Some channel has activity, get the keys
+            Iterator<SelectionKey> it = selectedKeys.iterator(); //Get an iterator over the keys to make life easier
+
+            while (it.hasNext()) {
+                SelectionKey selectionKey = it.next();
+                it.remove();
+                if (selectionKey.isAcceptable()) {
+                    acceptConnections();
+                } else {
+                    dispatchReadyOps(selectionKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle a ready client key: read new frames and/or flush queued replies. Called by the selector loop or by a
+     * sub-reactor thread.
+     * @param selectionKey
+     */
+    void dispatchReadyOps(SelectionKey selectionKey) {
+        if (selectionKey.isValid() && selectionKey.isReadable()) {
+            dispatchRead(selectionKey);
+        }
+        if (selectionKey.isValid() && selectionKey.isWritable()) {
+            SelectorConnection connection = (SelectorConnection) selectionKey.attachment();
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                if (AppConstants.DEBUG) {
+                    e.printStackTrace();
+                }
+                server.closeConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * Read whatever the readable channel has to offer into its connection's frame decoder and queue one read-write task
+     * per complete frame, or hand it to its streamed request if it is a chunk. Partial frames stay in the decoder until
+     * the next readiness event, so no thread ever waits on a slow client.
+     * @param selectionKey
+     */
+    private void dispatchRead(SelectionKey selectionKey) {
+        PipelineEvents.Readiness readinessEvent = new PipelineEvents.Readiness();
+        readinessEvent.begin();
+        SelectorConnection connection = (SelectorConnection) selectionKey.attachment();
+        FrameDecoder decoder = connection.getDecoder();
+        int bytesRead;
+        try {
+            bytesRead = decoder.read(connection.getChannel());
+            if (bytesRead == -1) {
+                server.closeConnection(connection);
+                return;
+            }
+        } catch (IOException e) {
+            if (AppConstants.DEBUG) {
+                e.printStackTrace();
+            }
+            server.closeConnection(connection);
+            return;
+        }
+
+        int frames = 0;
+        try {
+            ByteBuffer frame;
+            while ((frame = decoder.nextFrame()) != null) {
+                StreamedRequest stream = decoder.getStream();
+                if (stream == null) {
+                    server.queueMessage(connection, frame, decoder.getRequestId());
+                    frames++;
+                } else if (server.queueChunk(stream, frame)) {
+                    frames++; //The last chunk completes the streamed request
+                }
+            }
+        } catch (ProtocolException e) {
+            if (AppConstants.DEBUG) {
+                e.printStackTrace();
+            }
+            server.messagesRead(connection, frames, bytesRead); //Messages queued before the bad header still complete and are accounted for
+            server.closeConnection(connection);
+            return;
+        }
+        server.messagesRead(connection, frames, bytesRead);
+        if (readinessEvent.shouldCommit()) {
+            readinessEvent.connectionId = connection.getId();
+            readinessEvent.bytesRead = bytesRead;
+            readinessEvent.frames = frames;
+            readinessEvent.commit();
+        }
+
+        if (AppConstants.DEBUG && frames > 0) {
+            System.out.println("Adding " + frames + " Read/Write Tasks to tasklist in Server");
+        }
+    }
+
+    /**
+     * Accept the pending connections on the selector thread, up to MAX_ACCEPTS_PER_SELECT per readiness event so a
+     * burst of connects does not hold up the reads of the connections already open. Each one is handed to the next
+     * sub-reactor in round-robin order, or registered on this selector when there are no sub-reactors.
+     */
+    private void acceptConnections() {
+        for (int i = 0; i < AppConstants.MAX_ACCEPTS_PER_SELECT; i++) {
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverSocketChannel.accept();
+            } catch (IOException e) {
+                pauseAccepting(e);
+                return;
+            }
+            if (clientChannel == null) {
+                return; //Backlog drained
+            }
+            acceptFailing = false;
+            try {
+                clientChannel.configureBlocking(false); //enable non-blocking I/O on channel
+                if (reactors != null) {
+                    reactors[nextReactor].register(clientChannel);
+                    nextReactor = (nextReactor + 1) % reactors.length;
+                } else {
+                    openConnection(clientChannel, selector);
+                }
+                if (AppConstants.DEBUG) {
+                    System.out.println("Accepted new connection in Server");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    clientChannel.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A failed accept, e.g. out of file descriptors, leaves the connection in the backlog and OP_ACCEPT ready, so the
+     * selector would wake up right away to fail again. OP_ACCEPT is dropped until AppConstants.ACCEPT_RETRY_MILLIS have
+     * passed, and only the first failure in a row is reported.
+     * @param e
+     */
+    private void pauseAccepting(IOException e) {
+        if (!acceptFailing) {
+            e.printStackTrace();
+            acceptFailing = true;
+        }
+        acceptKey.interestOps(0);
+        acceptRetryTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                acceptRetryDue = true;
+                selector.wakeup();
+            }
+        }, AppConstants.ACCEPT_RETRY_MILLIS);
+    }
+
+    /**
+     * Create the state of an accepted connection, pin it to a thread pool shard and register its channel for reads.
+     * The server only counts and tracks the connection once the registration succeeded, so a client that is gone by
+     * then leaves nothing behind. Called by the thread owning selector.
+     * @param clientChannel
+     * @param selector
+     * @throws ClosedChannelException if the channel was closed before it could be registered
+     */
+    void openConnection(SocketChannel clientChannel, Selector selector) throws ClosedChannelException {
+        SelectorConnection connection = new SelectorConnection(clientChannel, server.getThreadPool().assignShard(),
+                server.getAdmissionControl());
+        connection.setSelectionKey(clientChannel.register(selector, SelectionKey.OP_READ, connection));
+        server.connectionOpened(connection);
+    }
+}
@@ -1,152 +1,208 @@
 package cs304.scaling.server;
 
-import cs304.scaling.functions.ConnectionAcceptor;
-import cs304.scaling.utils.AppConstants;
 import cs304.scaling.functions.ReadWriter;
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.HashEngines;
+import cs304.scaling.utils.ResultCache;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 
 
 public class Server {
-    private Selector selector;
-    private volatile AtomicInteger tasksServedByServer;
-    private HashMap<SocketChannel, Integer> perClientStatsMap;
-    private ServerSocketChannel serverSocketChannel;
+    private ServerMetrics metrics; //Per-connection counters and the windows computed from them by the stats timer
+    private AdmissionControl admissionControl; //Pauses reading from clients while too many messages are unanswered
+    private IdleReaper idleReaper; //Closes connections without traffic for AppConstants.IDLE_TIMEOUT_MILLIS
+    private TrafficCapture trafficCapture; //Journals every request read, null unless AppConstants.CAPTURE_DIRECTORY is set
     private ThreadPool threadPool;
 
-    private Server(int port, int poolSize, int batchSize, double batchTime) throws IOException {
-        tasksServedByServer = new AtomicInteger(0);
-        perClientStatsMap = new HashMap<>();
-
-        selector = Selector.open();
-        serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.configureBlocking(false); //enable non-blocking I/O
-        serverSocketChannel.socket().bind(new InetSocketAddress(port)); //bind serversocket to the designated port
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT); //register intent to accept connections
+    private Server(int port, int poolSize, int batchSize, double batchTime, int reactorCount) throws IOException {
+        boolean virtualThreads = "virtual".equals(AppConstants.SERVER_MODE); //One blocking virtual thread per connection instead of batches
+        threadPool = new ThreadPool(batchSize, batchTime * 1000, poolSize); //Initialize the thread pool class with user-defined constraints
+        admissionControl = new AdmissionControl(virtualThreads ? 0 : AppConstants.ADMISSION_HIGH_WATERMARK,
+                AppConstants.ADMISSION_LOW_WATERMARK, () -> metrics.getActiveConnectionCount()); //Connection threads never queue messages
+        idleReaper = new IdleReaper(AppConstants.IDLE_TIMEOUT_MILLIS);
+        if (AppConstants.CAPTURE_DIRECTORY != null) {
+            trafficCapture = new TrafficCapture(Paths.get(AppConstants.CAPTURE_DIRECTORY), AppConstants.CAPTURE_SEGMENT_BYTES,
+                    AppConstants.CAPTURE_MAX_SEGMENTS, AppConstants.CAPTURE_BUFFER_SLOTS);
+            trafficCapture.start();
+        }
+        Transport transport = createTransport(new InetSocketAddress(port), reactorCount); //Binds the port, fails right away if the mode is unsupported
         System.out.println("Server listening on port " + port);
+        if (HashEngines.RESULT_CACHE.isEnabled()) {
+            System.out.println("Result cache of " + HashEngines.RESULT_CACHE.getCapacityBytes() / (1024 * 1024) + " MB enabled");
+        }
+        if (trafficCapture != null) {
+            System.out.println("Capturing requests to " + trafficCapture.getDirectory().toAbsolutePath());
+        }
 
+        if (!virtualThreads) {
+            threadPool.initiateThreads(); //Start each thread the thread pool and make them subscribe to the task queue
+        }
+        metrics = new ServerMetrics(threadPool, admissionControl, idleReaper, trafficCapture);
+        idleReaper.start();
+        if (AppConstants.METRICS_PORT > 0) {
+            new MetricsEndpoint(metrics, AppConstants.METRICS_PORT).start();
+        }
         new ServerProfile(this).startExecution();
-        threadPool = new ThreadPool(batchSize, batchTime * 1000, poolSize); //Initialize the thread pool class with user-defined constraints
-        threadPool.initiateThreads(); //Start each thread the thread pool and make them subscribe to the task queue
-        startKeyWiseMultiplexing();
+        transport.serve();
     }
 
-    private void startKeyWiseMultiplexing() {
-        while (true) {
-            try {
-                selector.selectNow();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            Set<SelectionKey> selectedKeys = selector.selectedKeys(); //Some channel has activity, get the keys
-            Iterator<SelectionKey> it = selectedKeys.iterator(); //Get an iterator over the keys to make life easier
-
-            while (it.hasNext()) {
-                SelectionKey selectionKey = it.next();
-                it.remove();
-                if (selectionKey.isAcceptable()) {
-                    selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_ACCEPT);
-                    ConnectionAcceptor task = new ConnectionAcceptor(this, selectionKey); //create an accept connections task
-                    //threadPool.addTaskToBatch(task);
-                    threadPool.notifyAndExecuteImmediate(task); // Add accept connections task to immediate list and notify available threads of this slightly prioritised task
-                    if (AppConstants.DEBUG) {
-                        System.out.println("Adding Accept Task to tasklist in Server");
-                    }
-                } else if (selectionKey.isReadable()) {
-                    SocketChannel clientChannel = (SocketChannel) selectionKey.channel();
-                    tasksServedByServer.incrementAndGet(); //Increment server tasks served
-
-                    if (AppConstants.DEBUG) {
-                        System.out.println("Adding Read/Write Task to tasklist in Server");
-                    }
-
-                    synchronized (perClientStatsMap) {
-                        int count = perClientStatsMap.get(clientChannel);
-                        perClientStatsMap.put(clientChannel, ++count); //Increment message received count for particular client(indexed by their channel)
-                    }
-
-                    ReadWriter readWriteTask = new ReadWriter(selectionKey); //Create read-write task
-                    selectionKey.interestOps(selectionKey.interestOps() & SelectionKey.OP_READ);
-                    threadPool.addTaskToBatch(readWriteTask); //Add read-write task to task list to be batched
-                }
-            }
+    /**
+     * @param address
+     * @param reactorCount sub-reactors of the selector transport, I/O threads of the proactor transport
+     * @return the transport chosen with AppConstants.SERVER_MODE, bound to address
+     */
+    private Transport createTransport(InetSocketAddress address, int reactorCount) throws IOException {
+        switch (AppConstants.SERVER_MODE) {
+            case "virtual":
+                return new VirtualThreadTransport(this, address);
+            case "proactor":
+                return new ProactorTransport(this, address,
+                        reactorCount > 0 ? reactorCount : Runtime.getRuntime().availableProcessors());
+            default:
+                return new SelectorTransport(this, address, reactorCount);
         }
     }
 
-    public void acceptConnections(SelectionKey key) {
-        try {
-            if (AppConstants.DEBUG) {
-                System.out.println("Adding new connection in Server");
-            }
-            SocketChannel clientChannel = serverSocketChannel.accept();
-            clientChannel.configureBlocking(false); //enable non-blocking I/O on channel
-            clientChannel.register(selector, SelectionKey.OP_READ);
+    ThreadPool getThreadPool() {
+        return threadPool;
+    }
 
-            synchronized (perClientStatsMap) {
-                perClientStatsMap.put(clientChannel, 0); //Add entry for this client in the client message count map.
-            }
+    AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
 
-            key.interestOps(key.interestOps() | SelectionKey.OP_ACCEPT);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    void connectionOpened(ClientConnection connection) {
+        metrics.connectionOpened(connection);
+        idleReaper.track(connection);
     }
 
-    synchronized void printStats() {
-        synchronized (perClientStatsMap) {
-            System.out.println("--------------------------------------------------------");
-            System.out.println("\n(" + System.currentTimeMillis() + ")");
-            System.out.println(
-                    "Server Throughtput\t\t" + (tasksServedByServer.get()) / AppConstants.STATS_LOGGER_INTERVAL_SECS);
-            System.out.println("Active Client Connections\t" + perClientStatsMap.size());
-            System.out.println("Mean Per-Client Throughput\t"
-                    + (meanPerClientThroughput()) / AppConstants.STATS_LOGGER_INTERVAL_SECS + " messages");
-            System.out.println("Std-Dev of Per-Client \t\t" + (stdDevPerClientThroughput(
-                    meanPerClientThroughput()) / AppConstants.STATS_LOGGER_INTERVAL_SECS) + " messages");
-            tasksServedByServer.set(0);
+    /**
+     * Queue one complete message of a connection for hashing. Called by the transport thread that read it.
+     * @param connection
+     * @param frame flipped pooled buffer holding the message, owned by the task from now on
+     * @param requestId id of a v2 request, ignored for v1 connections
+     */
+    void queueMessage(ClientConnection connection, ByteBuffer frame, long requestId) {
+        captureMessage(connection, frame, requestId);
+        PipelineEvents.Enqueue enqueueEvent = new PipelineEvents.Enqueue();
+        enqueueEvent.begin();
+        long batchId = threadPool.addTaskToBatch(new ReadWriter(connection, frame, requestId), connection.getShard()); //Add read-write task to task list to be batched
+        if (enqueueEvent.shouldCommit()) {
+            enqueueEvent.connectionId = connection.getId();
+            enqueueEvent.batchId = batchId;
+            enqueueEvent.shard = connection.getShard();
+            enqueueEvent.commit();
         }
     }
 
-    private double meanPerClientThroughput() {
-        int sum = 0;
-        for (SocketChannel channel : perClientStatsMap.keySet()) {
-            sum += perClientStatsMap.get(channel);
+    /**
+     * Hand the next chunk of a streamed payload to its request. Streamed requests are not captured, the journal keeps
+     * payloads of up to WireProtocol.MAX_PAYLOAD_LENGTH bytes.
+     * @param stream
+     * @param chunk flipped pooled buffer, owned by the stream from now on
+     * @return true if chunk completed the payload, which then counts as a message read
+     */
+    boolean queueChunk(StreamedRequest stream, ByteBuffer chunk) {
+        return stream.addChunk(chunk, threadPool);
+    }
+
+    /**
+     * Journal a message if traffic capture is enabled. Called by the thread that read it, before it is hashed.
+     * @param connection
+     * @param frame flipped message, left unchanged
+     * @param requestId id of a v2 request
+     */
+    void captureMessage(ClientConnection connection, ByteBuffer frame, long requestId) {
+        if (trafficCapture != null) {
+            trafficCapture.record(connection, frame, requestId);
         }
-        return (double) sum / perClientStatsMap.size();
     }
 
-    private double stdDevPerClientThroughput(double mean) {
-        double sd = 0.0;
+    /**
+     * Account for a read that queued messages. Called by the transport thread after queueMessage().
+     * @param connection
+     * @param messages
+     * @param bytes
+     */
+    void messagesRead(ClientConnection connection, int messages, int bytes) {
+        connection.recordReceived(messages, bytes); //Per-connection counters, no lock shared with other connections or the stats timer
+        admissionControl.admitted(connection, messages); //May stop reading from this connection until the queue drains
+    }
 
-        for (SocketChannel channel : perClientStatsMap.keySet()) {
-            sd += Math.pow(perClientStatsMap.get(channel) - mean, 2);
-            perClientStatsMap.put(channel, 0);
-        }
+    /**
+     * Close the channel of a connection, return its buffers and fold its counters into the server totals. Called by
+     * the thread doing the I/O of the connection on end of stream, on an I/O error and on a protocol error. Idempotent.
+     * @param connection
+     */
+    void closeConnection(ClientConnection connection) {
+        connection.close();
+        idleReaper.untrack(connection);
+        admissionControl.connectionClosed(connection);
+        metrics.connectionClosed(connection);
+    }
 
-        return Math.sqrt(sd / perClientStatsMap.size()) / AppConstants.STATS_LOGGER_INTERVAL_SECS;
+    synchronized void printStats() {
+        ServerMetrics.Window window = metrics.rollWindow();
+        System.out.println("--------------------------------------------------------");
+        System.out.println("\n(" + System.currentTimeMillis() + ")");
+        System.out.println("Server Throughtput\t\t" + (long) window.getThroughput());
+        System.out.println("Active Client Connections\t" + metrics.getActiveConnectionCount());
+        System.out.println("Mean Per-Client Throughput\t" + window.getClientMean() + " messages");
+        System.out.println("Std-Dev of Per-Client \t\t" + window.getClientStdDev() + " messages");
+        String adaptiveBatching = threadPool.describeAdaptiveBatching();
+        if (adaptiveBatching != null) {
+            System.out.println("Adaptive Batch Size/Time\t" + adaptiveBatching);
+        }
+        if (admissionControl.isEnabled()) {
+            System.out.println("Unanswered Messages\t\t" + admissionControl.getPendingTaskCount());
+            System.out.println("Paused Client Connections\t" + admissionControl.getPausedConnectionCount());
+        }
+        ResultCache cache = HashEngines.RESULT_CACHE;
+        if (cache.isEnabled()) {
+            long hits = cache.getHitCount();
+            long lookups = hits + cache.getMissCount();
+            System.out.println("Result Cache Hits/Lookups\t" + hits + "/" + lookups
+                    + String.format(" (%.1f%%)", lookups == 0 ? 0.0 : 100.0 * hits / lookups));
+            System.out.println("Result Cache Entries\t\t" + cache.getEntryCount() + " (" + cache.getEvictionCount() + " evicted)");
+        }
+        if (trafficCapture != null) {
+            System.out.println("Captured/Dropped Requests\t" + trafficCapture.getCapturedCount() + "/" + trafficCapture.getDroppedCount()
+                    + " (" + trafficCapture.getWrittenBytes() / (1024 * 1024) + " MB journaled)");
+        }
     }
 
 
     public static void main(String[] args) {
         if (args.length < 4) {
             System.out.println("Please provide 4 arguments.\nUsage: "
-                    + "java cs304.scaling.server.Server <portNum> <thread-pool-size> <batch-size> <batch-time>\n"
+                    + "java cs304.scaling.server.Server <portNum> <thread-pool-size> <batch-size> <batch-time> [reactor-count]\n"
                     + "Exiting");
             System.exit(1);
         }
+        int port, poolSize, batchSize, reactorCount;
+        double batchTime;
+        try {
+            port = Integer.parseInt(args[0]);
+            poolSize = Integer.parseInt(args[1]);
+            batchSize = Integer.parseInt(args[2]);
+            batchTime = Double.parseDouble(args[3]);
+            reactorCount = args.length > 4 ? Integer.parseInt(args[4]) : 0; //0 keeps the single selector mode
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid argument, " + e.getMessage() + "\nExiting");
+            System.exit(1);
+            return;
+        }
+        if ("virtual".equals(AppConstants.SERVER_MODE) && !VirtualThreadTransport.isSupported()) {
+            System.out.println("scaling.server.mode=virtual needs Java 21 or later, running on "
+                    + System.getProperty("java.version") + "\nExiting");
+            System.exit(1);
+        }
         try {
-            new Server(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
-                    Double.parseDouble(args[3]));
+            new Server(port, poolSize, batchSize, batchTime, reactorCount);
         } catch (IOException e) {
             if (AppConstants.DEBUG) {
                 System.out.println("Server Constructor threw error");
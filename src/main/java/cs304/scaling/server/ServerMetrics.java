@@ -0,0 +1,243 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.HashEngines;
+import cs304.scaling.utils.ResultCache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+class ServerMetrics {
+    private static final int MESSAGES_RECEIVED = 0; //Indices of the array returned by totals()
+    private static final int BYTES_RECEIVED = 1;
+    private static final int REPLIES_SENT = 2;
+    private static final int BYTES_SENT = 3;
+
+    private final ThreadPool threadPool;
+    private final AdmissionControl admissionControl;
+    private final IdleReaper idleReaper;
+    private final TrafficCapture trafficCapture; //Null unless capture is enabled
+    private final Set<ClientConnection> connections; //Open connections, their counters are read off the I/O threads
+    private final LongAdder acceptedConnections;
+    private long closedMessagesReceived; //Counters of closed connections, folded in so the totals never go backwards
+    private long closedBytesReceived;
+    private long closedRepliesSent;
+    private long closedBytesSent;
+    private long windowStartNanos;
+    private long messagesAtWindowStart; //Total messages received when the current window started
+    private volatile Window lastWindow; //Last completed stats window
+
+    ServerMetrics(ThreadPool threadPool, AdmissionControl admissionControl, IdleReaper idleReaper, TrafficCapture trafficCapture) {
+        this.threadPool = threadPool;
+        this.admissionControl = admissionControl;
+        this.idleReaper = idleReaper;
+        this.trafficCapture = trafficCapture;
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.acceptedConnections = new LongAdder();
+        this.windowStartNanos = System.nanoTime();
+        this.lastWindow = new Window(0, new double[0]);
+    }
+
+    void connectionOpened(ClientConnection connection) {
+        acceptedConnections.increment();
+        connections.add(connection);
+    }
+
+    /**
+     * Fold the counters of a closed connection into the server totals. Idempotent.
+     * @param connection
+     */
+    synchronized void connectionClosed(ClientConnection connection) {
+        if (connections.remove(connection)) {
+            closedMessagesReceived += connection.getMessagesReceived();
+            closedBytesReceived += connection.getBytesReceived();
+            closedRepliesSent += connection.getRepliesSent();
+            closedBytesSent += connection.getBytesSent();
+        }
+    }
+
+    int getActiveConnectionCount() {
+        return connections.size();
+    }
+
+    Window getLastWindow() {
+        return lastWindow;
+    }
+
+    /**
+     * Close the current stats window and start the next one. Called by the stats timer, so the only cost on the I/O
+     * threads is the LongAdder increments.
+     * @return the window that was just closed
+     */
+    synchronized Window rollWindow() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - windowStartNanos) / 1e9);
+        double[] perClient = new double[connections.size()];
+        int clients = 0;
+        for (ClientConnection connection : connections) {
+            long messages = connection.getMessagesReceived();
+            if (clients < perClient.length) {
+                perClient[clients++] = (messages - connection.messagesAtWindowStart) / seconds;
+            }
+            connection.messagesAtWindowStart = messages;
+        }
+        long totalMessages = totals()[MESSAGES_RECEIVED];
+        Window window = new Window((totalMessages - messagesAtWindowStart) / seconds, Arrays.copyOf(perClient, clients));
+        messagesAtWindowStart = totalMessages;
+        windowStartNanos = now;
+        lastWindow = window;
+        return window;
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        long[] totals = totals();
+        counter(out, "scaling_messages_received_total", "Messages received from clients.", totals[MESSAGES_RECEIVED]);
+        counter(out, "scaling_bytes_received_total", "Bytes read from client channels.", totals[BYTES_RECEIVED]);
+        counter(out, "scaling_replies_sent_total", "Hash replies written to clients.", totals[REPLIES_SENT]);
+        counter(out, "scaling_bytes_sent_total", "Bytes written to client channels.", totals[BYTES_SENT]);
+        counter(out, "scaling_connections_accepted_total", "Client connections accepted.", acceptedConnections.sum());
+        gauge(out, "scaling_active_connections", "Open client connections.", connections.size());
+        counter(out, "scaling_idle_connections_reaped_total", "Connections closed after the idle timeout.", idleReaper.getReapedCount());
+        counter(out, "scaling_batches_dispatched_total", "Batches handed to the executor threads.", threadPool.getTotalBatchCount());
+        counter(out, "scaling_batched_tasks_total", "Tasks in the dispatched batches.", threadPool.getTotalBatchedTaskCount());
+        gauge(out, "scaling_queued_batches", "Batches waiting for an executor thread.", threadPool.getQueuedBatchCount());
+        gauge(out, "scaling_unanswered_messages", "Messages read from clients and not yet answered.", admissionControl.getPendingTaskCount());
+        gauge(out, "scaling_paused_connections", "Connections not read from until the server catches up.", admissionControl.getPausedConnectionCount());
+        counter(out, "scaling_connection_pauses_total", "Times reading from a connection was paused.", admissionControl.getPauseCount());
+        ResultCache cache = HashEngines.RESULT_CACHE;
+        if (cache.isEnabled()) {
+            counter(out, "scaling_result_cache_hits_total", "Messages answered from the result cache.", cache.getHitCount());
+            counter(out, "scaling_result_cache_misses_total", "Messages looked up in the result cache and hashed.", cache.getMissCount());
+            counter(out, "scaling_result_cache_evictions_total", "Result cache entries evicted for new payloads.", cache.getEvictionCount());
+            gauge(out, "scaling_result_cache_entries", "Payloads in the result cache.", cache.getEntryCount());
+            gauge(out, "scaling_result_cache_capacity_bytes", "Off-heap memory of the result cache.", cache.getCapacityBytes());
+        }
+        if (trafficCapture != null) {
+            counter(out, "scaling_capture_requests_total", "Requests written to the traffic journal.", trafficCapture.getCapturedCount());
+            counter(out, "scaling_capture_dropped_total", "Requests not captured because the journal writer was behind.", trafficCapture.getDroppedCount());
+            counter(out, "scaling_capture_bytes_total", "Bytes of journal segments filled so far.", trafficCapture.getWrittenBytes());
+        }
+        gauge(out, "scaling_heap_used_bytes", "Heap in use, including garbage not collected yet.",
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        gauge(out, "scaling_heap_used_after_gc_bytes", "Heap in use right after the last collection of each heap pool.",
+                heapUsedAfterGc());
+
+        Window window = lastWindow;
+        gauge(out, "scaling_throughput_messages_per_second", "Server throughput over the last stats window.", window.throughput);
+        out.append("# HELP scaling_client_throughput_messages_per_second Per-client throughput over the last stats window.\n");
+        out.append("# TYPE scaling_client_throughput_messages_per_second summary\n");
+        double[] quantiles = {0, 0.5, 0.9, 0.99, 1};
+        for (double quantile : quantiles) {
+            out.append("scaling_client_throughput_messages_per_second{quantile=\"").append(quantile).append("\"} ")
+                    .append(window.getClientQuantile(quantile)).append('\n');
+        }
+        out.append("scaling_client_throughput_messages_per_second_sum ").append(window.throughput).append('\n');
+        out.append("scaling_client_throughput_messages_per_second_count ").append(window.perClient.length).append('\n');
+        gauge(out, "scaling_client_throughput_stddev", "Standard deviation of the per-client throughput over the last stats window.",
+                window.getClientStdDev());
+        return out.toString();
+    }
+
+    /**
+     * Sum the counters of the open connections and of the closed ones. Synchronized with connectionClosed(), so a
+     * connection is never counted twice or missed while it is being folded in.
+     * @return totals indexed by MESSAGES_RECEIVED, BYTES_RECEIVED, REPLIES_SENT and BYTES_SENT
+     */
+    private synchronized long[] totals() {
+        long[] totals = {closedMessagesReceived, closedBytesReceived, closedRepliesSent, closedBytesSent};
+        for (ClientConnection connection : connections) {
+            totals[MESSAGES_RECEIVED] += connection.getMessagesReceived();
+            totals[BYTES_RECEIVED] += connection.getBytesReceived();
+            totals[REPLIES_SENT] += connection.getRepliesSent();
+            totals[BYTES_SENT] += connection.getBytesSent();
+        }
+        return totals;
+    }
+
+    /**
+     * @return heap left over by the last collection of every heap pool, which levels off once the server is in a
+     * steady state and keeps growing if connections leak
+     */
+    private static long heapUsedAfterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterGc = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (afterGc != null) {
+                used += afterGc.getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    static final class Window {
+        private final double throughput; //Messages per second over the window
+        private final double[] perClient; //Messages per second of every open connection, sorted
+
+        private Window(double throughput, double[] perClient) {
+            this.throughput = throughput;
+            this.perClient = perClient;
+            Arrays.sort(this.perClient);
+        }
+
+        double getThroughput() {
+            return throughput;
+        }
+
+        int getClientCount() {
+            return perClient.length;
+        }
+
+        double getClientMean() {
+            if (perClient.length == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (double rate : perClient) {
+                sum += rate;
+            }
+            return sum / perClient.length;
+        }
+
+        double getClientStdDev() {
+            if (perClient.length == 0) {
+                return 0;
+            }
+            double mean = getClientMean();
+            double sd = 0;
+            for (double rate : perClient) {
+                sd += Math.pow(rate - mean, 2);
+            }
+            return Math.sqrt(sd / perClient.length);
+        }
+
+        double getClientQuantile(double quantile) {
+            if (perClient.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(quantile * perClient.length) - 1;
+            return perClient[Math.max(0, Math.min(perClient.length - 1, index))];
+        }
+    }
+}
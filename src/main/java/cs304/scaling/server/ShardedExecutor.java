@@ -0,0 +1,159 @@
+package cs304.scaling.server;
+
+import cs304.scaling.functions.TaskInterface;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+
+class ShardedExecutor {
+    private static final int SPIN_TRIES = 256; //Number of empty scans an idle worker does before yielding
+    private static final int YIELD_TRIES = 16; //Number of Thread.yield() rounds before the worker parks
+
+    private final ShardWorker[] workers;
+
+    ShardedExecutor(int numThreads) {
+        workers = new ShardWorker[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            workers[i] = new ShardWorker(i);
+        }
+    }
+
+    void start() {
+        for (ShardWorker worker : workers) {
+            worker.start();
+        }
+    }
+
+    int getShardCount() {
+        return workers.length;
+    }
+
+    /**
+     * Queue a batch on its shard without taking any lock and wake the owner of the shard, or any parked worker if the
+     * owner is busy.
+     * @param task
+     * @param shard
+     */
+    void execute(TaskInterface task, int shard) {
+        ShardWorker target = workers[shard];
+        target.batches.add(task);
+
+        if (!target.unparkIfParked()) {
+            for (ShardWorker worker : workers) {
+                if (worker.unparkIfParked()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Every shard is owned by one worker. Batches of a shard are only ever executed by the thread that holds the shard's
+     * running flag, so they run one at a time in queue order whether the owner or a thief runs them, which keeps the
+     * replies of a connection in order.
+     */
+    private class ShardWorker extends Thread {
+        private final int shardId;
+        private final ConcurrentLinkedQueue<TaskInterface> batches;
+        private final AtomicBoolean running; //Held while a batch of this shard executes, by the owner or by a thief
+        private volatile boolean parked;
+
+        ShardWorker(int shardId) {
+            super("ShardWorker-" + shardId);
+            this.shardId = shardId;
+            this.batches = new ConcurrentLinkedQueue<>();
+            this.running = new AtomicBoolean(false);
+        }
+
+        boolean unparkIfParked() {
+            if (parked) {
+                LockSupport.unpark(this);
+                return true;
+            }
+            return false;
+        }
+
+        public void run() {
+            int rounds = 0;
+            while (true) {
+                if (drainShard(this) || stealBatch()) {
+                    rounds = 0;
+                    continue;
+                }
+                rounds++;
+                if (rounds < SPIN_TRIES) {
+                    continue;
+                }
+                if (rounds < SPIN_TRIES + YIELD_TRIES) {
+                    Thread.yield();
+                    continue;
+                }
+                // Publish the flag before the last scan, a producer that enqueues after it is guaranteed to unpark us
+                parked = true;
+                if (!hasRunnableShard()) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+
+        /**
+         * Run all queued batches of the own shard.
+         * @return true if at least one batch was executed
+         */
+        private boolean drainShard(ShardWorker shard) {
+            boolean executed = false;
+            while (runBatch(shard)) {
+                executed = true;
+            }
+            return executed;
+        }
+
+        /**
+         * Take a single batch from another shard, only while the own shard has nothing to do.
+         */
+        private boolean stealBatch() {
+            for (int i = 1; i < workers.length; i++) {
+                if (runBatch(workers[(shardId + i) % workers.length])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean runBatch(ShardWorker shard) {
+            if (shard.batches.isEmpty() || !shard.running.compareAndSet(false, true)) {
+                return false;
+            }
+            TaskInterface task;
+            try {
+                task = shard.batches.poll();
+                if (task != null) {
+                    task.onTask(); //Execute task
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                task = null;
+            } finally {
+                shard.running.set(false); //Whoever releases the flag scans again, so batches queued meanwhile are not stranded
+            }
+            return task != null;
+        }
+
+        /**
+         * A shard whose running flag is held does not count: its holder scans again after releasing the flag and picks
+         * up the batches queued meanwhile, so parking here strands nothing, while counting it would keep every idle
+         * worker spinning for as long as a single long batch runs.
+         */
+        private boolean hasRunnableShard() {
+            for (ShardWorker worker : workers) {
+                if (!worker.batches.isEmpty() && !worker.running.get()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
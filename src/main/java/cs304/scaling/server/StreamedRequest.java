@@ -0,0 +1,100 @@
+package cs304.scaling.server;
+
+import cs304.scaling.functions.TaskInterface;
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.BufferPools;
+import cs304.scaling.utils.HashEngine;
+import cs304.scaling.utils.HashEngines;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// * A v2 request whose payload is longer than WireProtocol.MAX_PAYLOAD_LENGTH. The payload is never held whole: the
+// * transport hands over every pooled chunk as soon as it is full, and the request is its own task that hashes one
+// * chunk per run into its own engine. The first run is batched like any message, every later one is queued on the
+// * executor right away, behind the batches dispatched meanwhile, so a large payload takes turns with the batches of
+// * the other clients instead of holding a worker for its whole length, and never waits for a batch to fill. At most
+// * one run is queued at a time, so the chunks are hashed in order. Reading from the connection stops while
+// * AppConstants.STREAM_WINDOW_CHUNKS chunks wait, which bounds the memory of a stream whatever its length.
+
+class StreamedRequest implements TaskInterface {
+    private final ClientConnection connection;
+    private final long requestId;
+    private final int length; //Announced payload length
+    private final HashEngine engine; //Fed by one run after the other, never concurrently
+    private final ConcurrentLinkedQueue<ByteBuffer> chunks; //Handed over by the transport and not hashed yet
+    private final AtomicInteger queuedChunks; //Size of chunks, a run of the task is queued while it is above zero
+    private ThreadPool threadPool; //Set with the first chunk, before the first run
+    private int receivedBytes; //Only touched by the transport thread
+    private int hashedBytes; //Only touched by the runs of the task
+
+    /**
+     * @param connection
+     * @param requestId
+     * @param length more than WireProtocol.MAX_PAYLOAD_LENGTH
+     */
+    StreamedRequest(ClientConnection connection, long requestId, int length) {
+        this.connection = connection;
+        this.requestId = requestId;
+        this.length = length;
+        this.engine = HashEngines.create(AppConstants.HASH_ALGORITHM);
+        this.chunks = new ConcurrentLinkedQueue<>();
+        this.queuedChunks = new AtomicInteger(0);
+    }
+
+    /**
+     * Queue the next chunk of the payload for hashing, and stop reading from the connection if the window is full.
+     * Called by the transport thread of the connection.
+     * @param chunk flipped pooled buffer, released once hashed
+     * @param threadPool the task runs on, the same for every chunk
+     * @return true if chunk was the last one of the payload
+     */
+    boolean addChunk(ByteBuffer chunk, ThreadPool threadPool) {
+        boolean first = this.threadPool == null;
+        if (first) {
+            this.threadPool = threadPool; //Published to the runs by the batch below
+        }
+        receivedBytes += chunk.remaining();
+        chunks.add(chunk);
+        int queued = queuedChunks.incrementAndGet();
+        if (first) {
+            threadPool.addTaskToBatch(this, connection.getShard());
+        } else if (queued == 1) {
+            threadPool.notifyAndExecuteImmediate(this, connection.getShard()); //The runs caught up with the client
+        }
+        if (queued >= AppConstants.STREAM_WINDOW_CHUNKS && connection.pauseReading(ClientConnection.PAUSED_BY_STREAM)) {
+            // The runs may have drained the chunks before the pause, in which case none of them resumes reading
+            if (queuedChunks.get() <= AppConstants.STREAM_WINDOW_CHUNKS / 2) {
+                connection.resumeReading(ClientConnection.PAUSED_BY_STREAM);
+            }
+        }
+        return receivedBytes == length;
+    }
+
+    /**
+     * Hash the oldest chunk, reply after the last one, and queue the next run if more chunks are waiting.
+     */
+    @Override
+    public void onTask() {
+        ByteBuffer chunk = chunks.poll();
+        hashedBytes += chunk.remaining();
+        engine.update(chunk);
+        BufferPools.PAYLOADS.release(chunk);
+        if (hashedBytes == length) {
+            ByteBuffer hashBuffer = BufferPools.HASHES.acquire();
+            hashBuffer.putLong(requestId);
+            HashEngines.digestInto(engine, hashBuffer);
+            hashBuffer.flip();
+            connection.enqueueReply(hashBuffer);
+        }
+
+        int queued = queuedChunks.decrementAndGet(); //From here on the transport may queue a new run
+        if (queued <= AppConstants.STREAM_WINDOW_CHUNKS / 2) {
+            connection.resumeReading(ClientConnection.PAUSED_BY_STREAM);
+        }
+        if (queued > 0) {
+            threadPool.notifyAndExecuteImmediate(this, connection.getShard()); //Behind the batches dispatched meanwhile
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+class SubReactor extends Thread {
+    private final SelectorTransport transport;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> pendingChannels; //Channels handed over by the acceptor, waiting to be registered on this selector
+
+    SubReactor(SelectorTransport transport, int reactorId) throws IOException {
+        super("SubReactor-" + reactorId);
+        this.transport = transport;
+        this.selector = Selector.open();
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Hand a freshly accepted channel over to this reactor. The channel is only queued here, the actual registration
+     * happens on the reactor thread since register() would otherwise block behind the blocking select().
+     * @param channel
+     */
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                selector.select(); //Block until a registered channel is readable or wakeup() is called
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            registerPendingChannels();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey selectionKey = it.next();
+                it.remove(); //Remove key immediately to avoid processing this key again.
+                transport.dispatchReadyOps(selectionKey);
+            }
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                transport.openConnection(channel, selector);
+                if (AppConstants.DEBUG) {
+                    System.out.println("Registered new connection on " + getName());
+                }
+            } catch (ClosedChannelException e) {
+                e.printStackTrace();
+                try {
+                    channel.close(); //Not registered, so no one else closes it
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -1,34 +1,73 @@
 package cs304.scaling.server;
 
-import cs304.scaling.functions.BatchExecutorTask;
 import cs304.scaling.functions.TaskInterface;
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.HashedTimingWheel;
 
-import java.util.LinkedList;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 class ThreadPool {
     private int numThreads;
-    private int batchSize;
-    private double batchTime;
-    private long batchTimekeeper; //Timestamp containing the last batch execution time.
-    private LinkedList<LinkedList<TaskInterface>> allTasks; //LinkedList containing lists of tasks. Each list will be executed once it reaches a size of batchSize
+    private HashedTimingWheel flushTimer; //Timing wheel flushing partial batches once batchTime expires
+    private BatchAccumulator[] batchAccumulators; //Lock-free accumulators collecting tasks into batches of batchSize, one per shard in "sharded" mode
+    private AdaptiveBatchTuner batchTuner; //Retunes batch size and time against a p99 target, null when batching is static
     private LinkedBlockingQueue<TaskInterface> executionUnitTasks; //Blocking queue that is subscribed to by the executor threads
+    private WorkStealingExecutor stealingExecutor; //Lock-free executor used instead of the blocking queue in "stealing" mode
+    private ShardedExecutor shardedExecutor; //Executor with one shard per worker used in "sharded" mode
+    private AtomicInteger nextShard; //Round-robin index of the shard assigned to the next connection
 
     ThreadPool(int batchSize, double batchTime, int numThreads) {
         this.numThreads = numThreads;
-        this.batchSize = batchSize;
-        this.batchTime = batchTime;
-        batchTimekeeper = System.currentTimeMillis();
-        allTasks = new LinkedList<>();
-        allTasks.add(new LinkedList<>());
+        long batchTimeNanos = (long) (batchTime * 1000000); //batchTime is in milliseconds
+        flushTimer = new HashedTimingWheel("BatchFlushTimer", flushTickNanos(batchTimeNanos), TimeUnit.NANOSECONDS,
+                AppConstants.TIMER_TICKS_PER_WHEEL);
+        if ("sharded".equals(AppConstants.EXECUTOR_MODE)) {
+            shardedExecutor = new ShardedExecutor(numThreads);
+        }
+        batchAccumulators = new BatchAccumulator[shardedExecutor != null ? numThreads : 1];
+        for (int shard = 0; shard < batchAccumulators.length; shard++) {
+            batchAccumulators[shard] = new BatchAccumulator(this, shard, flushTimer, batchSize, batchTimeNanos);
+        }
+        if (AppConstants.ADAPTIVE_TARGET_P99_MILLIS > 0) {
+            batchTuner = new AdaptiveBatchTuner(batchAccumulators, flushTimer, batchSize, batchTimeNanos,
+                    (long) (AppConstants.ADAPTIVE_TARGET_P99_MILLIS * 1000000));
+            for (BatchAccumulator batchAccumulator : batchAccumulators) {
+                batchAccumulator.setBatchTuner(batchTuner);
+            }
+        }
         executionUnitTasks = new LinkedBlockingQueue<>();
+        nextShard = new AtomicInteger(0);
     }
 
     /**
-     * Initialize numThreads number of threads
+     * @param batchTimeNanos
+     * @return tick of the flush timer for batchTime, an eighth of it within the bounds in AppConstants
+     */
+    static long flushTickNanos(long batchTimeNanos) {
+        return Math.max(AppConstants.MIN_TIMER_TICK_NANOS, Math.min(AppConstants.MAX_TIMER_TICK_NANOS, batchTimeNanos / 8));
+    }
+
+    /**
+     * Initialize numThreads number of threads, either subscribed to the blocking queue, owning a work-stealing deque or
+     * owning a shard depending on AppConstants.EXECUTOR_MODE
      */
     void initiateThreads() {
+        flushTimer.start();
+        if (batchTuner != null) {
+            batchTuner.start();
+        }
+        if (shardedExecutor != null) {
+            shardedExecutor.start();
+            return;
+        }
+        if ("stealing".equals(AppConstants.EXECUTOR_MODE)) {
+            stealingExecutor = new WorkStealingExecutor(numThreads);
+            stealingExecutor.start();
+            return;
+        }
         int tNum = 0;
         while (tNum < numThreads) {
             new WorkerThread(executionUnitTasks).start();
@@ -37,35 +76,85 @@ class ThreadPool {
     }
 
     /**
-     * This function takes the parameter task and tries to add it into the task list. While doing so it will check if any
-     * task list has reached batchSize. If they have, it will take appropriate steps, detailed within function
+     * Pick the shard of a new connection. All tasks of the connection go to that shard for its whole lifetime.
+     * @return shard index, always 0 unless in "sharded" mode
+     */
+    int assignShard() {
+        return (nextShard.getAndIncrement() & Integer.MAX_VALUE) % batchAccumulators.length;
+    }
+
+    /**
+     * This function takes the parameter task and adds it to the current batch of its shard. Batches are dispatched by
+     * the accumulator as soon as they reach batchSize or, on the timing wheel thread, once batchTime has passed since
+     * their first task.
      * @param task
+     * @param shard shard of the connection the task belongs to, see assignShard()
+     * @return id of the batch the task was added to
+     */
+    long addTaskToBatch(TaskInterface task, int shard) {
+        return batchAccumulators[shard].add(task);
+    }
+
+    /**
+     * @return batches dispatched to the executor that have not started executing yet
      */
-    void addTaskToBatch(TaskInterface task) {
-        synchronized (allTasks) {
-            LinkedList<TaskInterface> list = allTasks.remove(); //Remove the head(also a list) of the list
-            list.add(task); //Add task to the list that is at the head of the nested linked list(list of list of tasks)
-            allTasks.add(list); //Add new list to the linked list of linked lists
+    int getQueuedBatchCount() {
+        int queued = 0;
+        for (BatchAccumulator batchAccumulator : batchAccumulators) {
+            queued += batchAccumulator.getQueuedBatchCount();
+        }
+        return queued;
+    }
 
-            // The subsequent block of code checks whether or not the topmost list in the list of lists has reached a size of batch size
-            // or if the last batch was executed before batchTime milliseconds. If any of those conditions are true, hen the first list
-            // from the list of lists is added to a wrapper Batch executor task and that task is added to the Linked Blocking queue that
-            // all the executor threads(worker threads) subscribe to.
+    long getTotalBatchCount() {
+        long batches = 0;
+        for (BatchAccumulator batchAccumulator : batchAccumulators) {
+            batches += batchAccumulator.getTotalBatchCount();
+        }
+        return batches;
+    }
 
-            if (allTasks.peek().size() >= batchSize || (double) (System.currentTimeMillis() - batchTimekeeper) >= batchTime) {
-                BatchExecutorTask batch = new BatchExecutorTask(allTasks.remove());
-                batchTimekeeper = System.currentTimeMillis(); //Set execution time of last batch to now
-                allTasks.add(new LinkedList<TaskInterface>());
-                notifyAndExecuteImmediate(batch); //Add batch task to Linked Blocking queue
-            }
+    long getTotalBatchedTaskCount() {
+        long tasks = 0;
+        for (BatchAccumulator batchAccumulator : batchAccumulators) {
+            tasks += batchAccumulator.getTotalBatchedTaskCount();
+        }
+        return tasks;
+    }
+
+    /**
+     * @return current batch size and time, or null when batching is static
+     */
+    String describeAdaptiveBatching() {
+        if (batchTuner == null) {
+            return null;
         }
+        return batchTuner.getBatchSize() + " tasks / " + batchTuner.getBatchTimeNanos() / 1000000.0 + " ms";
     }
 
     /**
-     * Function that adds the batch task to the FIFO_QUEUE(linked blocking queue) so that it can be executed by an available thread.
+     * Function that adds the batch task to the FIFO_QUEUE(linked blocking queue), or to a worker deque in "stealing" mode,
+     * so that it can be executed by an available thread.
      * @param batch
      */
     void notifyAndExecuteImmediate(TaskInterface batch) {
+        notifyAndExecuteImmediate(batch, assignShard());
+    }
+
+    /**
+     * Same as notifyAndExecuteImmediate(TaskInterface), in "sharded" mode the task is queued on the given shard.
+     * @param batch
+     * @param shard
+     */
+    void notifyAndExecuteImmediate(TaskInterface batch, int shard) {
+        if (shardedExecutor != null) {
+            shardedExecutor.execute(batch, shard);
+            return;
+        }
+        if (stealingExecutor != null) {
+            stealingExecutor.execute(batch);
+            return;
+        }
         synchronized (executionUnitTasks) {
             executionUnitTasks.add(batch);
             executionUnitTasks.notify();
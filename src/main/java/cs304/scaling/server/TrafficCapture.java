@@ -0,0 +1,201 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.TrafficJournal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// * Journals every request the Server reads, with its arrival time, in the TrafficJournal format. The I/O threads only
+// * copy each request into a slot of a lock-free ring, claimed with one compare-and-set, and move on; the journal writer
+// * thread appends the slots to a memory-mapped segment and maps the next file when it is full. When the ring is full
+// * the request is not captured and counted as dropped, the I/O threads never wait for the disk.
+
+class TrafficCapture extends Thread {
+    private static final int SLOT_SIZE = TrafficJournal.RECORD_HEADER_LENGTH + AppConstants.BYTES_PER_MESSAGE;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long startNanos; //Arrival times are relative to this
+    private final long startMillis;
+    private final ByteBuffer[] slots; //Views of one direct allocation, each owned by one record at a time
+    private final AtomicLongArray published; //Sequence of the record in each slot once it is complete
+    private final AtomicLong claimed; //Next sequence a producer claims
+    private final int mask;
+    private final LongAdder droppedCount;
+    private final ArrayDeque<Path> segments; //Segments on disk, oldest first, only touched by the writer
+    private volatile long consumed; //Next sequence the writer appends, slots before it are free again
+    private volatile long writtenBytes;
+    private volatile boolean parked; //True while the writer waits for the next record, which unparks it
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+
+    /**
+     * Create the first segment right away so a bad directory fails the server at startup.
+     * @param directory must not hold a journal yet
+     * @param segmentBytes size of every segment file
+     * @param maxSegments segments kept on disk, 0 for all
+     * @param bufferSlots requests buffered between the I/O threads and the writer
+     */
+    TrafficCapture(Path directory, int segmentBytes, int maxSegments, int bufferSlots) throws IOException {
+        super("TrafficCaptureWriter");
+        setDaemon(true);
+        if (segmentBytes < TrafficJournal.SEGMENT_HEADER_LENGTH + SLOT_SIZE) {
+            throw new IllegalArgumentException("scaling.capture.segmentBytes must be at least "
+                    + (TrafficJournal.SEGMENT_HEADER_LENGTH + SLOT_SIZE));
+        }
+        Files.createDirectories(directory);
+        if (!TrafficJournal.listSegments(directory).isEmpty()) {
+            throw new IOException("Capture directory " + directory + " already holds a journal");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.startNanos = System.nanoTime();
+        this.startMillis = System.currentTimeMillis();
+
+        int slotCount = Integer.highestOneBit(Math.max(2, bufferSlots) * 2 - 1);
+        ByteBuffer slab = ByteBuffer.allocateDirect(slotCount * SLOT_SIZE);
+        this.slots = new ByteBuffer[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slab.limit((i + 1) * SLOT_SIZE);
+            slab.position(i * SLOT_SIZE);
+            slots[i] = slab.slice();
+        }
+        this.published = new AtomicLongArray(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            published.set(i, -1);
+        }
+        this.claimed = new AtomicLong();
+        this.mask = slotCount - 1;
+        this.droppedCount = new LongAdder();
+        this.segments = new ArrayDeque<>();
+        openSegment(0);
+    }
+
+    /**
+     * Copy a request into the ring. Called by the I/O thread that read it, never blocks.
+     * @param connection
+     * @param frame flipped request payload, its position is left unchanged
+     * @param requestId id of a v2 request
+     */
+    void record(ClientConnection connection, ByteBuffer frame, long requestId) {
+        long arrivalNanos = System.nanoTime() - startNanos;
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed > mask) {
+                droppedCount.increment(); //Writer is behind by a whole ring
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        ByteBuffer record = slots[slot];
+        record.clear();
+        record.putInt(frame.remaining());
+        record.putInt(connection.getProtocolVersion());
+        record.putLong(connection.getId());
+        record.putLong(requestId);
+        record.putLong(arrivalNanos);
+        int position = frame.position();
+        record.put(frame);
+        frame.position(position);
+        record.flip();
+        published.set(slot, sequence); //Hands the slot to the writer
+        if (parked) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Append the records in sequence order. Once the ring is empty the writer parks until the next record() unparks
+     * it, so an idle capture costs no wakeups.
+     */
+    public void run() {
+        long next = 0;
+        while (true) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next) {
+                segment.putLong(TrafficJournal.SEGMENT_END_OFFSET, segment.position()); //Make what was appended visible
+                writtenBytes = (long) segmentIndex * segmentBytes + segment.position();
+                // Publish the flag before the last look, a producer that publishes after it is guaranteed to unpark us
+                parked = true;
+                if (published.get(slot) != next) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                continue;
+            }
+            ByteBuffer record = slots[slot];
+            try {
+                if (segment.remaining() < record.remaining()) {
+                    rollSegment();
+                }
+                segment.put(record);
+            } catch (IOException e) {
+                e.printStackTrace();
+                droppedCount.increment();
+            }
+            consumed = ++next; //Frees the slot for the producers
+        }
+    }
+
+    /**
+     * Seal the full segment and continue in a new file, deleting the oldest one beyond maxSegments.
+     */
+    private void rollSegment() throws IOException {
+        segment.putLong(TrafficJournal.SEGMENT_END_OFFSET, segment.position());
+        openSegment(segmentIndex + 1);
+        if (maxSegments > 0) {
+            while (segments.size() > maxSegments) {
+                Files.deleteIfExists(segments.poll());
+            }
+        }
+    }
+
+    private void openSegment(int index) throws IOException {
+        Path path = TrafficJournal.segmentPath(directory, index);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes); //Sparse until pages are written
+        }
+        segment.putLong(TrafficJournal.MAGIC);
+        segment.putInt(TrafficJournal.FORMAT_VERSION);
+        segment.putInt(index);
+        segment.putLong(startMillis);
+        segment.putLong(TrafficJournal.SEGMENT_HEADER_LENGTH);
+        segmentIndex = index;
+        segments.add(path);
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    long getCapturedCount() {
+        return consumed;
+    }
+
+    long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * @return bytes appended to the journal so far, including segment headers and the unused tails of full segments
+     */
+    long getWrittenBytes() {
+        return writtenBytes;
+    }
+}
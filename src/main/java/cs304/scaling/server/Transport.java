@@ -0,0 +1,14 @@
+package cs304.scaling.server;
+
+import java.io.IOException;
+
+// * I/O engine moving messages between the clients and the server. The transport is picked at startup with
+// * -Dscaling.server.mode, every transport creates its own ClientConnection subclass and reports to the same Server, so
+// * the protocol, the stats and the admission control are shared.
+
+interface Transport {
+    /**
+     * Accept and serve client connections on the calling thread. Does not return while the server is running.
+     */
+    void serve() throws IOException;
+}
@@ -0,0 +1,310 @@
+package cs304.scaling.server;
+
+import cs304.scaling.utils.AppConstants;
+import cs304.scaling.utils.BufferPools;
+import cs304.scaling.utils.HashEngine;
+import cs304.scaling.utils.HashEngines;
+import cs304.scaling.utils.WireProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+// * Connection-per-thread alternative to the selectors and batches: every accepted connection gets a virtual thread
+// * that does blocking reads, hashes each message and writes the reply itself. It speaks the same protocol and feeds the
+// * same per-connection counters as the other transports. Virtual threads need Java 21, the executor is looked up
+// * reflectively so the rest of the server still builds for Java 8.
+
+class VirtualThreadTransport implements Transport {
+    private final Server server;
+    private final ServerSocketChannel serverSocketChannel;
+    private final ExecutorService connectionThreads;
+
+    VirtualThreadTransport(Server server, InetSocketAddress address) throws IOException {
+        this.server = server;
+        this.connectionThreads = newVirtualThreadPerTaskExecutor();
+        this.serverSocketChannel = ServerSocketChannel.open();
+        this.serverSocketChannel.socket().bind(address, AppConstants.ACCEPT_BACKLOG);
+    }
+
+    /**
+     * Accept connections forever on the calling thread. A failed accept, e.g. out of file descriptors, leaves the
+     * connection in the backlog, so the loop waits AppConstants.ACCEPT_RETRY_MILLIS and tries again, reporting only the
+     * first failure in a row.
+     */
+    @Override
+    public void serve() throws IOException {
+        System.out.println("Server running with one virtual thread per connection");
+        boolean failing = false;
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverSocketChannel.accept();
+            } catch (ClosedChannelException e) {
+                throw e; //Server socket closed, nothing left to accept
+            } catch (IOException e) {
+                if (!failing) {
+                    e.printStackTrace();
+                    failing = true;
+                }
+                pauseAccepting();
+                continue;
+            }
+            failing = false;
+            connectionThreads.execute(() -> serve(channel));
+        }
+    }
+
+    private static void pauseAccepting() {
+        try {
+            Thread.sleep(AppConstants.ACCEPT_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Body of a connection thread. Messages are answered one at a time in arrival order, a client that sends faster
+     * than its thread hashes is held back by TCP flow control.
+     * @param channel
+     */
+    private void serve(SocketChannel channel) {
+        ThreadConnection connection = new ThreadConnection(channel, server.getAdmissionControl());
+        server.connectionOpened(connection);
+        // Heap buffers: the thread blocks on every read anyway, and unlike direct buffers they are reclaimed with the
+        // connection instead of holding native memory until a GC notices, and they stay out of BufferPools, whose
+        // per-thread caches would end up in one virtual thread each
+        ByteBuffer message = ByteBuffer.allocate(AppConstants.BYTES_PER_MESSAGE);
+        ByteBuffer reply = ByteBuffer.allocate(AppConstants.BYTES_PER_HASH);
+        try {
+            channel.socket().setTcpNoDelay(true); //Every reply is written on its own
+            message.limit(WireProtocol.PREAMBLE_LENGTH);
+            if (!readFully(channel, message)) {
+                return;
+            }
+            if (WireProtocol.isPreamble(message, 0)) {
+                reply.clear();
+                WireProtocol.putPreamble(reply);
+                reply.flip();
+                connection.write(reply);
+                serveV2(channel, connection, message, reply);
+            } else {
+                message.limit(message.capacity()); //The bytes are the start of the first message
+                serveV1(channel, connection, message, reply);
+            }
+        } catch (IOException e) {
+            if (AppConstants.DEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            server.closeConnection(connection);
+        }
+    }
+
+    /**
+     * @param message holds the first bytes of the first message
+     */
+    private void serveV1(SocketChannel channel, ThreadConnection connection, ByteBuffer message, ByteBuffer reply)
+            throws IOException {
+        while (readFully(channel, message)) {
+            message.flip();
+            connection.recordReceived(1, AppConstants.BYTES_PER_MESSAGE);
+            server.captureMessage(connection, message, 0);
+
+            reply.clear();
+            HashEngines.hashInto(message, reply);
+            reply.flip();
+            connection.write(reply);
+            connection.recordSent(1, AppConstants.BYTES_PER_HASH);
+            message.clear();
+        }
+    }
+
+    private void serveV2(SocketChannel channel, ThreadConnection connection, ByteBuffer message, ByteBuffer reply)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(WireProtocol.REQUEST_HEADER_LENGTH);
+        while (readFully(channel, header)) {
+            header.flip();
+            int length = header.getInt();
+            long requestId = header.getLong();
+            header.clear();
+            if (length < 0 || length > WireProtocol.MAX_STREAMED_LENGTH) {
+                throw new ProtocolException("Request " + requestId + " announces " + length + " payload bytes");
+            }
+            reply.clear();
+            reply.putLong(requestId);
+            if (length > WireProtocol.MAX_PAYLOAD_LENGTH) {
+                if (!streamPayload(channel, message, length, reply)) {
+                    return;
+                }
+                connection.recordReceived(1, WireProtocol.REQUEST_HEADER_LENGTH + length); //Not captured, see Server.queueChunk()
+            } else {
+                message.clear();
+                message.limit(length);
+                if (!readFully(channel, message)) {
+                    return;
+                }
+                message.flip();
+                connection.recordReceived(1, WireProtocol.REQUEST_HEADER_LENGTH + length);
+                server.captureMessage(connection, message, requestId);
+                HashEngines.digestInto(message, reply);
+            }
+            reply.flip();
+            connection.write(reply);
+            connection.recordSent(1, WireProtocol.REPLY_LENGTH);
+        }
+    }
+
+    /**
+     * Hash a payload longer than the message buffer chunk by chunk as it is read, and put its digest into reply.
+     * @param message buffer every chunk is read into
+     * @param length of the payload
+     * @param reply receives HashEngines.WIRE_DIGEST_LENGTH bytes
+     * @return false if the client closed the connection before the payload was complete
+     */
+    private static boolean streamPayload(SocketChannel channel, ByteBuffer message, int length, ByteBuffer reply)
+            throws IOException {
+        HashEngine engine = HashEngines.threadEngine(); //Owned by the virtual thread of this connection
+        int remaining = length;
+        while (remaining > 0) {
+            message.clear();
+            message.limit(Math.min(remaining, message.capacity()));
+            if (!readFully(channel, message)) {
+                return false;
+            }
+            remaining -= message.position();
+            message.flip();
+            engine.update(message);
+        }
+        HashEngines.digestInto(engine, reply);
+        return true;
+    }
+
+    /**
+     * @return false if the client closed the connection before buffer was full
+     */
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * @return true if the JVM has virtual threads, checked by Server.main() before the server is set up
+     */
+    static boolean isSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("scaling.server.mode=virtual needs Java 21 or later, running on "
+                    + System.getProperty("java.version"));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Connection served by its own thread, which does all reads and writes itself. Admission control is disabled in
+     * this mode, so reading is never paused from the outside.
+     */
+    private static final class ThreadConnection extends ClientConnection {
+        private final SocketChannel channel;
+        private final ReentrantLock writeLock; //Keeps replies whole on the wire, a monitor would pin the virtual thread while it blocks
+
+        ThreadConnection(SocketChannel channel, AdmissionControl admissionControl) {
+            super(0, admissionControl);
+            this.channel = channel;
+            this.writeLock = new ReentrantLock();
+        }
+
+        /**
+         * Write buffer completely, blocking until the client takes it.
+         * @param buffer
+         */
+        void write(ByteBuffer buffer) throws IOException {
+            writeLock.lock();
+            try {
+                writeFully(channel, buffer);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Write a reply produced outside the connection thread right away, between the replies of the connection
+         * thread. A failed write expires the connection, so its thread tears it down.
+         * @param reply flipped pooled buffer, released once written
+         */
+        @Override
+        void sendReply(ByteBuffer reply) {
+            try {
+                int bytes = reply.remaining();
+                write(reply);
+                recordSent(1, bytes);
+            } catch (IOException e) {
+                if (AppConstants.DEBUG) {
+                    e.printStackTrace();
+                }
+                expire();
+            } finally {
+                BufferPools.HASHES.release(reply);
+            }
+        }
+
+        @Override
+        void stopReading() {
+        }
+
+        @Override
+        void restartReading() {
+        }
+
+        @Override
+        void expire() {
+            try {
+                channel.shutdownInput(); //Wakes the connection thread from its blocking read
+            } catch (IOException e) {
+                if (AppConstants.DEBUG) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
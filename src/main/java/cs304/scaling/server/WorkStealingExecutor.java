@@ -0,0 +1,134 @@
+package cs304.scaling.server;
+
+import cs304.scaling.functions.TaskInterface;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+
+class WorkStealingExecutor {
+    private static final int SPIN_TRIES = 256; //Number of empty scans an idle worker does before yielding
+    private static final int YIELD_TRIES = 16; //Number of Thread.yield() rounds before the worker parks
+
+    private final StealingWorker[] workers;
+    private final AtomicInteger nextWorker; //Round-robin index of the worker receiving the next external submission
+
+    WorkStealingExecutor(int numThreads) {
+        workers = new StealingWorker[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            workers[i] = new StealingWorker(i);
+        }
+        nextWorker = new AtomicInteger(0);
+    }
+
+    void start() {
+        for (StealingWorker worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Queue a task on a worker deque without taking any lock. Tasks submitted from a worker stay on that worker's own
+     * deque, all other submissions are spread round-robin. A parked worker is woken up if there is one.
+     * @param task
+     */
+    void execute(TaskInterface task) {
+        Thread current = Thread.currentThread();
+        StealingWorker target;
+        if (current instanceof StealingWorker && ((StealingWorker) current).owner() == this) {
+            target = (StealingWorker) current;
+        } else {
+            target = workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+        }
+        target.deque.offerLast(task);
+
+        if (!target.unparkIfParked()) {
+            for (StealingWorker worker : workers) {
+                if (worker.unparkIfParked()) { //Target is busy, let an idle worker steal the task instead
+                    break;
+                }
+            }
+        }
+    }
+
+    private class StealingWorker extends Thread {
+        private final int workerId;
+        private final ConcurrentLinkedDeque<TaskInterface> deque; //Own tasks are taken from the head, thieves take from the tail
+        private volatile boolean parked;
+
+        StealingWorker(int workerId) {
+            super("StealingWorker-" + workerId);
+            this.workerId = workerId;
+            this.deque = new ConcurrentLinkedDeque<>();
+        }
+
+        WorkStealingExecutor owner() {
+            return WorkStealingExecutor.this;
+        }
+
+        boolean unparkIfParked() {
+            if (parked) {
+                LockSupport.unpark(this);
+                return true;
+            }
+            return false;
+        }
+
+        public void run() {
+            while (true) {
+                TaskInterface task = findTask();
+                if (task == null) {
+                    task = awaitTask();
+                }
+                try {
+                    task.onTask(); //Execute task
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Poll the own deque first and then try to steal from the other workers.
+         */
+        private TaskInterface findTask() {
+            TaskInterface task = deque.pollFirst();
+            for (int i = 1; task == null && i < workers.length; i++) {
+                task = workers[(workerId + i) % workers.length].deque.pollLast();
+            }
+            return task;
+        }
+
+        /**
+         * Spin, then yield and finally park until a task shows up. The parked flag is published before the last scan,
+         * so a producer that enqueues after that scan is guaranteed to see the flag and unpark this worker.
+         */
+        private TaskInterface awaitTask() {
+            int rounds = 0;
+            while (true) {
+                TaskInterface task = findTask();
+                if (task != null) {
+                    return task;
+                }
+                rounds++;
+                if (rounds < SPIN_TRIES) {
+                    continue;
+                }
+                if (rounds < SPIN_TRIES + YIELD_TRIES) {
+                    Thread.yield();
+                    continue;
+                }
+                parked = true;
+                task = findTask();
+                if (task == null) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                if (task != null) {
+                    return task;
+                }
+            }
+        }
+    }
+}
@@ -14,6 +14,7 @@ public class WorkerThread extends Thread {
 
     public void run() {
         while (true) {
+            TaskInterface task;
             synchronized (FIFO_QUEUE) {
                 while (FIFO_QUEUE.isEmpty()) {
                     try {
@@ -22,10 +23,10 @@ public class WorkerThread extends Thread {
                         e.printStackTrace();
                     }
                 }
-                TaskInterface task = FIFO_QUEUE.poll(); //Poll task from blocking queue
-                if (task != null) {
-                    task.onTask(); //Execute task
-                }
+                task = FIFO_QUEUE.poll(); //Poll task from blocking queue
+            }
+            if (task != null) {
+                task.onTask(); //Execute task outside the monitor so that the other workers can pick up tasks meanwhile
             }
         }
     }
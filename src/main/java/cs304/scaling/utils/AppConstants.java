@@ -4,8 +4,6 @@ package cs304.scaling.utils;
 public class AppConstants {
     public static final boolean DEBUG = false; //Set DEBUG mode
 
-    public static final int PER_SECOND = 1000; //This is divided by MessageRate to set up an interval between successive client messages
-
     public static final int BYTES_PER_MESSAGE = 8192; //Randomly generated Payload's Size
 
     public static final int STATS_LOGGER_START_DELAY_MILLIS = 20000; //Start Delay for printing statistics
@@ -15,4 +13,94 @@ public class AppConstants {
     public static final int STATS_LOGGER_INTERVAL_SECS = STATS_LOGGER_INTERVAL_MILLIS / 1000; //Interval Duration in seconds
 
     public static final int BYTES_PER_HASH = 40; //Size of payload from Server to Client (Hash Length)
+
+    public static final String HASH_ALGORITHM = System.getProperty("scaling.hash", "SHA-1"); //Hash computed for every message, "SHA-1", "SHA-256" or "XXH64". Server and clients must agree
+
+    public static final boolean MULTI_BUFFER_HASHING = Boolean.getBoolean("scaling.hash.multibuffer"); //Hash the full-size SHA-1 messages of a batch several at a time with MultiBufferSHA1
+
+    public static final int STREAM_MAX_BYTES = Integer.getInteger("scaling.stream.maxBytes", 1024 * 1024 * 1024); //Largest v2 payload the server accepts, payloads over BYTES_PER_MESSAGE are hashed chunk by chunk as they arrive. BYTES_PER_MESSAGE or less disables streaming
+
+    public static final int STREAM_WINDOW_CHUNKS = Math.max(2, Integer.getInteger("scaling.stream.window", 4)); //Chunks of a streamed payload waiting to be hashed at which the server stops reading from its connection, reading resumes at half
+
+    public static final int READ_BUFFER_SIZE = 8 * BYTES_PER_MESSAGE; //Bytes read from a channel per readiness event, several frames fit at once
+
+    public static final int MAX_GATHERED_WRITES = 64; //Replies written to a channel with a single gathering write
+
+    public static final int HASHES_PER_READ = 64; //Hashes the client can take in with a single read
+
+    public static final int METRICS_PORT = Integer.getInteger("scaling.metrics.port", 0); //Port of the server's Prometheus endpoint, 0 disables it
+
+    public static final String METRICS_BIND_ADDRESS = System.getProperty("scaling.metrics.bind", "127.0.0.1"); //Address the Prometheus endpoint listens on
+
+    public static final int CLIENT_MAX_IN_FLIGHT = Integer.getInteger("scaling.client.maxInFlight", 0); //Messages a Client may have unanswered before it stops sending, 0 for no limit
+
+    public static final int LOAD_PAYLOAD_POOL_SIZE = 1024; //Random payloads generated up front and reused by the load generator
+
+    public static final int CLIENT_PROTOCOL_VERSION = Integer.getInteger("scaling.protocol", 1); //Wire protocol the load generator speaks, 1 (8 KB messages, hex hashes) or 2 (length-prefixed requests with ids, raw digests). The server accepts both
+
+    public static final int LOAD_CORPUS_SIZE = Integer.getInteger("scaling.load.corpus", 0); //Distinct payloads the load generator picks each message from at random, 0 keeps cycling through LOAD_PAYLOAD_POOL_SIZE payloads in order
+
+    public static final double LOAD_CORPUS_SKEW = Double.parseDouble(System.getProperty("scaling.load.zipf", "0")); //Zipf exponent of the picks from the corpus, 0 picks every payload equally often
+
+    public static final int LOAD_PAYLOAD_SIZE = Integer.getInteger("scaling.load.payloadSize", BYTES_PER_MESSAGE); //Payload size the load generator sends with protocol v2, at most BYTES_PER_MESSAGE
+
+    public static final int BUFFERS_PER_SLAB = 64; //Number of pooled direct buffers carved out of one allocation
+
+    public static final int BUFFERS_PER_THREAD_CACHE = 32; //Number of free pooled buffers each thread keeps for itself
+
+    public static final long MIN_TIMER_TICK_NANOS = 100000; //Finest tick of the batch flush timing wheel (0.1 ms)
+
+    public static final long MAX_TIMER_TICK_NANOS = 1000000; //Coarsest tick of the batch flush timing wheel (1 ms)
+
+    public static final int TIMER_TICKS_PER_WHEEL = 512; //Number of buckets in a timing wheel
+
+    public static final double ADAPTIVE_TARGET_P99_MILLIS = Double.parseDouble(System.getProperty("scaling.batch.targetP99", "0")); //Target p99 latency of adaptive batching, 0 keeps batch-size and batch-time fixed
+
+    public static final int ADAPTIVE_TUNING_INTERVAL_MILLIS = 100; //Interval between two adjustments of the adaptive batching
+
+    public static final long ADAPTIVE_MIN_BATCH_TIME_NANOS = 100000; //Lower bound of the adaptive batch time (0.1 ms)
+
+    public static final int ADAPTIVE_MAX_BATCH_SIZE = 4096; //Upper bound of the adaptive batch size
+
+    public static final String EXECUTOR_MODE = System.getProperty("scaling.executor", "blocking"); //Executor engine of the thread pool, "blocking" (LinkedBlockingQueue), "stealing" (lock-free work-stealing deques) or "sharded" (one shard per worker)
+
+    public static final String SERVER_MODE = System.getProperty("scaling.server.mode", "nio"); //"nio" (selectors), "proactor" (NIO.2 completion handlers) or "virtual" (one virtual thread per connection, Java 21 or later)
+
+    public static final int ADMISSION_HIGH_WATERMARK = Integer.getInteger("scaling.admission.high", 16384); //Unanswered messages at which the server stops reading from clients, 0 disables admission control
+
+    public static final int ADMISSION_LOW_WATERMARK = Integer.getInteger("scaling.admission.low", ADMISSION_HIGH_WATERMARK / 2); //Unanswered messages at which reading resumes
+
+    public static final int ADMISSION_MIN_CONNECTION_SHARE = 64; //Unanswered messages a single connection may always have, however many connections share the high watermark
+
+    public static final long IDLE_TIMEOUT_MILLIS = Long.getLong("scaling.idle.timeout", 300000); //Milliseconds a connection may go without reading or writing anything before the server closes it, 0 disables idle reaping
+
+    public static final int ACCEPT_BACKLOG = Integer.getInteger("scaling.accept.backlog", 1024); //Connections the kernel queues until they are accepted, the JDK default of 50 drops connections under churn
+
+    public static final int MAX_ACCEPTS_PER_SELECT = 256; //Connections accepted per OP_ACCEPT readiness before the selector serves its other keys again
+
+    public static final int ACCEPT_RETRY_MILLIS = 100; //Pause before accepting again after a failed accept, e.g. out of file descriptors
+
+    public static final boolean CHURN_RESET_CLOSE = Boolean.getBoolean("scaling.churn.reset"); //Churn generator closes its connections with a TCP reset instead of a FIN, like a client that drops off the network
+
+    public static final long RESULT_CACHE_BYTES = Long.getLong("scaling.cache.bytes", 0); //Off-heap memory of the server's cache of digests by payload content, 0 disables the cache
+
+    public static final int PROXY_UPSTREAM_CONNECTIONS = Integer.getInteger("scaling.proxy.upstreams", 2); //Pipelined connections every proxy loop keeps to every backend
+
+    public static final int PROXY_VIRTUAL_NODES = Integer.getInteger("scaling.proxy.vnodes", 160); //Points of every backend on the proxy's consistent-hash ring
+
+    public static final int PROXY_MAX_IN_FLIGHT = Integer.getInteger("scaling.proxy.maxInFlight", 1024); //Unanswered requests of a client at which the proxy stops reading from it, reading resumes at half
+
+    public static final long PROXY_HEALTH_INTERVAL_MILLIS = Long.getLong("scaling.proxy.health.interval", 1000); //Time between two health probes of a backend
+
+    public static final int PROXY_HEALTH_TIMEOUT_MILLIS = 500; //Connect and preamble timeout of a health probe
+
+    public static final int PROXY_HEALTH_THRESHOLD = 2; //Consecutive probes that have to fail before a backend leaves the ring, or succeed before it joins again
+
+    public static final String CAPTURE_DIRECTORY = System.getProperty("scaling.capture.dir"); //Empty directory the server journals every inbound request to, null disables capture
+
+    public static final int CAPTURE_SEGMENT_BYTES = Integer.getInteger("scaling.capture.segmentBytes", 256 * 1024 * 1024); //Size of one memory-mapped journal segment, a full segment is rotated to the next file
+
+    public static final int CAPTURE_MAX_SEGMENTS = Integer.getInteger("scaling.capture.segments", 0); //Segments kept on disk, the oldest is deleted when a new one would exceed it, 0 keeps all
+
+    public static final int CAPTURE_BUFFER_SLOTS = Integer.getInteger("scaling.capture.buffer", 1024); //Requests buffered between the I/O threads and the journal writer (rounded up to a power of two), requests arriving while it is full are not captured
 }
@@ -0,0 +1,11 @@
+package cs304.scaling.utils;
+
+// * Direct buffer pools shared by all server threads, one per message size of the wire protocol
+
+public class BufferPools {
+    public static final DirectBufferPool PAYLOADS = new DirectBufferPool(AppConstants.BYTES_PER_MESSAGE,
+            AppConstants.BUFFERS_PER_SLAB, AppConstants.BUFFERS_PER_THREAD_CACHE); //Incoming 8 KB messages
+
+    public static final DirectBufferPool HASHES = new DirectBufferPool(AppConstants.BYTES_PER_HASH,
+            AppConstants.BUFFERS_PER_SLAB, AppConstants.BUFFERS_PER_THREAD_CACHE); //Outgoing 40 byte hashes
+}
@@ -0,0 +1,111 @@
+package cs304.scaling.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// * Pool of fixed-size direct byte buffers carved out of larger slabs. Every thread keeps a small cache of buffers so
+// * that acquire/release normally touch no lock and allocate nothing, the shared stack is only used to rebalance caches.
+
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final int localCacheSize;
+    private final ThreadLocal<LocalCache> localCache;
+    private ByteBuffer[] sharedBuffers; //Shared stack of free buffers, guarded by this
+    private int sharedCount;
+
+    /**
+     * @param bufferSize capacity of every buffer handed out
+     * @param buffersPerSlab number of buffers carved out of one direct allocation
+     * @param localCacheSize maximum number of free buffers cached per thread
+     */
+    public DirectBufferPool(int bufferSize, int buffersPerSlab, int localCacheSize) {
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = Math.max(1, buffersPerSlab);
+        this.localCacheSize = Math.max(2, localCacheSize);
+        this.localCache = ThreadLocal.withInitial(() -> new LocalCache(this.localCacheSize));
+        this.sharedBuffers = new ByteBuffer[this.buffersPerSlab];
+    }
+
+    /**
+     * @return a cleared buffer of bufferSize bytes
+     */
+    public ByteBuffer acquire() {
+        LocalCache cache = localCache.get();
+        if (cache.size == 0) {
+            refill(cache);
+        }
+        ByteBuffer buffer = cache.buffers[--cache.size];
+        cache.buffers[cache.size] = null;
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. It may be released on a different thread than the one that acquired it.
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        LocalCache cache = localCache.get();
+        if (cache.size == cache.buffers.length) {
+            spill(cache);
+        }
+        cache.buffers[cache.size++] = buffer;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Move half a cache worth of buffers from the shared stack into the thread cache, allocating a slab if needed.
+     */
+    private synchronized void refill(LocalCache cache) {
+        if (sharedCount == 0) {
+            allocateSlab();
+        }
+        int count = Math.min(sharedCount, localCacheSize / 2);
+        for (int i = 0; i < count; i++) {
+            cache.buffers[cache.size++] = sharedBuffers[--sharedCount];
+            sharedBuffers[sharedCount] = null;
+        }
+    }
+
+    /**
+     * Move half of a full thread cache to the shared stack, so that threads which mostly release (e.g. workers
+     * releasing buffers acquired by a reactor) hand their buffers back.
+     */
+    private synchronized void spill(LocalCache cache) {
+        int count = cache.size / 2;
+        ensureSharedCapacity(sharedCount + count);
+        for (int i = 0; i < count; i++) {
+            sharedBuffers[sharedCount++] = cache.buffers[--cache.size];
+            cache.buffers[cache.size] = null;
+        }
+    }
+
+    private void allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+        ensureSharedCapacity(sharedCount + buffersPerSlab);
+        for (int i = 0; i < buffersPerSlab; i++) {
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            sharedBuffers[sharedCount++] = slab.slice();
+        }
+    }
+
+    private void ensureSharedCapacity(int capacity) {
+        if (sharedBuffers.length < capacity) {
+            sharedBuffers = Arrays.copyOf(sharedBuffers, Math.max(capacity, sharedBuffers.length * 2));
+        }
+    }
+
+    private static final class LocalCache {
+        private final ByteBuffer[] buffers;
+        private int size;
+
+        LocalCache(int capacity) {
+            this.buffers = new ByteBuffer[capacity];
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package cs304.scaling.utils;
+
+import java.nio.ByteBuffer;
+
+// * Incremental hash function. Instances keep state between update() calls and are not thread-safe, use
+// * HashEngines.threadEngine() to get the instance of the configured algorithm for the current thread.
+
+public interface HashEngine {
+    /**
+     * @return number of bytes written by digest()
+     */
+    int digestLength();
+
+    /**
+     * Feed the remaining bytes of data into the hash, consuming them.
+     * @param data
+     */
+    void update(ByteBuffer data);
+
+    void update(byte[] data, int offset, int length);
+
+    /**
+     * Finish the hash, write it to out and reset the engine for the next message.
+     * @param out
+     * @param offset
+     * @return number of bytes written
+     */
+    int digest(byte[] out, int offset);
+}
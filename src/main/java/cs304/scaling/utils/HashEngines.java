@@ -0,0 +1,194 @@
+package cs304.scaling.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// * Creates hash engines and encodes their digests in the wire format shared by server and client. The algorithm is
+// * picked with AppConstants.HASH_ALGORITHM, every thread gets its own engine so that no digest is set up per message.
+// * The server side helpers look payloads up in RESULT_CACHE first when it is enabled.
+
+public class HashEngines {
+    public static final String XXH64 = "XXH64"; //Non-cryptographic 64 bit xxHash, every other name is looked up as a MessageDigest
+    public static final int WIRE_DIGEST_LENGTH = AppConstants.BYTES_PER_HASH / 2; //Digest bytes carried by a reply
+
+    public static final ResultCache RESULT_CACHE = new ResultCache(AppConstants.RESULT_CACHE_BYTES); //Digests of recently seen payloads
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_DIGEST_LENGTH = 64; //Enough for SHA-512
+    private static final ThreadLocal<HashEngine> THREAD_ENGINE = ThreadLocal.withInitial(() -> create(AppConstants.HASH_ALGORITHM));
+    private static final ThreadLocal<byte[]> THREAD_DIGEST_OUTPUT = ThreadLocal.withInitial(() -> new byte[MAX_DIGEST_LENGTH]);
+
+    /**
+     * @param algorithm XXH64 or the name of a MessageDigest algorithm such as SHA-1 or SHA-256
+     * @return a new engine, not thread-safe
+     */
+    public static HashEngine create(String algorithm) {
+        if (XXH64.equalsIgnoreCase(algorithm)) {
+            return new XXHash64(0);
+        }
+        return new MessageDigestEngine(algorithm);
+    }
+
+    /**
+     * @return the engine of the configured algorithm owned by the calling thread
+     */
+    public static HashEngine threadEngine() {
+        return THREAD_ENGINE.get();
+    }
+
+    /**
+     * Hash the remaining bytes of payload and put the hash into out without allocating.
+     * @param payload consumed up to its limit
+     * @param out receives AppConstants.BYTES_PER_HASH bytes
+     */
+    public static void hashInto(ByteBuffer payload, ByteBuffer out) {
+        byte[] digest = THREAD_DIGEST_OUTPUT.get();
+        writeHash(digest, digest(payload, digest), out);
+    }
+
+    /**
+     * Hash the remaining bytes of payload and put the raw digest of a v2 reply into out without allocating.
+     * @param payload consumed up to its limit
+     * @param out receives WIRE_DIGEST_LENGTH bytes
+     */
+    public static void digestInto(ByteBuffer payload, ByteBuffer out) {
+        byte[] digest = THREAD_DIGEST_OUTPUT.get();
+        writeDigest(digest, digest(payload, digest), out);
+    }
+
+    /**
+     * Finish a hash that was fed incrementally and put the raw digest of a v2 reply into out without allocating.
+     * @param engine reset for the next message
+     * @param out receives WIRE_DIGEST_LENGTH bytes
+     */
+    public static void digestInto(HashEngine engine, ByteBuffer out) {
+        byte[] digest = THREAD_DIGEST_OUTPUT.get();
+        writeDigest(digest, engine.digest(digest, 0), out);
+    }
+
+    /**
+     * Digest the remaining bytes of payload with the thread engine, or take the digest from RESULT_CACHE. Cached
+     * digests are truncated to WIRE_DIGEST_LENGTH bytes, which encode exactly like the full digest.
+     * @param payload consumed up to its limit
+     * @param digest receives the digest
+     * @return number of valid bytes in digest
+     */
+    private static int digest(ByteBuffer payload, byte[] digest) {
+        HashEngine engine = THREAD_ENGINE.get();
+        if (!RESULT_CACHE.accepts(payload)) {
+            engine.update(payload);
+            return engine.digest(digest, 0);
+        }
+        long fingerprint = RESULT_CACHE.fingerprint(payload);
+        int length = RESULT_CACHE.lookup(payload, fingerprint, digest);
+        if (length < 0) {
+            int position = payload.position();
+            engine.update(payload);
+            length = engine.digest(digest, 0);
+            payload.position(position);
+            RESULT_CACHE.store(payload, fingerprint, digest, length);
+        }
+        payload.position(payload.limit());
+        return length;
+    }
+
+    /**
+     * @param data
+     * @return hash of data in the same format hashInto() writes
+     */
+    public static String hashToString(byte[] data) {
+        HashEngine engine = THREAD_ENGINE.get();
+        byte[] digest = THREAD_DIGEST_OUTPUT.get();
+        engine.update(data, 0, data.length);
+        ByteBuffer out = ByteBuffer.allocate(AppConstants.BYTES_PER_HASH);
+        writeHash(digest, engine.digest(digest, 0), out);
+        return new String(out.array(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Hash data into the raw digest a reply decodes to with parseReply(): truncated to WIRE_DIGEST_LENGTH bytes, shorter
+     * digests right-aligned and zero-filled.
+     * @param data
+     * @param out receives WIRE_DIGEST_LENGTH bytes
+     */
+    public static void hashToDigest(byte[] data, byte[] out) {
+        HashEngine engine = THREAD_ENGINE.get();
+        byte[] digest = THREAD_DIGEST_OUTPUT.get();
+        engine.update(data, 0, data.length);
+        int length = Math.min(engine.digest(digest, 0), WIRE_DIGEST_LENGTH);
+        Arrays.fill(out, 0, WIRE_DIGEST_LENGTH - length, (byte) 0);
+        System.arraycopy(digest, 0, out, WIRE_DIGEST_LENGTH - length, length);
+    }
+
+    /**
+     * Put a digest as the raw bytes hashToDigest() computes: truncated to WIRE_DIGEST_LENGTH bytes, shorter digests
+     * right-aligned and zero-filled.
+     * @param digest
+     * @param length number of valid bytes in digest
+     * @param out receives WIRE_DIGEST_LENGTH bytes
+     */
+    public static void writeDigest(byte[] digest, int length, ByteBuffer out) {
+        int used = Math.min(length, WIRE_DIGEST_LENGTH);
+        for (int i = used; i < WIRE_DIGEST_LENGTH; i++) {
+            out.put((byte) 0);
+        }
+        out.put(digest, 0, used);
+    }
+
+    /**
+     * Decode a reply written by writeHash() back into raw digest bytes, the '-' padding reads as zero.
+     * @param replies
+     * @param offset absolute index of the reply in replies
+     * @param out receives WIRE_DIGEST_LENGTH bytes
+     * @return false if the reply is not in the hash format
+     */
+    public static boolean parseReply(ByteBuffer replies, int offset, byte[] out) {
+        for (int i = 0; i < WIRE_DIGEST_LENGTH; i++) {
+            int high = hexValue(replies.get(offset + 2 * i));
+            int low = hexValue(replies.get(offset + 2 * i + 1));
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            out[i] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
+
+    /**
+     * Encode a digest the way the server has always sent SHA-1 hashes: lower-case hex without leading zeros, left-padded
+     * with '-' to AppConstants.BYTES_PER_HASH characters. Digests longer than BYTES_PER_HASH / 2 bytes (SHA-256) are
+     * truncated to their leading bytes, shorter ones (XXH64) are padded, so replies keep their fixed size.
+     * @param digest
+     * @param length number of valid bytes in digest
+     * @param out receives AppConstants.BYTES_PER_HASH bytes
+     */
+    public static void writeHash(byte[] digest, int length, ByteBuffer out) {
+        int hexLength = Math.min(length, AppConstants.BYTES_PER_HASH / 2) * 2;
+        int leadingZeros = 0;
+        while (leadingZeros < hexLength - 1 && nibble(digest, leadingZeros) == 0) {
+            leadingZeros++; //BigInteger.toString(16) drops these, the padding replaces them with '-'
+        }
+        for (int i = hexLength; i < AppConstants.BYTES_PER_HASH; i++) {
+            out.put((byte) '-');
+        }
+        for (int i = 0; i < hexLength; i++) {
+            out.put(i < leadingZeros ? (byte) '-' : HEX_DIGITS[nibble(digest, i)]);
+        }
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return c == '-' ? 0 : -1;
+    }
+
+    private static int nibble(byte[] digest, int index) {
+        int b = digest[index >> 1];
+        return (index & 1) == 0 ? (b >> 4) & 0xf : b & 0xf;
+    }
+}
@@ -0,0 +1,212 @@
+package cs304.scaling.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// * Hashed timing wheel running scheduled tasks on its own thread. Scheduling is lock-free, timeouts are handed to the
+// * wheel thread through a concurrent queue and only that thread touches the buckets. The tick can be changed while the
+// * wheel runs, the wheel thread then spreads the scheduled timeouts over the buckets again.
+
+public class HashedTimingWheel {
+    private static final int MAX_TRANSFERS_PER_TICK = 100000; //Bound on new timeouts moved into the wheel per tick so that expiry is never starved
+
+    private final int mask;
+    private final Timeout[] buckets; //Head of the doubly linked list of timeouts in each bucket
+    private final ConcurrentLinkedQueue<Timeout> pendingTimeouts; //Timeouts scheduled since the last tick
+    private final Thread workerThread;
+    private final long startTime;
+    private volatile long requestedTickNanos; //Tick the wheel switches to at the end of the current tick
+    private long tickNanos; //Only touched by the wheel thread from here on
+    private long tickOrigin; //Start of tick 0 relative to startTime, moved whenever the tick changes
+    private long tick;
+
+    /**
+     * @param name name of the wheel thread
+     * @param tickDuration granularity of the wheel, a timeout fires at most one tick late
+     * @param unit unit of tickDuration
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    public HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        this.requestedTickNanos = tickNanos;
+        int wheelSize = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        this.mask = wheelSize - 1;
+        this.buckets = new Timeout[wheelSize];
+        this.pendingTimeouts = new ConcurrentLinkedQueue<>();
+        this.startTime = System.nanoTime();
+        this.workerThread = new Thread(this::runWheel, name);
+        this.workerThread.setDaemon(true);
+    }
+
+    public void start() {
+        workerThread.start();
+    }
+
+    /**
+     * Schedule task to run on the wheel thread once delay has passed. Can be called from any thread.
+     * @param task
+     * @param delay
+     * @param unit
+     * @return handle that can be used to cancel the timeout
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Change the granularity of the wheel. Takes effect at the end of the current tick. Can be called from any thread.
+     * @param tickDuration
+     * @param unit
+     */
+    public void setTickDuration(long tickDuration, TimeUnit unit) {
+        requestedTickNanos = Math.max(1, unit.toNanos(tickDuration));
+    }
+
+    private void runWheel() {
+        while (true) {
+            long deadline = waitForNextTick();
+            transferTimeouts();
+            expireTimeouts((int) (tick & mask), deadline);
+            tick++;
+            long requested = requestedTickNanos;
+            if (requested != tickNanos) {
+                retick(requested);
+            }
+        }
+    }
+
+    /**
+     * Restart the tick count at the end of the tick that just expired, with the new duration, and put every scheduled
+     * timeout into the bucket of its deadline under the new tick.
+     * @param newTickNanos
+     */
+    private void retick(long newTickNanos) {
+        List<Timeout> scheduled = new ArrayList<>();
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            while (buckets[bucket] != null) {
+                Timeout timeout = buckets[bucket];
+                removeFromBucket(bucket, timeout);
+                if (!timeout.cancelled) {
+                    scheduled.add(timeout);
+                }
+            }
+        }
+        tickOrigin += tick * tickNanos;
+        tickNanos = newTickNanos;
+        tick = 0;
+        for (Timeout timeout : scheduled) {
+            placeTimeout(timeout);
+        }
+    }
+
+    /**
+     * Sleep until the end of the current tick. Long waits use Thread.sleep, the last millisecond is parked with
+     * nanosecond resolution so that sub-millisecond ticks are honoured.
+     * @return the end of the current tick relative to startTime
+     */
+    private long waitForNextTick() {
+        long deadline = tickOrigin + (tick + 1) * tickNanos;
+        while (true) {
+            long remaining = deadline - (System.nanoTime() - startTime);
+            if (remaining <= 0) {
+                return deadline;
+            }
+            if (remaining > TimeUnit.MILLISECONDS.toNanos(1)) {
+                try {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(remaining));
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+
+    private void transferTimeouts() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pendingTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.cancelled) {
+                continue;
+            }
+            placeTimeout(timeout);
+        }
+    }
+
+    private void placeTimeout(Timeout timeout) {
+        long calculated = (timeout.deadline - tickOrigin) / tickNanos;
+        timeout.remainingRounds = (calculated - tick) / buckets.length;
+        long ticks = Math.max(calculated, tick); //Timeouts that are already due go into the current bucket
+        addToBucket((int) (ticks & mask), timeout);
+    }
+
+    private void expireTimeouts(int bucket, long deadline) {
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                removeFromBucket(bucket, timeout);
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                removeFromBucket(bucket, timeout);
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void addToBucket(int bucket, Timeout timeout) {
+        timeout.next = buckets[bucket];
+        if (buckets[bucket] != null) {
+            buckets[bucket].prev = timeout;
+        }
+        buckets[bucket] = timeout;
+    }
+
+    private void removeFromBucket(int bucket, Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; //Relative to the start time of the wheel
+        private long remainingRounds;
+        private Timeout prev;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevent the task from running. The timeout is dropped lazily when the wheel reaches it.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
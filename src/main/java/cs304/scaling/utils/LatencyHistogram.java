@@ -0,0 +1,115 @@
+package cs304.scaling.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// * Lock-free histogram of latencies in nanoseconds with logarithmic buckets: every power of two is split into
+// * SUB_BUCKETS linear buckets, so recorded values keep about 3% precision from nanoseconds up to hours.
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong maxValue;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKET_COUNT);
+        this.maxValue = new AtomicLong(0);
+    }
+
+    /**
+     * Can be called from any thread without locking.
+     * @param valueNanos negative values are recorded as 0
+     */
+    public void record(long valueNanos) {
+        long value = Math.max(0, valueNanos);
+        counts.incrementAndGet(bucketOf(value));
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Copy the counts and reset them to zero, bucket by bucket. Values recorded concurrently end up in either this
+     * snapshot or the next one.
+     * @return the values recorded since the previous snapshot
+     */
+    public Snapshot takeSnapshot() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.getAndSet(i, 0);
+            total += snapshot[i];
+        }
+        return new Snapshot(snapshot, total, maxValue.getAndSet(0));
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value that falls into the bucket
+     */
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long totalCount;
+        private final long maxValue;
+
+        private Snapshot(long[] counts, long totalCount, long maxValue) {
+            this.counts = counts;
+            this.totalCount = totalCount;
+            this.maxValue = maxValue;
+        }
+
+        public long getTotalCount() {
+            return totalCount;
+        }
+
+        public long getMaxValue() {
+            return maxValue;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the value below which the given percentage of the values fall, 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            long rank = (long) Math.ceil(percentile / 100 * totalCount);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank) && counts[i] > 0) {
+                    return Math.min(highestValueOf(i), maxValue);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return p50, p90, p99, p99.9 and max in milliseconds
+         */
+        public String formatPercentiles() {
+            return String.format("p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+                    getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6, getValueAtPercentile(99) / 1e6,
+                    getValueAtPercentile(99.9) / 1e6, maxValue / 1e6);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package cs304.scaling.utils;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// * Hash engine backed by a JCA MessageDigest (SHA-1, SHA-256, ...). The JDK keeps using its intrinsic compression
+// * functions, direct buffers go through the digest's internal reusable array, so nothing is allocated per message.
+
+public class MessageDigestEngine implements HashEngine {
+    private final MessageDigest digest;
+
+    public MessageDigestEngine(String algorithm) {
+        try {
+            this.digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(algorithm + " Algorithm not found in MessageDigestEngine.java", e);
+        }
+    }
+
+    @Override
+    public int digestLength() {
+        return digest.getDigestLength();
+    }
+
+    @Override
+    public void update(ByteBuffer data) {
+        digest.update(data);
+    }
+
+    @Override
+    public void update(byte[] data, int offset, int length) {
+        digest.update(data, offset, length);
+    }
+
+    @Override
+    public int digest(byte[] out, int offset) {
+        try {
+            return digest.digest(out, offset, digest.getDigestLength());
+        } catch (DigestException e) {
+            throw new IllegalArgumentException("Output array too small for " + digest.getAlgorithm(), e);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package cs304.scaling.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// * SHA-1 over up to LANES messages at once. The state and message schedule of all lanes are interleaved in int arrays
+// * and every step of the compression function is a loop over the lanes, a shape the JIT can compile to SIMD
+// * instructions. Lanes whose message has no block left ride along and keep their state, so messages of equal length
+// * waste nothing. Instances keep their work arrays between calls and are not thread-safe.
+
+public class MultiBufferSHA1 {
+    public static final int LANES = 8;
+    public static final int DIGEST_LENGTH = 20;
+    private static final int BLOCK_LENGTH = 64;
+
+    private final int[] w; //Message schedule, word t of lane l at t * LANES + l
+    private final int[] a;
+    private final int[] b;
+    private final int[] c;
+    private final int[] d;
+    private final int[] e;
+    private final int[] h0;
+    private final int[] h1;
+    private final int[] h2;
+    private final int[] h3;
+    private final int[] h4;
+    private final int[] saved; //State of the lanes without a block in the current pass, h0 to h4 at i * LANES + l
+    private final int[] fullBlocks; //Blocks of every lane read straight from its message
+    private final int[] blocks; //Blocks of every lane including the tail blocks, 0 for lanes not in use
+    private final ByteBuffer[] tails; //Last one or two blocks of every lane, message tail plus padding
+
+    public MultiBufferSHA1() {
+        this.w = new int[80 * LANES];
+        this.a = new int[LANES];
+        this.b = new int[LANES];
+        this.c = new int[LANES];
+        this.d = new int[LANES];
+        this.e = new int[LANES];
+        this.h0 = new int[LANES];
+        this.h1 = new int[LANES];
+        this.h2 = new int[LANES];
+        this.h3 = new int[LANES];
+        this.h4 = new int[LANES];
+        this.saved = new int[5 * LANES];
+        this.fullBlocks = new int[LANES];
+        this.blocks = new int[LANES];
+        this.tails = new ByteBuffer[LANES];
+        for (int l = 0; l < LANES; l++) {
+            tails[l] = ByteBuffer.allocate(2 * BLOCK_LENGTH);
+        }
+    }
+
+    /**
+     * Hash LANES messages. The positions of the messages are left untouched.
+     * @param messages LANES buffers
+     * @param digests receives DIGEST_LENGTH bytes per lane
+     */
+    public void digest(ByteBuffer[] messages, byte[][] digests) {
+        digest(messages, LANES, digests);
+    }
+
+    /**
+     * Hash the first count messages, which may differ in length. It takes as many passes as the longest message has
+     * blocks. The positions of the messages are left untouched.
+     * @param messages at least count buffers
+     * @param count lanes in use, 1 to LANES
+     * @param digests receives DIGEST_LENGTH bytes for each lane in use
+     */
+    public void digest(ByteBuffer[] messages, int count, byte[][] digests) {
+        if (count < 1 || count > LANES) {
+            throw new IllegalArgumentException("Multi-buffer SHA-1 hashes 1 to " + LANES + " messages at once, not " + count);
+        }
+        int passes = 0;
+        for (int l = 0; l < LANES; l++) {
+            h0[l] = 0x67452301;
+            h1[l] = 0xEFCDAB89;
+            h2[l] = 0x98BADCFE;
+            h3[l] = 0x10325476;
+            h4[l] = 0xC3D2E1F0;
+            if (l < count) {
+                int length = messages[l].remaining();
+                fullBlocks[l] = length / BLOCK_LENGTH;
+                blocks[l] = fullBlocks[l] + buildTail(messages[l], l, fullBlocks[l] * BLOCK_LENGTH, length);
+                passes = Math.max(passes, blocks[l]);
+            } else {
+                fullBlocks[l] = 0;
+                blocks[l] = 0;
+            }
+        }
+
+        for (int block = 0; block < passes; block++) {
+            boolean ragged = false;
+            for (int l = 0; l < LANES; l++) {
+                if (block < fullBlocks[l]) {
+                    loadBlock(messages[l], messages[l].position() + block * BLOCK_LENGTH, l);
+                } else if (block < blocks[l]) {
+                    loadBlock(tails[l], (block - fullBlocks[l]) * BLOCK_LENGTH, l);
+                } else {
+                    ragged = true; //The lane compresses whatever its schedule holds, the result is thrown away below
+                }
+            }
+            if (!ragged) {
+                compress();
+                continue;
+            }
+            saveState();
+            compress();
+            for (int l = 0; l < LANES; l++) {
+                if (block >= blocks[l]) {
+                    restoreState(l);
+                }
+            }
+        }
+
+        for (int l = 0; l < count; l++) {
+            putInt(digests[l], 0, h0[l]);
+            putInt(digests[l], 4, h1[l]);
+            putInt(digests[l], 8, h2[l]);
+            putInt(digests[l], 12, h3[l]);
+            putInt(digests[l], 16, h4[l]);
+        }
+    }
+
+    /**
+     * Copy the bytes of a message after its last full block into the tail buffer of its lane and append the SHA-1
+     * padding: 0x80, zeros and the message length in bits.
+     * @return number of tail blocks, 1 or 2
+     */
+    private int buildTail(ByteBuffer message, int lane, int offset, int length) {
+        int remaining = length - offset;
+        int tailBlocks = remaining + 9 > BLOCK_LENGTH ? 2 : 1;
+        ByteBuffer tail = tails[lane];
+        tail.clear();
+        int start = message.position() + offset;
+        for (int i = 0; i < remaining; i++) {
+            tail.put(message.get(start + i));
+        }
+        tail.put((byte) 0x80);
+        while (tail.position() < tailBlocks * BLOCK_LENGTH - 8) {
+            tail.put((byte) 0);
+        }
+        tail.putLong((long) length * 8);
+        return tailBlocks;
+    }
+
+    private void saveState() {
+        System.arraycopy(h0, 0, saved, 0, LANES);
+        System.arraycopy(h1, 0, saved, LANES, LANES);
+        System.arraycopy(h2, 0, saved, 2 * LANES, LANES);
+        System.arraycopy(h3, 0, saved, 3 * LANES, LANES);
+        System.arraycopy(h4, 0, saved, 4 * LANES, LANES);
+    }
+
+    private void restoreState(int lane) {
+        h0[lane] = saved[lane];
+        h1[lane] = saved[LANES + lane];
+        h2[lane] = saved[2 * LANES + lane];
+        h3[lane] = saved[3 * LANES + lane];
+        h4[lane] = saved[4 * LANES + lane];
+    }
+
+    private void loadBlock(ByteBuffer source, int index, int lane) {
+        boolean bigEndian = source.order() == ByteOrder.BIG_ENDIAN;
+        for (int t = 0; t < 16; t++) {
+            int word = source.getInt(index + t * 4);
+            w[t * LANES + lane] = bigEndian ? word : Integer.reverseBytes(word);
+        }
+    }
+
+    private void compress() {
+        for (int t = 16; t < 80; t++) {
+            for (int l = 0; l < LANES; l++) {
+                int x = w[(t - 3) * LANES + l] ^ w[(t - 8) * LANES + l] ^ w[(t - 14) * LANES + l] ^ w[(t - 16) * LANES + l];
+                w[t * LANES + l] = (x << 1) | (x >>> 31);
+            }
+        }
+
+        System.arraycopy(h0, 0, a, 0, LANES);
+        System.arraycopy(h1, 0, b, 0, LANES);
+        System.arraycopy(h2, 0, c, 0, LANES);
+        System.arraycopy(h3, 0, d, 0, LANES);
+        System.arraycopy(h4, 0, e, 0, LANES);
+
+        // Instead of shifting a..e along every round, the arrays take turns in each role, so a round only writes two
+        // of them and five rounds bring every array back to its original role
+        for (int t = 0; t < 80; t += 5) {
+            round(t, a, b, c, d, e);
+            round(t + 1, e, a, b, c, d);
+            round(t + 2, d, e, a, b, c);
+            round(t + 3, c, d, e, a, b);
+            round(t + 4, b, c, d, e, a);
+        }
+
+        for (int l = 0; l < LANES; l++) {
+            h0[l] += a[l];
+            h1[l] += b[l];
+            h2[l] += c[l];
+            h3[l] += d[l];
+            h4[l] += e[l];
+        }
+    }
+
+    /**
+     * One SHA-1 round over all lanes: e += rotl(a, 5) + f(b, c, d) + K + W and b = rotl(b, 30).
+     */
+    private void round(int t, int[] a, int[] b, int[] c, int[] d, int[] e) {
+        int base = t * LANES;
+        if (t < 20) {
+            for (int l = 0; l < LANES; l++) {
+                e[l] += ((a[l] << 5) | (a[l] >>> 27)) + ((b[l] & c[l]) | (~b[l] & d[l])) + 0x5A827999 + w[base + l];
+                b[l] = (b[l] << 30) | (b[l] >>> 2);
+            }
+        } else if (t < 40) {
+            for (int l = 0; l < LANES; l++) {
+                e[l] += ((a[l] << 5) | (a[l] >>> 27)) + (b[l] ^ c[l] ^ d[l]) + 0x6ED9EBA1 + w[base + l];
+                b[l] = (b[l] << 30) | (b[l] >>> 2);
+            }
+        } else if (t < 60) {
+            for (int l = 0; l < LANES; l++) {
+                e[l] += ((a[l] << 5) | (a[l] >>> 27)) + ((b[l] & c[l]) | (b[l] & d[l]) | (c[l] & d[l])) + 0x8F1BBCDC
+                        + w[base + l];
+                b[l] = (b[l] << 30) | (b[l] >>> 2);
+            }
+        } else {
+            for (int l = 0; l < LANES; l++) {
+                e[l] += ((a[l] << 5) | (a[l] >>> 27)) + (b[l] ^ c[l] ^ d[l]) + 0xCA62C1D6 + w[base + l];
+                b[l] = (b[l] << 30) | (b[l] >>> 2);
+            }
+        }
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,246 @@
+package cs304.scaling.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+// * Content-addressed cache of digests, so that byte-identical payloads such as retries are hashed only once. Payloads
+// * and their digests are kept off-heap in fixed-size slots of direct slabs, the index and the eviction state are
+// * primitive arrays, so a full cache adds no objects for the collector to trace. Entries are found by the 64 bit xxHash
+// * of the payload and only count as a hit if the stored payload is byte-for-byte the same. Eviction is CLOCK: a hit
+// * sets the reference bit of its slot, and the hand clears bits until it finds a slot that was not hit since its last
+// * pass. The cache is split into independently locked segments picked by the fingerprint, so workers hashing different
+// * payloads rarely contend.
+
+public class ResultCache {
+    public static final int MIN_CACHED_PAYLOAD = 512; //Shorter payloads hash faster than they are looked up
+
+    private static final int SEGMENTS = 16;
+    private static final long SEED = 0x9E3779B97F4A7C15L; //Fingerprint seed, distinct from the seed of the XXH64 engine
+    private static final int DIGEST_OFFSET = WireProtocol.MAX_PAYLOAD_LENGTH; //Digest follows the payload in its slot
+    private static final int SLOT_SIZE = DIGEST_OFFSET + 32; //Payload and WIRE_DIGEST_LENGTH digest bytes, 8 byte aligned
+    private static final int MAX_SLOTS_PER_SEGMENT = Integer.MAX_VALUE / SLOT_SIZE; //A slab is a single direct buffer
+
+    private final Segment[] segments; //Empty when the cache is disabled
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * @param budgetBytes off-heap memory for payloads and digests, rounded down to whole slots, 0 disables the cache
+     */
+    public ResultCache(long budgetBytes) {
+        int slotsPerSegment = (int) Math.min(MAX_SLOTS_PER_SEGMENT, budgetBytes / SLOT_SIZE / SEGMENTS);
+        if (budgetBytes > 0 && slotsPerSegment == 0) {
+            slotsPerSegment = 1; //Budget below one slot per segment, still cache something rather than nothing
+        }
+        this.segments = new Segment[slotsPerSegment > 0 ? SEGMENTS : 0];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(slotsPerSegment);
+        }
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    public boolean isEnabled() {
+        return segments.length > 0;
+    }
+
+    /**
+     * @param payload
+     * @return true if digests of payloads of its size are worth caching and fit a slot
+     */
+    public boolean accepts(ByteBuffer payload) {
+        return isEnabled() && payload.remaining() >= MIN_CACHED_PAYLOAD && payload.remaining() <= DIGEST_OFFSET;
+    }
+
+    /**
+     * @param payload position and limit are left untouched
+     * @return the key lookup() and store() expect for payload
+     */
+    public long fingerprint(ByteBuffer payload) {
+        return XXHash64.hash(payload, SEED);
+    }
+
+    /**
+     * @param payload position and limit are left untouched
+     * @param fingerprint of payload
+     * @param digest receives the cached digest, at least HashEngines.WIRE_DIGEST_LENGTH bytes
+     * @return number of digest bytes, -1 if payload is not cached
+     */
+    public int lookup(ByteBuffer payload, long fingerprint, byte[] digest) {
+        int length = segmentOf(fingerprint).lookup(payload, fingerprint, digest);
+        if (length < 0) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return length;
+    }
+
+    /**
+     * Cache the digest of a payload, evicting another entry if the segment is full. Only the first
+     * HashEngines.WIRE_DIGEST_LENGTH bytes are kept, which are all writeHash() and writeDigest() ever put on the wire.
+     * @param payload position and limit are left untouched
+     * @param fingerprint of payload
+     * @param digest
+     * @param length number of valid bytes in digest
+     */
+    public void store(ByteBuffer payload, long fingerprint, byte[] digest, int length) {
+        if (segmentOf(fingerprint).store(payload, fingerprint, digest, Math.min(length, HashEngines.WIRE_DIGEST_LENGTH))) {
+            evictions.increment();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getEntryCount() {
+        long entries = 0;
+        for (Segment segment : segments) {
+            entries += segment.getEntryCount();
+        }
+        return entries;
+    }
+
+    /**
+     * @return off-heap bytes held by the slabs
+     */
+    public long getCapacityBytes() {
+        return segments.length == 0 ? 0 : (long) segments.length * segments[0].slots * SLOT_SIZE;
+    }
+
+    private Segment segmentOf(long fingerprint) {
+        return segments[(int) (fingerprint >>> 60) & (SEGMENTS - 1)]; //The index of a segment uses the low bits
+    }
+
+    private static final class Segment {
+        private final int slots;
+        private final ByteBuffer slab; //Slots of SLOT_SIZE bytes, its position and limit are only moved under the lock
+        private final long[] fingerprints; //Per slot
+        private final int[] payloadLengths; //Per slot
+        private final int[] digestLengths; //Per slot
+        private final boolean[] referenced; //Per slot, CLOCK reference bits
+        private final int[] index; //Open addressing table with linear probing, slot + 1 or 0 for an empty entry
+        private final int indexMask;
+        private int usedSlots; //Slots are filled in order before the first eviction
+        private int hand; //Next slot the CLOCK hand looks at
+
+        private Segment(int slots) {
+            this.slots = slots;
+            this.slab = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+            this.fingerprints = new long[slots];
+            this.payloadLengths = new int[slots];
+            this.digestLengths = new int[slots];
+            this.referenced = new boolean[slots];
+            this.index = new int[Integer.highestOneBit(Math.max(1, slots) * 2 - 1) * 2]; //At most half full
+            this.indexMask = index.length - 1;
+        }
+
+        synchronized int getEntryCount() {
+            return usedSlots;
+        }
+
+        synchronized int lookup(ByteBuffer payload, long fingerprint, byte[] digest) {
+            int slot = find(payload, fingerprint);
+            if (slot < 0) {
+                return -1;
+            }
+            referenced[slot] = true;
+            int length = digestLengths[slot];
+            slab.limit(slot * SLOT_SIZE + DIGEST_OFFSET + length).position(slot * SLOT_SIZE + DIGEST_OFFSET);
+            slab.get(digest, 0, length);
+            return length;
+        }
+
+        /**
+         * @return true if an entry was evicted to make room
+         */
+        synchronized boolean store(ByteBuffer payload, long fingerprint, byte[] digest, int length) {
+            if (find(payload, fingerprint) >= 0) {
+                return false; //Another worker missed on the same payload and stored it first
+            }
+            boolean evicted = usedSlots == slots;
+            int slot = evicted ? evict() : usedSlots++;
+            int base = slot * SLOT_SIZE;
+            int position = payload.position();
+            slab.limit(base + payload.remaining()).position(base);
+            slab.put(payload);
+            payload.position(position);
+            slab.limit(base + DIGEST_OFFSET + length).position(base + DIGEST_OFFSET);
+            slab.put(digest, 0, length);
+
+            fingerprints[slot] = fingerprint;
+            payloadLengths[slot] = payload.remaining();
+            digestLengths[slot] = length;
+            referenced[slot] = false; //A new entry has to be hit once to survive the next pass of the hand
+            int i = (int) fingerprint & indexMask;
+            while (index[i] != 0) {
+                i = (i + 1) & indexMask;
+            }
+            index[i] = slot + 1;
+            return evicted;
+        }
+
+        /**
+         * @return slot holding payload, -1 if there is none
+         */
+        private int find(ByteBuffer payload, long fingerprint) {
+            int length = payload.remaining();
+            for (int i = (int) fingerprint & indexMask; index[i] != 0; i = (i + 1) & indexMask) {
+                int slot = index[i] - 1;
+                if (fingerprints[slot] == fingerprint && payloadLengths[slot] == length) {
+                    slab.limit(slot * SLOT_SIZE + length).position(slot * SLOT_SIZE);
+                    if (slab.equals(payload)) { //Compares the remaining bytes of both
+                        return slot;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Advance the CLOCK hand to the first slot whose reference bit is clear, clearing the bits it passes.
+         * @return the slot, removed from the index
+         */
+        private int evict() {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % slots;
+            }
+            int slot = hand;
+            hand = (hand + 1) % slots;
+            unindex(slot);
+            return slot;
+        }
+
+        /**
+         * Remove a slot from the index, shifting later entries of its probe run back so lookups never stop early.
+         * @param slot
+         */
+        private void unindex(int slot) {
+            int i = (int) fingerprints[slot] & indexMask;
+            while (index[i] != slot + 1) {
+                i = (i + 1) & indexMask;
+            }
+            int hole = i;
+            for (int j = (hole + 1) & indexMask; index[j] != 0; j = (j + 1) & indexMask) {
+                int home = (int) fingerprints[index[j] - 1] & indexMask;
+                if (((j - home) & indexMask) >= ((j - hole) & indexMask)) { //Entry j may move back to the hole
+                    index[hole] = index[j];
+                    hole = j;
+                }
+            }
+            index[hole] = 0;
+        }
+    }
+}
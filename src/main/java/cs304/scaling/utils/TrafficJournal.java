@@ -0,0 +1,93 @@
+package cs304.scaling.utils;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// * On-disk format of a traffic capture, shared by the Server writing it and the TrafficReplay reading it. A journal is
+// * a directory of segment files named by their index. Every segment starts with SEGMENT_HEADER_LENGTH bytes of header
+// * followed by records appended back to back: RECORD_HEADER_LENGTH bytes of header and the request payload. The header
+// * of a segment holds the end of the records written so far and is only advanced after whole records, so a reader
+// * never sees a half written record, even while the server is still capturing or after it was killed.
+
+public class TrafficJournal {
+    public static final long MAGIC = 0x43533330344A4E4CL; //"CS304JNL" in ASCII
+
+    public static final int FORMAT_VERSION = 1;
+
+    public static final int SEGMENT_HEADER_LENGTH = 32; //Magic (long), format version (int), segment index (int), capture start in epoch millis (long), end of the records (long)
+
+    public static final int SEGMENT_INDEX_OFFSET = 12;
+
+    public static final int SEGMENT_START_MILLIS_OFFSET = 16;
+
+    public static final int SEGMENT_END_OFFSET = 24;
+
+    public static final int RECORD_HEADER_LENGTH = 32; //Payload length (int), protocol version (int), connection id (long), request id (long), arrival time (long)
+
+    public static final int RECORD_PROTOCOL_OFFSET = 4;
+
+    public static final int RECORD_CONNECTION_OFFSET = 8;
+
+    public static final int RECORD_REQUEST_OFFSET = 16;
+
+    public static final int RECORD_ARRIVAL_OFFSET = 24; //Nanoseconds since the capture started
+
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * @param directory
+     * @param index
+     * @return the path of segment index, the names sort in index order
+     */
+    public static Path segmentPath(Path directory, int index) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @param directory
+     * @return the segments in directory, oldest first
+     */
+    public static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream) {
+                segments.add(segment);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Map a segment read-only. Nothing is copied, the pages are read in by the kernel as the records are used.
+     * @param segment
+     * @return the segment, positioned at its first record and limited to the end of its last complete record
+     * @throws IOException if the file is not a journal segment of this format version
+     */
+    public static MappedByteBuffer mapForReading(Path segment) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); //The mapping outlives the channel
+        }
+        if (buffer.capacity() < SEGMENT_HEADER_LENGTH || buffer.getLong(0) != MAGIC || buffer.getInt(8) != FORMAT_VERSION) {
+            throw new IOException(segment + " is not a version " + FORMAT_VERSION + " journal segment");
+        }
+        long end = buffer.getLong(SEGMENT_END_OFFSET);
+        if (end < SEGMENT_HEADER_LENGTH || end > buffer.capacity()) {
+            throw new IOException(segment + " ends at " + end + " but holds " + buffer.capacity() + " bytes");
+        }
+        buffer.limit((int) end);
+        buffer.position(SEGMENT_HEADER_LENGTH);
+        return buffer;
+    }
+}
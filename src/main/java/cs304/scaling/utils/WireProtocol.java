@@ -0,0 +1,45 @@
+package cs304.scaling.utils;
+
+import java.nio.ByteBuffer;
+
+// * Framing shared by server and clients. Version 1 is an implicit stream: every message is BYTES_PER_MESSAGE bytes and
+// * every reply is BYTES_PER_HASH bytes of dash-padded hex, answered in whatever order the workers finish. A client opts
+// * into version 2 by sending PREAMBLE before anything else, and the server acknowledges with the same PREAMBLE. From
+// * then on every request is an int payload length and a long request id followed by the payload, and every reply is
+// * the request id followed by the raw WIRE_DIGEST_LENGTH byte digest, all in network byte order. A v2 payload of up to
+// * MAX_PAYLOAD_LENGTH bytes is read whole, a longer one of up to MAX_STREAMED_LENGTH bytes is hashed by the server as
+// * it arrives and answered like any other. A v1 message that happens to start with PREAMBLE is a 1 in 2^64 event.
+
+public class WireProtocol {
+    public static final int V1 = 1;
+
+    public static final int V2 = 2;
+
+    public static final int PREAMBLE_LENGTH = 8;
+
+    public static final int REQUEST_HEADER_LENGTH = 12; //Payload length (int) and request id (long)
+
+    public static final int REPLY_LENGTH = 8 + HashEngines.WIRE_DIGEST_LENGTH; //Request id (long) and raw digest
+
+    public static final int MAX_PAYLOAD_LENGTH = AppConstants.BYTES_PER_MESSAGE; //Payloads are read into pooled buffers of this size
+
+    public static final int MAX_STREAMED_LENGTH = Math.max(MAX_PAYLOAD_LENGTH, AppConstants.STREAM_MAX_BYTES); //Longer payloads are streamed by the server in chunks of MAX_PAYLOAD_LENGTH bytes
+
+    private static final long PREAMBLE = 0x435333303476320AL; //"CS304v2\n" in ASCII
+
+    /**
+     * @param out receives PREAMBLE_LENGTH bytes
+     */
+    public static void putPreamble(ByteBuffer out) {
+        out.putLong(PREAMBLE);
+    }
+
+    /**
+     * @param buffer
+     * @param offset absolute index of PREAMBLE_LENGTH bytes in buffer
+     * @return true if they are the v2 preamble
+     */
+    public static boolean isPreamble(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset) == PREAMBLE;
+    }
+}
@@ -0,0 +1,186 @@
+package cs304.scaling.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// * Streaming implementation of the non-cryptographic 64 bit xxHash (XXH64). Reads words straight out of the given
+// * buffers, heap or direct, without copying them.
+
+public class XXHash64 implements HashEngine {
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_LENGTH = 32;
+
+    private final long seed;
+    private final ByteBuffer stripe; //Bytes of an incomplete stripe carried over between update() calls
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long totalLength;
+
+    public XXHash64(long seed) {
+        this.seed = seed;
+        this.stripe = ByteBuffer.allocate(STRIPE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        reset();
+    }
+
+    /**
+     * One-shot hash of the remaining bytes of data. The position of data is left untouched.
+     * @param data
+     * @param seed
+     * @return the 64 bit hash
+     */
+    public static long hash(ByteBuffer data, long seed) {
+        int position = data.position();
+        int end = data.limit();
+        long h;
+        if (end - position >= STRIPE_LENGTH) {
+            long a1 = seed + PRIME64_1 + PRIME64_2;
+            long a2 = seed + PRIME64_2;
+            long a3 = seed;
+            long a4 = seed - PRIME64_1;
+            do {
+                a1 = round(a1, getLongLE(data, position));
+                a2 = round(a2, getLongLE(data, position + 8));
+                a3 = round(a3, getLongLE(data, position + 16));
+                a4 = round(a4, getLongLE(data, position + 24));
+                position += STRIPE_LENGTH;
+            } while (end - position >= STRIPE_LENGTH);
+            h = mergeAccumulators(a1, a2, a3, a4);
+        } else {
+            h = seed + PRIME64_5;
+        }
+        h += end - data.position();
+        return finish(h, data, position, end);
+    }
+
+    @Override
+    public int digestLength() {
+        return 8;
+    }
+
+    @Override
+    public void update(ByteBuffer data) {
+        int position = data.position();
+        int end = data.limit();
+        totalLength += end - position;
+
+        if (stripe.position() > 0) { //Complete the stripe left over from the previous call first
+            int count = Math.min(stripe.remaining(), end - position);
+            for (int i = 0; i < count; i++) {
+                stripe.put(data.get(position + i));
+            }
+            position += count;
+            if (stripe.hasRemaining()) {
+                data.position(end);
+                return;
+            }
+            consumeStripe(stripe, 0);
+            stripe.clear();
+        }
+        while (end - position >= STRIPE_LENGTH) {
+            consumeStripe(data, position);
+            position += STRIPE_LENGTH;
+        }
+        while (position < end) {
+            stripe.put(data.get(position++));
+        }
+        data.position(end);
+    }
+
+    @Override
+    public void update(byte[] data, int offset, int length) {
+        update(ByteBuffer.wrap(data, offset, length));
+    }
+
+    @Override
+    public int digest(byte[] out, int offset) {
+        long h;
+        if (totalLength >= STRIPE_LENGTH) {
+            h = mergeAccumulators(v1, v2, v3, v4);
+        } else {
+            h = seed + PRIME64_5;
+        }
+        h += totalLength;
+        h = finish(h, stripe, 0, stripe.position());
+        for (int i = 7; i >= 0; i--) { //Canonical big-endian representation
+            out[offset + i] = (byte) h;
+            h >>>= 8;
+        }
+        reset();
+        return 8;
+    }
+
+    private void reset() {
+        v1 = seed + PRIME64_1 + PRIME64_2;
+        v2 = seed + PRIME64_2;
+        v3 = seed;
+        v4 = seed - PRIME64_1;
+        totalLength = 0;
+        stripe.clear();
+    }
+
+    private void consumeStripe(ByteBuffer data, int position) {
+        v1 = round(v1, getLongLE(data, position));
+        v2 = round(v2, getLongLE(data, position + 8));
+        v3 = round(v3, getLongLE(data, position + 16));
+        v4 = round(v4, getLongLE(data, position + 24));
+    }
+
+    private static long finish(long h, ByteBuffer data, int position, int end) {
+        while (end - position >= 8) {
+            h ^= round(0, getLongLE(data, position));
+            h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+            position += 8;
+        }
+        if (end - position >= 4) {
+            h ^= (getIntLE(data, position) & 0xFFFFFFFFL) * PRIME64_1;
+            h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            position += 4;
+        }
+        while (position < end) {
+            h ^= (data.get(position) & 0xFF) * PRIME64_5;
+            h = Long.rotateLeft(h, 11) * PRIME64_1;
+            position++;
+        }
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long mergeAccumulators(long a1, long a2, long a3, long a4) {
+        long h = Long.rotateLeft(a1, 1) + Long.rotateLeft(a2, 7) + Long.rotateLeft(a3, 12) + Long.rotateLeft(a4, 18);
+        h = mergeRound(h, a1);
+        h = mergeRound(h, a2);
+        h = mergeRound(h, a3);
+        return mergeRound(h, a4);
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME64_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME64_1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long getLongLE(ByteBuffer data, int index) {
+        long value = data.getLong(index);
+        return data.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    private static int getIntLE(ByteBuffer data, int index) {
+        int value = data.getInt(index);
+        return data.order() == ByteOrder.LITTLE_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+}
@@ -0,0 +1,88 @@
+package cs304.scaling.proxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// * Checks the routing of the proxy's consistent-hash ring: a backend that leaves only gives up its own keys, a backend
+// * that joins again takes back exactly those keys, and the keys are spread over all backends.
+
+public class HashRingTest {
+    private static final int BACKENDS = 5;
+    private static final int VIRTUAL_NODES = 160;
+    private static final int KEYS = 20000;
+
+    private final List<Backend> backends = new ArrayList<>();
+    private final long[] keys = new long[KEYS];
+
+    public HashRingTest() {
+        for (int b = 0; b < BACKENDS; b++) {
+            backends.add(new Backend(b, "127.0.0.1:" + (5001 + b)));
+        }
+        for (int k = 0; k < KEYS; k++) {
+            keys[k] = HashRing.hash("/10.0." + (k >> 8) + "." + (k & 255) + ":" + (40000 + k)); //Like a client address
+        }
+    }
+
+    @Test
+    public void removingABackendMovesOnlyItsKeys() {
+        HashRing full = HashRing.build(backends, VIRTUAL_NODES, 1);
+        for (Backend removed : backends) {
+            HashRing ring = HashRing.build(without(removed), VIRTUAL_NODES, 2);
+            for (long key : keys) {
+                Backend before = full.route(key);
+                Backend after = ring.route(key);
+                assertNotNull("every key has a backend", after);
+                if (before == removed) {
+                    assertNotEquals("key moved off " + removed.getName(), removed, after);
+                } else {
+                    assertEquals("key of a remaining backend moved", before, after);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void addingABackendBackRestoresTheMapping() {
+        HashRing full = HashRing.build(backends, VIRTUAL_NODES, 1);
+        for (Backend removed : backends) {
+            List<Backend> rejoined = without(removed);
+            rejoined.add(removed); //Joins at the end of the member list, the ring must not depend on the order
+            HashRing ring = HashRing.build(rejoined, VIRTUAL_NODES, 3);
+            for (long key : keys) {
+                assertEquals("key routed differently after " + removed.getName() + " rejoined", full.route(key), ring.route(key));
+            }
+        }
+    }
+
+    @Test
+    public void keysAreSpreadOverAllBackends() {
+        HashRing ring = HashRing.build(backends, VIRTUAL_NODES, 1);
+        int[] counts = new int[BACKENDS];
+        for (long key : keys) {
+            counts[ring.route(key).getIndex()]++;
+        }
+        for (int b = 0; b < BACKENDS; b++) {
+            double share = (double) counts[b] / KEYS;
+            assertTrue("backend " + b + " owns " + share + " of the keys", share > 0.75 / BACKENDS && share < 1.25 / BACKENDS);
+        }
+    }
+
+    @Test
+    public void emptyRingRoutesNowhere() {
+        assertNull(HashRing.build(new ArrayList<>(), VIRTUAL_NODES, 1).route(keys[0]));
+    }
+
+    private List<Backend> without(Backend removed) {
+        List<Backend> members = new ArrayList<>(backends);
+        members.remove(removed);
+        return members;
+    }
+}
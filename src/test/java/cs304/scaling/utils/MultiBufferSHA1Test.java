@@ -0,0 +1,106 @@
+package cs304.scaling.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+// * Checks every lane of MultiBufferSHA1 against the JDK's SHA-1, around the padding boundaries of a block (55 bytes
+// * still take one tail block, 56 need two, 64 is one full block plus a padding block) and at the 8KB message size.
+
+public class MultiBufferSHA1Test {
+    private static final int[] LENGTHS = {0, 55, 56, 63, 64, 8192};
+
+    private final Random random = new Random(304);
+    private final MultiBufferSHA1 hasher = new MultiBufferSHA1();
+    private final byte[][] digests = new byte[MultiBufferSHA1.LANES][MultiBufferSHA1.DIGEST_LENGTH];
+
+    @Test
+    public void fullLanesOfEqualLength() throws NoSuchAlgorithmException {
+        for (int length : LENGTHS) {
+            int[] lengths = new int[MultiBufferSHA1.LANES];
+            Arrays.fill(lengths, length);
+            check(lengths, MultiBufferSHA1.LANES);
+        }
+    }
+
+    @Test
+    public void partlyFilledLanes() throws NoSuchAlgorithmException {
+        for (int length : LENGTHS) {
+            for (int count = 1; count < MultiBufferSHA1.LANES; count++) {
+                int[] lengths = new int[count];
+                Arrays.fill(lengths, length);
+                check(lengths, count);
+            }
+        }
+    }
+
+    @Test
+    public void lanesOfDifferentLengths() throws NoSuchAlgorithmException {
+        check(new int[]{0, 55, 56, 63, 64, 8192, 1, 127}, MultiBufferSHA1.LANES);
+        check(new int[]{8192, 0, 64}, 3);
+        for (int round = 0; round < 20; round++) {
+            int count = 1 + random.nextInt(MultiBufferSHA1.LANES);
+            int[] lengths = new int[count];
+            for (int l = 0; l < count; l++) {
+                lengths[l] = random.nextInt(3 * 64 + 1);
+            }
+            check(lengths, count);
+        }
+    }
+
+    @Test
+    public void positionsAndByteOrderAreRespected() throws NoSuchAlgorithmException {
+        ByteBuffer[] messages = new ByteBuffer[MultiBufferSHA1.LANES];
+        byte[][] payloads = new byte[MultiBufferSHA1.LANES][];
+        for (int l = 0; l < MultiBufferSHA1.LANES; l++) {
+            payloads[l] = randomBytes(100 + l);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(payloads[l].length + 7).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(7);
+            buffer.put(payloads[l]);
+            buffer.position(7);
+            messages[l] = buffer;
+        }
+        hasher.digest(messages, MultiBufferSHA1.LANES, digests);
+        for (int l = 0; l < MultiBufferSHA1.LANES; l++) {
+            assertArrayEquals("lane " + l, MessageDigest.getInstance("SHA-1").digest(payloads[l]), digests[l]);
+            assertEquals(7, messages[l].position());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMoreMessagesThanLanes() {
+        hasher.digest(new ByteBuffer[MultiBufferSHA1.LANES + 1], MultiBufferSHA1.LANES + 1, digests);
+    }
+
+    /**
+     * Hash random messages of the given lengths in one call, each lane with fresh contents, and compare every lane in
+     * use with MessageDigest.
+     */
+    private void check(int[] lengths, int count) throws NoSuchAlgorithmException {
+        ByteBuffer[] messages = new ByteBuffer[MultiBufferSHA1.LANES];
+        byte[][] payloads = new byte[count][];
+        for (int l = 0; l < count; l++) {
+            payloads[l] = randomBytes(lengths[l]);
+            messages[l] = ByteBuffer.wrap(payloads[l]);
+        }
+        hasher.digest(messages, count, digests);
+        for (int l = 0; l < count; l++) {
+            byte[] expected = MessageDigest.getInstance("SHA-1").digest(payloads[l]);
+            assertArrayEquals("lane " + l + " of " + count + ", " + lengths[l] + " bytes", expected, digests[l]);
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}